@@ -0,0 +1,91 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.dataset.lib.CounterTimeseriesTable;
+import co.cask.cdap.guides.traffic.TrafficConditionService.Condition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the evaluation of the condition of a road segment, as done for every lookup by
+ * {@code TrafficConditionHandler.recentConditions}: from the counters read from the timeseries table, and from the
+ * encoded materialized state.  The thresholds are never reached, even once counts are summed into buckets, so that
+ * every counter is looked at.  The time to read the counters from the table is not included; see
+ * {@link ConditionReadBenchmark} for lookups against a table.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConditionBenchmark {
+  /** Number of counters within the lookback period, which is 2700 for one report per second */
+  @Param({"10", "100", "1000", "10000"})
+  public int counterCount;
+
+  private final ConditionRules rules = new ConditionRules(Long.MAX_VALUE, ConditionRules.DEFAULT_CONGESTED_RED_ENTRIES,
+                                                         Long.MAX_VALUE, ConditionRules.DEFAULT_LOOKBACK_PERIOD);
+
+  private List<CounterTimeseriesTable.Counter> counters;
+  private byte[] encodedState;
+  private long endTime;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(0);
+    byte[] key = SegmentKeys.UNSALTED.toKey(1);
+    byte[] vehicle = SegmentKeys.typeTag(TrafficEvent.Type.VEHICLE);
+    long lookback = rules.getLookbackPeriod();
+    endTime = System.currentTimeMillis();
+    counters = new ArrayList<CounterTimeseriesTable.Counter>(counterCount);
+    SegmentState state = new SegmentState(lookback, 0L);
+    for (int i = 0; i < counterCount; i++) {
+      long timestamp = endTime - lookback + lookback * i / counterCount;
+      long value = random.nextInt((int) ConditionRules.DEFAULT_CONGESTED_THRESHOLD);
+      counters.add(new CounterTimeseriesTable.Counter(key, value, timestamp, vehicle));
+      state.add(timestamp, TrafficEvent.Type.VEHICLE, value);
+    }
+    state.update(endTime, Condition.GREEN);
+    encodedState = state.encode();
+  }
+
+  @Benchmark
+  public Condition evaluateCounters() {
+    return rules.evaluate(counters.iterator());
+  }
+
+  @Benchmark
+  public Condition evaluateState() {
+    return rules.evaluate(SegmentState.decode(encodedState), endTime);
+  }
+}
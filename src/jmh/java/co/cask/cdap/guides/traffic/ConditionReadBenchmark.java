@@ -0,0 +1,129 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.lib.CounterTimeseriesTable;
+import co.cask.cdap.api.dataset.lib.KeyValueTable;
+import co.cask.cdap.guides.traffic.TrafficConditionService.Condition;
+import com.google.common.collect.ImmutableMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the lookup of the condition of a road segment, as done for every lookup by
+ * {@code TrafficConditionHandler.recentConditions}, against CDAP in-memory tables written by the
+ * {@link SegmentWriter} of {@link TrafficEventSink}: from the counters scanned from the timeseries table, as when the
+ * segment state does not cover the lookback period, and from a point lookup of the segment state.  The thresholds
+ * are never reached, so that the scan is never cut short by a RED condition.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConditionReadBenchmark {
+  /** Number of counters of each road segment within the lookback period, which is 2700 for one report per second */
+  @Param({"10", "100", "1000", "2700"})
+  public int counterCount;
+
+  /** Number of road segments in the tables, all with the same number of counters */
+  private static final int SEGMENTS = 100;
+  private static final String SEGMENT = "66N_0";
+
+  private InMemoryDatasets datasets;
+  private CounterTimeseriesTable table;
+  private KeyValueTable states;
+  private SegmentDictionary dictionary;
+  private ConditionRules rules;
+  private long endTime;
+
+  @Setup
+  public void setUp() throws Exception {
+    ConditionRuleSet ruleSet = ConditionRuleSet.fromArguments(ImmutableMap.of(
+      ConditionRuleSet.PREFIX + ConditionRules.CONGESTED_THRESHOLD, Long.toString(Long.MAX_VALUE),
+      ConditionRuleSet.PREFIX + ConditionRules.ACCIDENT_THRESHOLD, Long.toString(Long.MAX_VALUE)));
+    rules = ruleSet.getRules(SEGMENT);
+    datasets = new InMemoryDatasets();
+    Map<Resolution, CounterTimeseriesTable> tables = new EnumMap<Resolution, CounterTimeseriesTable>(Resolution.class);
+    for (Resolution resolution : Resolution.values()) {
+      tables.put(resolution, datasets.getTimeseriesTable(resolution));
+    }
+    table = tables.get(Resolution.RAW);
+    states = datasets.getKeyValueTable(TrafficApp.SEGMENT_STATE_TABLE_NAME);
+    dictionary = new SegmentDictionary(datasets.getTable(TrafficApp.SEGMENT_DICTIONARY_NAME),
+                                       SegmentDictionary.createCache(SegmentDictionary.DEFAULT_CACHE_SIZE));
+    SegmentWriter writer = new SegmentWriter(tables, datasets.getKeyValueTable(TrafficApp.SEGMENT_REGISTRY_NAME),
+                                             states, dictionary, SegmentKeys.UNSALTED,
+                                             new LegacyCounters(new TrafficApp.TrafficConfig()), ruleSet,
+                                             rules.getLookbackPeriod());
+
+    Random random = new Random(0);
+    long lookback = rules.getLookbackPeriod();
+    endTime = System.currentTimeMillis();
+    datasets.startTx();
+    for (int i = 0; i < counterCount; i++) {
+      long timestamp = endTime - lookback + lookback * i / counterCount;
+      for (int segment = 0; segment < SEGMENTS; segment++) {
+        writer.add(new TrafficEvent("66N_" + segment, timestamp, TrafficEvent.Type.VEHICLE, 1 + random.nextInt(20)));
+      }
+    }
+    writer.write(endTime);
+    datasets.commitTx();
+    writer.commit();
+    writer.clear();
+    // lookups only read, so they all share one transaction
+    datasets.startTx();
+    if (!SegmentState.decode(states.read(Bytes.toBytes(SEGMENT))).covers(lookback, endTime)) {
+      throw new IllegalStateException("Segment state does not cover the lookback period");
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    datasets.drop();
+  }
+
+  @Benchmark
+  public Condition scanCounters() {
+    return rules.evaluate(SegmentKeys.UNSALTED.read(table, dictionary.get(SEGMENT), SEGMENT,
+                                                    rules.getStartTime(endTime), endTime, null), null);
+  }
+
+  @Benchmark
+  public Condition readState() {
+    SegmentState state = SegmentState.decode(states.read(Bytes.toBytes(SEGMENT)));
+    return state.covers(rules.getLookbackPeriod(), endTime) ? rules.evaluate(state, endTime, null) : null;
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.dataset.DatasetProperties;
+import co.cask.cdap.api.dataset.DatasetSpecification;
+import co.cask.cdap.api.dataset.lib.CounterTimeseriesTable;
+import co.cask.cdap.api.dataset.lib.KeyValueTable;
+import co.cask.cdap.api.dataset.lib.TimeseriesTables;
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.data2.dataset2.lib.table.inmemory.InMemoryTable;
+import co.cask.cdap.data2.dataset2.lib.table.inmemory.InMemoryTableService;
+import org.apache.tephra.Transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The datasets of {@link TrafficApp} on CDAP in-memory tables, for the benchmarks of the write and read paths.
+ * Every transaction has the same write pointer, so that writes replace the single version of each cell, as after a
+ * compaction, rather than adding a version per transaction for as long as a benchmark runs.
+ */
+final class InMemoryDatasets {
+  private static final AtomicInteger INSTANCES = new AtomicInteger();
+  private static final long TX_ID = 1L;
+  private static final Transaction TX =
+    new Transaction(TX_ID, TX_ID, new long[0], new long[0], Transaction.NO_TX_IN_PROGRESS);
+
+  /** Prefix of the table names, so that the tables of each benchmark state are distinct */
+  private final String prefix = "benchmark" + INSTANCES.incrementAndGet() + ".";
+  private final List<String> tableNames = new ArrayList<String>();
+  private final List<InMemoryTable> tables = new ArrayList<InMemoryTable>();
+
+  CounterTimeseriesTable getTimeseriesTable(Resolution resolution) {
+    DatasetProperties props = TimeseriesTables.timeseriesTableProperties(resolution.getRowInterval(),
+                                                                         DatasetProperties.EMPTY);
+    DatasetSpecification spec = DatasetSpecification.builder(resolution.getTableName(),
+                                                             CounterTimeseriesTable.class.getName())
+      .properties(props.getProperties())
+      .build();
+    return new CounterTimeseriesTable(spec, getTable(resolution.getTableName()));
+  }
+
+  KeyValueTable getKeyValueTable(String name) {
+    return new KeyValueTable(name, getTable(name));
+  }
+
+  Table getTable(String name) {
+    String tableName = prefix + name;
+    InMemoryTableService.create(tableName);
+    tableNames.add(tableName);
+    InMemoryTable table = new InMemoryTable(tableName);
+    tables.add(table);
+    return table;
+  }
+
+  /**
+   * Starts a transaction on all tables.
+   */
+  void startTx() {
+    for (InMemoryTable table : tables) {
+      table.startTx(TX);
+    }
+  }
+
+  /**
+   * Commits the transaction started by {@link #startTx()}, persisting the writes of all tables.
+   */
+  void commitTx() throws Exception {
+    for (int i = 0; i < tables.size(); i++) {
+      if (!tables.get(i).commitTx()) {
+        throw new IllegalStateException("Failed to commit table " + tableNames.get(i));
+      }
+    }
+    for (InMemoryTable table : tables) {
+      table.postTxCommit();
+    }
+  }
+
+  /**
+   * Drops all tables.
+   */
+  void drop() {
+    for (String tableName : tableNames) {
+      InMemoryTableService.drop(tableName);
+    }
+    tableNames.clear();
+    tables.clear();
+  }
+}
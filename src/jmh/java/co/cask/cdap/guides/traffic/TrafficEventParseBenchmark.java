@@ -0,0 +1,98 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks decoding of single stream event bodies, as done by {@link TrafficEventParser} for every event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrafficEventParseBenchmark {
+  private final TrafficEventDecoder decoder = new TrafficEventDecoder();
+  private final List<TrafficEvent> binaryEvents = new ArrayList<TrafficEvent>();
+
+  private ByteBuffer valid;
+  private ByteBuffer malformed;
+  private ByteBuffer now;
+  private ByteBuffer binary;
+
+  @Setup
+  public void setUp() {
+    valid = toBuffer("66N_1, 2014-11-10 10:15:30, VEHICLE, 10");
+    malformed = toBuffer("66N_1, 2014-11-10 10:15:30, VEHICLES, 10");
+    now = toBuffer("66N_1, now, ACCIDENT, 1");
+    binary = ByteBuffer.wrap(BinaryTrafficEventCodec.encode(ImmutableList.of(
+      new TrafficEvent("66N_1", 1415614530000L, TrafficEvent.Type.VEHICLE, 10))));
+  }
+
+  @Benchmark
+  public TrafficEvent decodeValid() {
+    return decoder.decode(valid);
+  }
+
+  /**
+   * Malformed records are logged, so this includes the cost of the logger when it is disabled or not bound.
+   */
+  @Benchmark
+  public TrafficEvent decodeMalformed() {
+    return decoder.decode(malformed);
+  }
+
+  @Benchmark
+  public TrafficEvent decodeNow() {
+    return decoder.decode(now);
+  }
+
+  @Benchmark
+  public int decodeBinary() {
+    BinaryTrafficEventCodec.decode(binary, binaryEvents);
+    int size = binaryEvents.size();
+    binaryEvents.clear();
+    return size;
+  }
+
+  @Benchmark
+  public TrafficEvent createEvent() {
+    return new TrafficEvent("66N_1", 1415614530000L, TrafficEvent.Type.VEHICLE, 10);
+  }
+
+  private static ByteBuffer toBuffer(String record) {
+    return ByteBuffer.wrap(record.getBytes(Charsets.UTF_8));
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.dataset.lib.CounterTimeseriesTable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the write path of {@link TrafficEventSink} for one batch of events and its transaction, with the
+ * {@link SegmentWriter} used by the sink, against CDAP in-memory tables: the batch is summed per counter, counters
+ * are incremented in the raw and rollup tables, and the state of each road segment in the batch is read, updated,
+ * evaluated and written again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrafficEventSinkBenchmark {
+  /** Number of distinct road segments that the events of a batch are spread over */
+  @Param({"1", "10", "100"})
+  public int segmentCount;
+
+  /** Number of batches with distinct events, cycled through by the benchmark */
+  private static final int BATCHES = 64;
+
+  private InMemoryDatasets datasets;
+  private SegmentWriter writer;
+  private TrafficEvent[][] batches;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(0);
+    long start = System.currentTimeMillis() - ConditionRules.DEFAULT_LOOKBACK_PERIOD;
+    batches = new TrafficEvent[BATCHES][TrafficEventSink.BATCH_SIZE];
+    for (int i = 0; i < BATCHES; i++) {
+      for (int j = 0; j < TrafficEventSink.BATCH_SIZE; j++) {
+        // one second sensor timestamps within the default lookback period
+        long timestamp = start + random.nextInt((int) (ConditionRules.DEFAULT_LOOKBACK_PERIOD / 1000)) * 1000L;
+        TrafficEvent.Type type = random.nextInt(100) == 0 ? TrafficEvent.Type.ACCIDENT : TrafficEvent.Type.VEHICLE;
+        batches[i][j] = new TrafficEvent("66N_" + random.nextInt(segmentCount), timestamp, type,
+                                         1 + random.nextInt(20));
+      }
+    }
+    datasets = new InMemoryDatasets();
+    Map<Resolution, CounterTimeseriesTable> tables = new EnumMap<Resolution, CounterTimeseriesTable>(Resolution.class);
+    for (Resolution resolution : Resolution.values()) {
+      tables.put(resolution, datasets.getTimeseriesTable(resolution));
+    }
+    SegmentDictionary dictionary =
+      new SegmentDictionary(datasets.getTable(TrafficApp.SEGMENT_DICTIONARY_NAME),
+                            SegmentDictionary.createCache(SegmentDictionary.DEFAULT_CACHE_SIZE));
+    writer = new SegmentWriter(tables, datasets.getKeyValueTable(TrafficApp.SEGMENT_REGISTRY_NAME),
+                               datasets.getKeyValueTable(TrafficApp.SEGMENT_STATE_TABLE_NAME), dictionary,
+                               SegmentKeys.UNSALTED, new LegacyCounters(new TrafficApp.TrafficConfig()),
+                               ConditionRuleSet.fromArguments(new HashMap<String, String>()),
+                               ConditionRules.DEFAULT_LOOKBACK_PERIOD);
+  }
+
+  @TearDown
+  public void tearDown() {
+    datasets.drop();
+  }
+
+  @Benchmark
+  public int processBatch() throws Exception {
+    TrafficEvent[] batch = batches[next];
+    next = (next + 1) % BATCHES;
+    datasets.startTx();
+    try {
+      for (TrafficEvent event : batch) {
+        writer.add(event);
+      }
+      int increments = writer.write(System.currentTimeMillis());
+      datasets.commitTx();
+      writer.commit();
+      return increments;
+    } finally {
+      writer.clear();
+    }
+  }
+}
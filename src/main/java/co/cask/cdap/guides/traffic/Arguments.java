@@ -0,0 +1,58 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import java.util.Map;
+
+/**
+ * Helpers for reading optional numeric settings from program runtime arguments.
+ */
+final class Arguments {
+
+  private Arguments() {
+  }
+
+  /**
+   * Returns the value of the given argument as an int, or the default value if it is not set.
+   *
+   * @throws IllegalArgumentException if the argument is set but is not a valid int
+   */
+  static int getInt(Map<String, String> args, String key, int defaultValue) {
+    long value = getLong(args, key, defaultValue);
+    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(String.format("Argument '%s' is out of range: %d", key, value));
+    }
+    return (int) value;
+  }
+
+  /**
+   * Returns the value of the given argument as a long, or the default value if it is not set.
+   *
+   * @throws IllegalArgumentException if the argument is set but is not a valid long
+   */
+  static long getLong(Map<String, String> args, String key, long defaultValue) {
+    String value = args.get(key);
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(String.format("Argument '%s' must be a number, got: %s", key, value));
+    }
+  }
+}
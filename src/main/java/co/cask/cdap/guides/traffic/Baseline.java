@@ -0,0 +1,203 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import com.google.common.base.Charsets;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Historical profile of the vehicle counts of a road segment, computed by {@link TrafficBaselineMapReduce}: for each
+ * hour of the week, in the time zone of the road segment, the number of buckets of
+ * {@link SegmentState#BUCKET_INTERVAL} with vehicle counts, the mean of their sums, and estimates of the quantiles
+ * in {@link #QUANTILES}, so that they compare to the bucket sums evaluated by {@link ConditionRules}.  The profile
+ * of a road segment is stored as a single value of a few kilobytes, so that it can be read with one point lookup.
+ */
+final class Baseline {
+  /** Quantiles, in percent, stored for each hour of the week */
+  static final int[] QUANTILES = { 50, 90, 99 };
+
+  static final int SLOTS = 7 * 24;
+
+  private static final byte VERSION = 1;
+  /** Encoded size of a single slot: number of counters, mean and quantiles */
+  private static final int SLOT_SIZE = 4 + 4 + 4 * QUANTILES.length;
+  private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+  private static final long DAY = TimeUnit.DAYS.toMillis(1);
+  /** The epoch was a Thursday, which is day 3 of a week starting on Monday */
+  private static final int EPOCH_DAY_OF_WEEK = 3;
+
+  private final TimeZone timeZone;
+  private final long computed;
+  private final int[] samples;
+  private final float[] means;
+  /** Quantile estimates by slot, then by index in {@link #QUANTILES} */
+  private final int[][] quantiles;
+
+  private Baseline(TimeZone timeZone, long computed, int[] samples, float[] means, int[][] quantiles) {
+    this.timeZone = timeZone;
+    this.computed = computed;
+    this.samples = samples;
+    this.means = means;
+    this.quantiles = quantiles;
+  }
+
+  /**
+   * Returns the index of the given quantile in {@link #QUANTILES}, or -1 if it is not stored.
+   */
+  static int getQuantileIndex(int quantile) {
+    for (int i = 0; i < QUANTILES.length; i++) {
+      if (QUANTILES[i] == quantile) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the hour of the week of a timestamp in a time zone, where 0 is Monday from midnight to 1am.
+   */
+  static int getSlot(long timestamp, TimeZone timeZone) {
+    long local = timestamp + timeZone.getOffset(timestamp);
+    long day = local >= 0 ? local / DAY : (local + 1) / DAY - 1;
+    int dayOfWeek = (int) (((day + EPOCH_DAY_OF_WEEK) % 7 + 7) % 7);
+    return dayOfWeek * 24 + (int) ((local - day * DAY) / HOUR);
+  }
+
+  /**
+   * Returns the time the baseline was computed.
+   */
+  long getComputed() {
+    return computed;
+  }
+
+  int getSamples(int slot) {
+    return samples[slot];
+  }
+
+  float getMean(int slot) {
+    return means[slot];
+  }
+
+  /**
+   * Returns the estimated quantile of the bucket sums of vehicle counts at the hour of the week of the given
+   * timestamp, or the default value if there were fewer than the given number of buckets at that hour.
+   *
+   * @param quantileIndex the index of the quantile in {@link #QUANTILES}
+   */
+  long getQuantile(long timestamp, int quantileIndex, int minSamples, long defaultValue) {
+    int slot = getSlot(timestamp, timeZone);
+    return samples[slot] < minSamples ? defaultValue : quantiles[slot][quantileIndex];
+  }
+
+  byte[] encode() {
+    byte[] zone = timeZone.getID().getBytes(Charsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.allocate(1 + 2 + zone.length + 8 + SLOTS * SLOT_SIZE);
+    buffer.put(VERSION).putShort((short) zone.length).put(zone).putLong(computed);
+    for (int slot = 0; slot < SLOTS; slot++) {
+      buffer.putInt(samples[slot]).putFloat(means[slot]);
+      for (int quantile : quantiles[slot]) {
+        buffer.putInt(quantile);
+      }
+    }
+    return buffer.array();
+  }
+
+  /**
+   * Decodes a baseline encoded by {@link #encode()}.
+   *
+   * @throws IllegalArgumentException if the bytes are not a valid encoded baseline
+   */
+  static Baseline decode(byte[] bytes) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    if (bytes.length < 1 + 2 || buffer.get() != VERSION) {
+      throw new IllegalArgumentException("Unsupported baseline encoding");
+    }
+    int zoneLength = buffer.getShort();
+    if (zoneLength < 0 || buffer.remaining() != zoneLength + 8 + SLOTS * SLOT_SIZE) {
+      throw new IllegalArgumentException("Truncated baseline of " + bytes.length + " bytes");
+    }
+    byte[] zone = new byte[zoneLength];
+    buffer.get(zone);
+    long computed = buffer.getLong();
+    int[] samples = new int[SLOTS];
+    float[] means = new float[SLOTS];
+    int[][] quantiles = new int[SLOTS][QUANTILES.length];
+    for (int slot = 0; slot < SLOTS; slot++) {
+      samples[slot] = buffer.getInt();
+      means[slot] = buffer.getFloat();
+      for (int i = 0; i < QUANTILES.length; i++) {
+        quantiles[slot][i] = buffer.getInt();
+      }
+    }
+    return new Baseline(TimeZone.getTimeZone(new String(zone, Charsets.UTF_8)), computed, samples, means, quantiles);
+  }
+
+  /**
+   * Computes a baseline from the vehicle counts of a road segment, which are summed into buckets of
+   * {@link SegmentState#BUCKET_INTERVAL} and then added to a {@link QuantileSketch} per hour of the week.
+   */
+  static final class Builder {
+    private final TimeZone timeZone;
+    /** Sum of the vehicle counts of each bucket, by bucket start */
+    private final Map<Long, Long> buckets = new HashMap<Long, Long>();
+
+    Builder(TimeZone timeZone) {
+      this.timeZone = timeZone;
+    }
+
+    void add(long timestamp, long count) {
+      long bucket = SegmentState.getBucket(timestamp);
+      Long sum = buckets.get(bucket);
+      buckets.put(bucket, (sum == null ? 0L : sum) + count);
+    }
+
+    boolean isEmpty() {
+      return buckets.isEmpty();
+    }
+
+    Baseline build(long computed) {
+      QuantileSketch[] sketches = new QuantileSketch[SLOTS];
+      for (Map.Entry<Long, Long> bucket : buckets.entrySet()) {
+        int slot = getSlot(bucket.getKey(), timeZone);
+        if (sketches[slot] == null) {
+          sketches[slot] = new QuantileSketch();
+        }
+        sketches[slot].add(Math.max(0, bucket.getValue()));
+      }
+      int[] samples = new int[SLOTS];
+      float[] means = new float[SLOTS];
+      int[][] quantiles = new int[SLOTS][QUANTILES.length];
+      for (int slot = 0; slot < SLOTS; slot++) {
+        QuantileSketch sketch = sketches[slot];
+        if (sketch == null) {
+          continue;
+        }
+        samples[slot] = (int) Math.min(Integer.MAX_VALUE, sketch.getCount());
+        means[slot] = (float) sketch.getMean();
+        for (int i = 0; i < QUANTILES.length; i++) {
+          quantiles[slot][i] = (int) Math.min(Integer.MAX_VALUE, sketch.getQuantile(QUANTILES[i] / 100.0));
+        }
+      }
+      return new Baseline(timeZone, computed, samples, means, quantiles);
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import com.google.common.base.Charsets;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Compact binary format for traffic sensor records, for high-volume producers.  A stream event in this format
+ * starts with a {@link #MAGIC} byte, which can never start a UTF-8 text record, and a {@link #VERSION} byte, followed
+ * by one or more records of:
+ * <ul>
+ *   <li>the timestamp, in milliseconds since the epoch, as 8 bytes in big-endian order;</li>
+ *   <li>the ordinal of the {@link TrafficEvent.Type}, as a single byte;</li>
+ *   <li>the count, as a zig-zag encoded varint; and</li>
+ *   <li>the length of the road segment ID in bytes, as a varint, followed by the ID in UTF-8.</li>
+ * </ul>
+ * Varints use 7 bits per byte, least significant group first, with the high bit set on all but the last byte.
+ */
+public final class BinaryTrafficEventCodec {
+  public static final byte MAGIC = (byte) 0xFE;
+  public static final byte VERSION = 1;
+
+  private static final TrafficEvent.Type[] TYPES = TrafficEvent.Type.values();
+  /** Maximum length of a road segment ID in bytes */
+  private static final int MAX_SEGMENT_LENGTH = 1024;
+
+  private BinaryTrafficEventCodec() {
+  }
+
+  /**
+   * Returns whether the remaining bytes of the given buffer are in the binary format.
+   */
+  public static boolean isBinary(ByteBuffer body) {
+    return body.remaining() > 0 && body.get(body.position()) == MAGIC;
+  }
+
+  /**
+   * Encodes the given events into the body of a single stream event.
+   */
+  public static byte[] encode(Iterable<TrafficEvent> events) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(MAGIC);
+    out.write(VERSION);
+    for (TrafficEvent event : events) {
+      long timestamp = event.getTimestamp();
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        out.write((int) (timestamp >>> shift));
+      }
+      out.write(event.getType().ordinal());
+      int count = event.getCount();
+      writeVarint(out, (count << 1) ^ (count >> 31));
+      byte[] segmentId = event.getRoadSegmentId().getBytes(Charsets.UTF_8);
+      writeVarint(out, segmentId.length);
+      out.write(segmentId, 0, segmentId.length);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Decodes all records from the remaining bytes of the given buffer, without changing its position.  Either all
+   * records are added to the given list, or none of them are.
+   *
+   * @throws IllegalArgumentException if the bytes are not a valid encoding
+   */
+  public static void decode(ByteBuffer body, List<TrafficEvent> events) {
+    int limit = body.limit();
+    int pos = body.position();
+    if (limit - pos < 2 || body.get(pos) != MAGIC) {
+      throw new IllegalArgumentException("Not a binary traffic event");
+    }
+    if (body.get(pos + 1) != VERSION) {
+      throw new IllegalArgumentException("Unsupported binary traffic event version " + body.get(pos + 1));
+    }
+    pos += 2;
+
+    if (pos == limit) {
+      throw new IllegalArgumentException("Binary traffic event without records");
+    }
+    int size = events.size();
+    try {
+      while (pos < limit) {
+        // timestamp, type, count and segment ID length take at least 11 bytes
+        if (limit - pos < 8 + 1 + 1 + 1) {
+          throw new IllegalArgumentException("Truncated record at offset " + pos);
+        }
+        long timestamp = body.getLong(pos);
+        pos += 8;
+        int typeOrdinal = body.get(pos++);
+        if (typeOrdinal < 0 || typeOrdinal >= TYPES.length) {
+          throw new IllegalArgumentException("Invalid type " + typeOrdinal + " at offset " + (pos - 1));
+        }
+        long varint = readVarint(body, pos, limit);
+        pos = (int) (varint >>> 32);
+        int zigzag = (int) varint;
+        int count = (zigzag >>> 1) ^ -(zigzag & 1);
+        varint = readVarint(body, pos, limit);
+        pos = (int) (varint >>> 32);
+        int length = (int) varint;
+        if (length <= 0 || length > MAX_SEGMENT_LENGTH || length > limit - pos) {
+          throw new IllegalArgumentException("Invalid road segment ID length " + length + " at offset " + pos);
+        }
+        String segmentId = TimestampDecoder.decodeString(body, pos, pos + length);
+        pos += length;
+        events.add(new TrafficEvent(segmentId, timestamp, TYPES[typeOrdinal], count));
+      }
+    } catch (IllegalArgumentException e) {
+      events.subList(size, events.size()).clear();
+      throw e;
+    }
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  /**
+   * Reads a 32-bit varint starting at the given position.
+   *
+   * @return the position after the varint in the upper 32 bits, and the value in the lower 32 bits
+   */
+  private static long readVarint(ByteBuffer body, int pos, int limit) {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      if (pos == limit) {
+        throw new IllegalArgumentException("Truncated varint at offset " + pos);
+      }
+      byte b = body.get(pos++);
+      value |= (b & 0x7F) << shift;
+      if (b >= 0) {
+        return ((long) pos << 32) | (value & 0xFFFFFFFFL);
+      }
+    }
+    throw new IllegalArgumentException("Varint longer than 5 bytes at offset " + pos);
+  }
+}
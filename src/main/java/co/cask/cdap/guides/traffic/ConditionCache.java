@@ -0,0 +1,135 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.metrics.Metrics;
+import co.cask.cdap.guides.traffic.TrafficConditionService.Condition;
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, read-through cache of computed road segment conditions, with a short time-to-live and least recently
+ * used eviction.  Concurrent misses for the same road segment share a single computation.  Cache hits, misses and
+ * evictions are reported through {@link Metrics}.  Instances are thread-safe.
+ */
+final class ConditionCache {
+  static final String HIT = "condition.cache.hit";
+  static final String MISS = "condition.cache.miss";
+  static final String EVICTION = "condition.cache.eviction";
+
+  private final Cache<String, Condition> cache;
+  private final AtomicLong evictions = new AtomicLong();
+  private final int maxSize;
+  private final long ttlMillis;
+
+  ConditionCache(int maxSize, long ttlMillis) {
+    this.maxSize = maxSize;
+    this.ttlMillis = ttlMillis;
+    this.cache = CacheBuilder.newBuilder()
+      .maximumSize(maxSize)
+      .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+      .removalListener(new RemovalListener<String, Condition>() {
+        @Override
+        public void onRemoval(RemovalNotification<String, Condition> notification) {
+          if (notification.wasEvicted()) {
+            evictions.incrementAndGet();
+          }
+        }
+      })
+      .build();
+  }
+
+  /**
+   * Returns whether this cache was created with the given settings.
+   */
+  boolean hasSettings(int maxSize, long ttlMillis) {
+    return this.maxSize == maxSize && this.ttlMillis == ttlMillis;
+  }
+
+  /**
+   * Returns the cached condition of a road segment, or computes it with the given loader.
+   */
+  Condition get(String segmentId, Callable<Condition> loader, Metrics metrics) {
+    Condition condition = cache.getIfPresent(segmentId);
+    if (condition != null) {
+      metrics.count(HIT, 1);
+    } else {
+      metrics.count(MISS, 1);
+      try {
+        condition = cache.get(segmentId, loader);
+      } catch (ExecutionException e) {
+        throw Throwables.propagate(e.getCause());
+      } catch (UncheckedExecutionException e) {
+        throw Throwables.propagate(e.getCause());
+      }
+    }
+    reportEvictions(metrics);
+    return condition;
+  }
+
+  /**
+   * Returns the conditions of the given road segments, keyed and sorted by road segment ID, computing the ones that
+   * are not cached with a single call to the given loader.  Unlike {@link #get}, concurrent misses for the same road
+   * segment are not shared, so that the loader can read all of the missing road segments together.
+   */
+  Map<String, Condition> getAll(Set<String> segmentIds, Function<Set<String>, Map<String, Condition>> loader,
+                                Metrics metrics) {
+    Map<String, Condition> conditions = new TreeMap<String, Condition>();
+    Set<String> missing = new LinkedHashSet<String>();
+    for (String segmentId : segmentIds) {
+      Condition condition = cache.getIfPresent(segmentId);
+      if (condition != null) {
+        conditions.put(segmentId, condition);
+      } else {
+        missing.add(segmentId);
+      }
+    }
+    if (!conditions.isEmpty()) {
+      metrics.count(HIT, conditions.size());
+    }
+    if (!missing.isEmpty()) {
+      metrics.count(MISS, missing.size());
+      Map<String, Condition> loaded = loader.apply(missing);
+      cache.putAll(loaded);
+      conditions.putAll(loaded);
+    }
+    reportEvictions(metrics);
+    return conditions;
+  }
+
+  private void reportEvictions(Metrics metrics) {
+    // evictions happen on whichever thread touches the cache, so report them from the request threads
+    long evicted = evictions.getAndSet(0);
+    if (evicted > 0) {
+      metrics.count(EVICTION, (int) evicted);
+    }
+  }
+}
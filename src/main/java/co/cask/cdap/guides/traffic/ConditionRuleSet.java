@@ -0,0 +1,113 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import com.google.common.base.Splitter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Selects the {@link ConditionRules} for a road segment, based on segment classes configured through runtime
+ * arguments, so that rules can be changed without redeploying the application:
+ * <ul>
+ *   <li>{@code condition.congested.threshold}, {@code condition.congested.red.entries},
+ *       {@code condition.accident.threshold}, {@code condition.lookback.ms} and {@code condition.baseline.quantile}
+ *       set the default rules;</li>
+ *   <li>{@code condition.classes} is a comma-separated list of segment class names;</li>
+ *   <li>{@code condition.class.<name>.prefixes} is a comma-separated list of road segment ID prefixes that belong
+ *       to the class, where the longest matching prefix wins; and</li>
+ *   <li>{@code condition.class.<name>.congested.threshold} and so on override the default rules for the class.</li>
+ * </ul>
+ */
+public final class ConditionRuleSet {
+  static final String PREFIX = "condition.";
+  static final String CLASSES = PREFIX + "classes";
+  static final String CLASS_PREFIX = PREFIX + "class.";
+  static final String PREFIXES = "prefixes";
+
+  private static final Splitter LIST_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+  /**
+   * Rules that apply to road segments with IDs starting with a given prefix.
+   */
+  private static final class PrefixRules {
+    private final String prefix;
+    private final ConditionRules rules;
+
+    private PrefixRules(String prefix, ConditionRules rules) {
+      this.prefix = prefix;
+      this.rules = rules;
+    }
+  }
+
+  private final ConditionRules defaultRules;
+  /** Ordered from the longest to the shortest prefix */
+  private final List<PrefixRules> classRules;
+
+  private ConditionRuleSet(ConditionRules defaultRules, List<PrefixRules> classRules) {
+    this.defaultRules = defaultRules;
+    this.classRules = classRules;
+  }
+
+  /**
+   * Creates the rule set configured by the given runtime arguments.
+   *
+   * @throws IllegalArgumentException if any of the arguments are invalid
+   */
+  public static ConditionRuleSet fromArguments(Map<String, String> args) {
+    ConditionRules defaultRules = ConditionRules.fromArguments(args, PREFIX, ConditionRules.DEFAULT);
+    List<PrefixRules> classRules = new ArrayList<PrefixRules>();
+    String classes = args.get(CLASSES);
+    if (classes != null) {
+      for (String className : LIST_SPLITTER.split(classes)) {
+        String classPrefix = CLASS_PREFIX + className + ".";
+        ConditionRules rules = ConditionRules.fromArguments(args, classPrefix, defaultRules);
+        String prefixes = args.get(classPrefix + PREFIXES);
+        if (prefixes == null) {
+          throw new IllegalArgumentException(String.format("Missing argument '%s' for segment class '%s'",
+                                                           classPrefix + PREFIXES, className));
+        }
+        for (String prefix : LIST_SPLITTER.split(prefixes)) {
+          classRules.add(new PrefixRules(prefix, rules));
+        }
+      }
+    }
+    Collections.sort(classRules, new Comparator<PrefixRules>() {
+      @Override
+      public int compare(PrefixRules first, PrefixRules second) {
+        return second.prefix.length() - first.prefix.length();
+      }
+    });
+    return new ConditionRuleSet(defaultRules, classRules);
+  }
+
+  /**
+   * Returns the rules for the given road segment.
+   */
+  public ConditionRules getRules(String roadSegmentId) {
+    for (PrefixRules prefixRules : classRules) {
+      if (roadSegmentId.startsWith(prefixRules.prefix)) {
+        return prefixRules.rules;
+      }
+    }
+    return defaultRules;
+  }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.dataset.lib.CounterTimeseriesTable;
+import co.cask.cdap.guides.traffic.TrafficConditionService.Condition;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * Thresholds used to determine the {@link Condition} of a road segment from its recent timeseries counters:
+ * <ul>
+ *   <li>if any accident bucket exceeds the accident threshold, the condition is RED;</li>
+ *   <li>if at least {@code congestedRedEntries} vehicle buckets exceed the congested threshold, it is RED;</li>
+ *   <li>if any vehicle bucket exceeds the congested threshold, it is YELLOW;</li>
+ *   <li>otherwise, it is GREEN.</li>
+ * </ul>
+ * Counts are summed by type into the buckets of {@link SegmentState#BUCKET_INTERVAL}, and each bucket is an entry,
+ * whether the counts come from the timeseries counters or from the {@link SegmentState}.  All the buckets that
+ * overlap the lookback period before the current time are considered, including the whole of the first one.  If a
+ * baseline quantile is set and a {@link Baseline} is given, the congested threshold of each vehicle bucket is instead
+ * that quantile of the historical bucket sums of the road segment at the same hour of the week, as long as there are
+ * enough of them.
+ */
+public final class ConditionRules {
+  /** Threshold for number of vehicles in a time period, above which the road is considered congested */
+  public static final long DEFAULT_CONGESTED_THRESHOLD = 100;
+  /** Number of congested time periods at which the road is considered RED rather than YELLOW */
+  public static final int DEFAULT_CONGESTED_RED_ENTRIES = 2;
+  /** Threshold for the number of accidents in a time period, above which the road is considered RED */
+  public static final long DEFAULT_ACCIDENT_THRESHOLD = 0;
+  /** How far to look back for the traffic patterns */
+  public static final long DEFAULT_LOOKBACK_PERIOD = TrafficApp.TIMESERIES_INTERVAL * 3;
+
+  static final String CONGESTED_THRESHOLD = "congested.threshold";
+  static final String CONGESTED_RED_ENTRIES = "congested.red.entries";
+  static final String ACCIDENT_THRESHOLD = "accident.threshold";
+  static final String LOOKBACK_PERIOD = "lookback.ms";
+  static final String BASELINE_QUANTILE = "baseline.quantile";
+
+  /** Minimum number of historical buckets at an hour of the week for the baseline to be used */
+  static final int BASELINE_MIN_SAMPLES = 10;
+  /** Hours of the week start at multiples of 15 minutes in every time zone */
+  private static final long BASELINE_SLOT_ALIGNMENT = TimeUnit.MINUTES.toMillis(15);
+
+  public static final ConditionRules DEFAULT = new ConditionRules(DEFAULT_CONGESTED_THRESHOLD,
+                                                                  DEFAULT_CONGESTED_RED_ENTRIES,
+                                                                  DEFAULT_ACCIDENT_THRESHOLD,
+                                                                  DEFAULT_LOOKBACK_PERIOD);
+
+  private final long congestedThreshold;
+  private final int congestedRedEntries;
+  private final long accidentThreshold;
+  private final long lookbackPeriod;
+  /** Baseline quantile in percent, or 0 to always use the congested threshold */
+  private final int baselineQuantile;
+  private final int baselineQuantileIndex;
+
+  public ConditionRules(long congestedThreshold, int congestedRedEntries, long accidentThreshold,
+                        long lookbackPeriod) {
+    this(congestedThreshold, congestedRedEntries, accidentThreshold, lookbackPeriod, 0);
+  }
+
+  /**
+   * @param baselineQuantile the quantile of the {@link Baseline} used as congested threshold, one of
+   *                         {@link Baseline#QUANTILES}, or 0 to always use the congested threshold
+   */
+  public ConditionRules(long congestedThreshold, int congestedRedEntries, long accidentThreshold,
+                        long lookbackPeriod, int baselineQuantile) {
+    if (congestedRedEntries < 1) {
+      throw new IllegalArgumentException("Congested entries for RED must be at least 1, got: " + congestedRedEntries);
+    }
+    if (lookbackPeriod <= 0) {
+      throw new IllegalArgumentException("Lookback period must be positive, got: " + lookbackPeriod);
+    }
+    this.congestedThreshold = congestedThreshold;
+    this.congestedRedEntries = congestedRedEntries;
+    this.accidentThreshold = accidentThreshold;
+    this.lookbackPeriod = lookbackPeriod;
+    this.baselineQuantile = baselineQuantile;
+    this.baselineQuantileIndex = Baseline.getQuantileIndex(baselineQuantile);
+    if (baselineQuantile != 0 && baselineQuantileIndex < 0) {
+      throw new IllegalArgumentException("Baseline quantile must be 0 or one of "
+                                           + Arrays.toString(Baseline.QUANTILES) + ", got: " + baselineQuantile);
+    }
+  }
+
+  /**
+   * Creates rules from the arguments with the given key prefix, using the given rules for any that are not set.
+   */
+  static ConditionRules fromArguments(Map<String, String> args, String prefix, ConditionRules defaults) {
+    return new ConditionRules(
+      Arguments.getLong(args, prefix + CONGESTED_THRESHOLD, defaults.congestedThreshold),
+      Arguments.getInt(args, prefix + CONGESTED_RED_ENTRIES, defaults.congestedRedEntries),
+      Arguments.getLong(args, prefix + ACCIDENT_THRESHOLD, defaults.accidentThreshold),
+      Arguments.getLong(args, prefix + LOOKBACK_PERIOD, defaults.lookbackPeriod),
+      Arguments.getInt(args, prefix + BASELINE_QUANTILE, defaults.baselineQuantile));
+  }
+
+  public long getCongestedThreshold() {
+    return congestedThreshold;
+  }
+
+  public int getCongestedRedEntries() {
+    return congestedRedEntries;
+  }
+
+  public long getAccidentThreshold() {
+    return accidentThreshold;
+  }
+
+  public long getLookbackPeriod() {
+    return lookbackPeriod;
+  }
+
+  public int getBaselineQuantile() {
+    return baselineQuantile;
+  }
+
+  /**
+   * Returns whether conditions are evaluated against the {@link Baseline} of the road segment, if it has one.
+   */
+  public boolean usesBaseline() {
+    return baselineQuantile != 0;
+  }
+
+  /**
+   * Determines the condition from the counters of all types for a road segment, in a single pass.  Iteration
+   * stops as soon as the condition is known to be RED.  The counters must start at the bucket of the start of the
+   * lookback period, see {@link #getStartTime(long)}.
+   */
+  public Condition evaluate(Iterator<CounterTimeseriesTable.Counter> counters) {
+    return evaluate(counters, null);
+  }
+
+  /**
+   * Determines the condition from the counters of all types for a road segment, in a single pass, comparing vehicle
+   * counts to the given baseline if the rules use one.  Iteration stops as soon as the condition is known to be RED.
+   * The counters must start at the bucket of the start of the lookback period, see {@link #getStartTime(long)}.
+   *
+   * @param baseline the baseline of the road segment, or null if it has none
+   */
+  public Condition evaluate(Iterator<CounterTimeseriesTable.Counter> counters, @Nullable Baseline baseline) {
+    // counts are positive, so the sum of a bucket only crosses a threshold once, upwards
+    Map<Long, long[]> buckets = new HashMap<Long, long[]>();
+    int congestedEntries = 0;
+    while (counters.hasNext()) {
+      CounterTimeseriesTable.Counter counter = counters.next();
+      TrafficEvent.Type type = SegmentKeys.getType(counter);
+      if (type == null) {
+        continue;
+      }
+      long bucket = SegmentState.getBucket(counter.getTimestamp());
+      long[] sums = buckets.get(bucket);
+      if (sums == null) {
+        sums = new long[TrafficEvent.Type.values().length];
+        buckets.put(bucket, sums);
+      }
+      int before = congestedEntries(type, bucket, sums[type.ordinal()], baseline);
+      sums[type.ordinal()] += counter.getValue();
+      int entries = congestedEntries(type, bucket, sums[type.ordinal()], baseline);
+      if (entries < 0 || (congestedEntries += entries - before) >= congestedRedEntries) {
+        return Condition.RED;
+      }
+    }
+    return congestedEntries > 0 ? Condition.YELLOW : Condition.GREEN;
+  }
+
+  /**
+   * Determines the condition from the materialized state of a road segment, for the lookback period before the
+   * given end time.  The state must {@link SegmentState#covers cover} the lookback period.
+   */
+  public Condition evaluate(SegmentState state, long endTime) {
+    return evaluate(state, endTime, null);
+  }
+
+  /**
+   * Determines the condition from the materialized state of a road segment, for the lookback period before the
+   * given end time, comparing vehicle counts to the given baseline if the rules use one.  The state must
+   * {@link SegmentState#covers cover} the lookback period.
+   *
+   * @param baseline the baseline of the road segment, or null if it has none
+   */
+  public Condition evaluate(SegmentState state, long endTime, @Nullable Baseline baseline) {
+    long startTime = getStartTime(endTime);
+    int congestedEntries = 0;
+    for (SegmentState.Cell cell : state.getCells()) {
+      if (cell.getTimestamp() < startTime || cell.getTimestamp() > endTime) {
+        continue;
+      }
+      int entries = congestedEntries(cell.getType(), cell.getTimestamp(), cell.getValue(), baseline);
+      if (entries < 0 || (congestedEntries += entries) >= congestedRedEntries) {
+        return Condition.RED;
+      }
+    }
+    return congestedEntries > 0 ? Condition.YELLOW : Condition.GREEN;
+  }
+
+  /**
+   * Returns the earliest time after the end time at which the condition {@link #evaluate(SegmentState, long,
+   * Baseline) evaluated} from the state can change without any new counters: when the bucket of a cell no longer
+   * overlaps the lookback period, when a cell with a later bucket enters it, or, if the rules use a baseline, when
+   * the hour of the week may change in any time zone.  Returns {@link Long#MAX_VALUE} if only new counters can
+   * change it.
+   */
+  public long getNextChange(SegmentState state, long endTime) {
+    long nextChange = Long.MAX_VALUE;
+    if (usesBaseline()) {
+      nextChange = Resolution.floor(endTime, BASELINE_SLOT_ALIGNMENT) + BASELINE_SLOT_ALIGNMENT;
+    }
+    long startTime = getStartTime(endTime);
+    for (SegmentState.Cell cell : state.getCells()) {
+      if (cell.getTimestamp() > endTime) {
+        nextChange = Math.min(nextChange, cell.getTimestamp());
+      } else if (cell.getTimestamp() >= startTime) {
+        nextChange = Math.min(nextChange, cell.getTimestamp() + SegmentState.BUCKET_INTERVAL + lookbackPeriod);
+      }
+    }
+    return nextChange;
+  }
+
+  /**
+   * Returns the start of the first bucket that overlaps the lookback period before the given end time.
+   */
+  public long getStartTime(long endTime) {
+    return SegmentState.getBucket(endTime - lookbackPeriod);
+  }
+
+  /**
+   * Returns 1 if the counter is a congested vehicle count, 0 if it does not affect the condition, or -1 if it
+   * makes the condition RED on its own.
+   */
+  private int congestedEntries(@Nullable TrafficEvent.Type type, long timestamp, long value,
+                               @Nullable Baseline baseline) {
+    if (type == TrafficEvent.Type.ACCIDENT) {
+      return value > accidentThreshold ? -1 : 0;
+    }
+    if (type == TrafficEvent.Type.VEHICLE) {
+      long threshold = baseline == null || baselineQuantile == 0 ? congestedThreshold
+        : baseline.getQuantile(timestamp, baselineQuantileIndex, BASELINE_MIN_SAMPLES, congestedThreshold);
+      return value > threshold ? 1 : 0;
+    }
+    return 0;
+  }
+}
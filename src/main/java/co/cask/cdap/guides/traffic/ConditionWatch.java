@@ -0,0 +1,131 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.guides.traffic.TrafficConditionService.Condition;
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Splitter;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.annotation.Nullable;
+
+/**
+ * The road segments watched by a single long-poll request, with the condition the client last saw for each.  The
+ * condition of a road segment only needs to be evaluated again when its state was updated by new events, or when
+ * its next possible change without new events is due, see {@link ConditionRules#getNextChange}; in between, a poll
+ * only costs a point read of the state.  Instances are not thread-safe.
+ */
+final class ConditionWatch {
+  private static final Splitter ENTRY_SPLITTER = Splitter.on(CharMatcher.is(',').or(CharMatcher.WHITESPACE))
+    .trimResults().omitEmptyStrings();
+
+  private final Map<String, Segment> segments = new LinkedHashMap<String, Segment>();
+  /** Road segments whose condition differs from the one the client saw */
+  private final Map<String, Condition> changes = new TreeMap<String, Condition>();
+
+  /**
+   * Parses the watched road segments, separated by commas or whitespace, each optionally followed by {@code =} and
+   * the last condition seen by the client, such as {@code 66N_1=GREEN}.  A road segment without a condition is
+   * reported as changed as soon as its condition is evaluated.
+   *
+   * @throws IllegalArgumentException if a road segment ID is empty or a condition is unknown
+   */
+  static ConditionWatch parse(CharSequence entries) {
+    ConditionWatch watch = new ConditionWatch();
+    for (String entry : ENTRY_SPLITTER.split(entries)) {
+      int separator = entry.indexOf('=');
+      String segmentId = separator < 0 ? entry : entry.substring(0, separator);
+      if (segmentId.isEmpty()) {
+        throw new IllegalArgumentException("Missing road segment ID in '" + entry + "'");
+      }
+      Condition seen = null;
+      if (separator >= 0) {
+        try {
+          seen = Condition.valueOf(entry.substring(separator + 1));
+        } catch (IllegalArgumentException e) {
+          throw new IllegalArgumentException("Condition should be 'GREEN', 'YELLOW' or 'RED' in '" + entry + "'");
+        }
+      }
+      watch.segments.put(segmentId, new Segment(seen));
+    }
+    return watch;
+  }
+
+  int size() {
+    return segments.size();
+  }
+
+  Set<String> getSegmentIds() {
+    return Collections.unmodifiableSet(segments.keySet());
+  }
+
+  /**
+   * Returns whether the condition of a road segment must be evaluated again, because it never was, its state was
+   * updated since, or its next possible change is due.
+   *
+   * @param lastUpdate the time of the last update of the state of the road segment, or 0 if it has none
+   */
+  boolean isStale(String segmentId, long lastUpdate, long now) {
+    Segment segment = segments.get(segmentId);
+    return segment.lastUpdate != lastUpdate || now >= segment.nextCheck;
+  }
+
+  /**
+   * Records the condition evaluated for a road segment.
+   *
+   * @param lastUpdate the time of the last update of the state the condition was evaluated from
+   * @param nextCheck the time at which the condition must be evaluated again even if the state is not updated
+   */
+  void update(String segmentId, long lastUpdate, Condition condition, long nextCheck) {
+    Segment segment = segments.get(segmentId);
+    segment.lastUpdate = lastUpdate;
+    segment.nextCheck = nextCheck;
+    if (condition != segment.seen) {
+      changes.put(segmentId, condition);
+    } else {
+      changes.remove(segmentId);
+    }
+  }
+
+  boolean hasChanges() {
+    return !changes.isEmpty();
+  }
+
+  /**
+   * Returns the current condition of each road segment whose condition differs from the one the client saw.
+   */
+  Map<String, Condition> getChanges() {
+    return Collections.unmodifiableMap(changes);
+  }
+
+  private static final class Segment {
+    @Nullable
+    private final Condition seen;
+    /** Time of the last update of the state when the condition was last evaluated, or -1 if it never was */
+    private long lastUpdate = -1;
+    private long nextCheck;
+
+    private Segment(@Nullable Condition seen) {
+      this.seen = seen;
+    }
+  }
+}
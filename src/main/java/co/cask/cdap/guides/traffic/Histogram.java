@@ -0,0 +1,107 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.metrics.Metrics;
+
+import java.util.Map;
+
+/**
+ * Distribution of a value, such as a latency, reported through {@link Metrics} as one counter per bucket.  A value
+ * {@code v} is counted in {@code <name>.le.<bound>} for the smallest bound with {@code v <= bound}, or in
+ * {@code <name>.le.inf}; the number and sum of all values are counted in {@code <name>.count} and
+ * {@code <name>.sum}, so that the mean can be derived as well.
+ *
+ * <p>
+ * Timings can be sampled to reduce their overhead: with a sample interval of {@code n}, only every n-th call of
+ * {@link #start()} is timed.  The interval is set with the {@code metrics.sample.interval} runtime argument, and
+ * defaults to 1, timing every call.  Instances are not thread-safe.
+ * </p>
+ */
+final class Histogram {
+  static final String SAMPLE_INTERVAL = "metrics.sample.interval";
+
+  /** Bounds for latencies in microseconds */
+  static final long[] LATENCY_BOUNDS_US = { 10, 100, 1000, 10000, 100000, 1000000 };
+  /** Bounds for lags in milliseconds: 1 second, 10 seconds, 1 minute, 10 minutes and 1 hour */
+  static final long[] LAG_BOUNDS_MS = { 1000, 10000, 60000, 600000, 3600000 };
+  /** Bounds for numbers of operations */
+  static final long[] SIZE_BOUNDS = { 1, 10, 100, 1000, 10000 };
+
+  private static final long NOT_SAMPLED = -1;
+
+  private final long[] bounds;
+  private final String[] bucketNames;
+  private final String countName;
+  private final String sumName;
+  private final int sampleInterval;
+  private int calls;
+
+  Histogram(String name, long[] bounds, int sampleInterval) {
+    if (sampleInterval < 1) {
+      throw new IllegalArgumentException("Sample interval must be at least 1, got: " + sampleInterval);
+    }
+    this.bounds = bounds;
+    this.bucketNames = new String[bounds.length + 1];
+    for (int i = 0; i < bounds.length; i++) {
+      bucketNames[i] = name + ".le." + bounds[i];
+    }
+    bucketNames[bounds.length] = name + ".le.inf";
+    this.countName = name + ".count";
+    this.sumName = name + ".sum";
+    this.sampleInterval = sampleInterval;
+  }
+
+  /**
+   * Creates a histogram of latencies in microseconds, with the sample interval from the given runtime arguments.
+   */
+  static Histogram latency(String name, Map<String, String> args) {
+    return new Histogram(name, LATENCY_BOUNDS_US, Arguments.getInt(args, SAMPLE_INTERVAL, 1));
+  }
+
+  /**
+   * Returns the start time of a timing, to be passed to {@link #stop}, or a marker if this call is not sampled.
+   */
+  long start() {
+    if (sampleInterval > 1 && ++calls % sampleInterval != 0) {
+      return NOT_SAMPLED;
+    }
+    return System.nanoTime();
+  }
+
+  /**
+   * Records the time since the given start time, in microseconds, unless the timing was not sampled.
+   */
+  void stop(long startNanos, Metrics metrics) {
+    if (startNanos != NOT_SAMPLED) {
+      record((System.nanoTime() - startNanos) / 1000, metrics);
+    }
+  }
+
+  /**
+   * Records a single value.
+   */
+  void record(long value, Metrics metrics) {
+    int bucket = 0;
+    while (bucket < bounds.length && value > bounds[bucket]) {
+      bucket++;
+    }
+    metrics.count(bucketNames[bucket], 1);
+    metrics.count(countName, 1);
+    metrics.count(sumName, (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value)));
+  }
+}
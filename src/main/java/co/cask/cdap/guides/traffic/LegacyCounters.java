@@ -0,0 +1,137 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.dataset.lib.CounterTimeseriesTable;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Reads the counters of road segments under their legacy keys, see {@link SegmentKeys}, when assigning or
+ * migrating their integer IDs.  Reads are bounded by the retention of each timeseries table, since older counters
+ * have expired, and are split into ranges of at most {@link #MAX_READ_ROWS} rows, newest first, so that a table that
+ * keeps its counters forever can still be read back to the epoch.
+ */
+final class LegacyCounters {
+  /** Program property for the retention of each {@link Resolution}, see {@link #fromProperty} */
+  static final String RETENTIONS = "legacy.retentions";
+  /** Maximum number of rows read at once, well below the limit of a single read of a timeseries table */
+  static final long MAX_READ_ROWS = 100000;
+
+  private static final Resolution[] RESOLUTIONS = Resolution.values();
+
+  /** Retention in milliseconds of each resolution, by ordinal; zero or less for counters kept forever */
+  private final long[] retentions;
+
+  LegacyCounters(TrafficApp.TrafficConfig config) {
+    retentions = new long[RESOLUTIONS.length];
+    for (Resolution resolution : RESOLUTIONS) {
+      retentions[resolution.ordinal()] = config.getRetention(resolution);
+    }
+  }
+
+  private LegacyCounters(long[] retentions) {
+    this.retentions = retentions;
+  }
+
+  /**
+   * Creates the retentions from the value of the {@link #RETENTIONS} property of a program, where a missing value
+   * means the default retentions of {@link TrafficApp.TrafficConfig}.
+   */
+  static LegacyCounters fromProperty(@Nullable String property) {
+    if (property == null) {
+      return new LegacyCounters(new TrafficApp.TrafficConfig());
+    }
+    List<String> values = Lists.newArrayList(Splitter.on(',').trimResults().split(property));
+    if (values.size() != RESOLUTIONS.length) {
+      throw new IllegalArgumentException(String.format("Expected %d retentions in property '%s', got: %s",
+                                                       RESOLUTIONS.length, RETENTIONS, property));
+    }
+    long[] retentions = new long[RESOLUTIONS.length];
+    for (int i = 0; i < retentions.length; i++) {
+      retentions[i] = Long.parseLong(values.get(i));
+    }
+    return new LegacyCounters(retentions);
+  }
+
+  /**
+   * Returns the value of the {@link #RETENTIONS} property for these retentions.
+   */
+  String toProperty() {
+    return Joiner.on(',').join(Longs.asList(retentions));
+  }
+
+  /**
+   * Returns the earliest timestamp of the counters that have not expired at the given time.
+   */
+  long getStartTime(Resolution resolution, long now) {
+    long retention = retentions[resolution.ordinal()];
+    return retention > 0 ? Math.max(0L, now - retention) : 0L;
+  }
+
+  /**
+   * Returns whether a road segment has counters under its legacy key in any of the given tables.
+   *
+   * @param now the current time; counters are looked up to {@link SegmentKeyMigrationWorker#MAX_CLOCK_SKEW} after it
+   */
+  boolean exists(Map<Resolution, CounterTimeseriesTable> tables, String roadSegmentId, long now) {
+    for (Map.Entry<Resolution, CounterTimeseriesTable> table : tables.entrySet()) {
+      if (read(table.getValue(), table.getKey(), roadSegmentId, now).hasNext()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads the counters of a road segment under its legacy key in the table of a resolution, from the newest range
+   * of rows to the oldest.  Each range is only read once the previous one is exhausted.
+   *
+   * @param now the current time; counters are read up to {@link SegmentKeyMigrationWorker#MAX_CLOCK_SKEW} after it
+   */
+  Iterator<CounterTimeseriesTable.Counter> read(final CounterTimeseriesTable table, Resolution resolution,
+                                                String roadSegmentId, long now) {
+    final byte[] legacyKey = SegmentKeys.toLegacyKey(roadSegmentId);
+    final long start = getStartTime(resolution, now);
+    final long range = resolution.getRowInterval() * MAX_READ_ROWS;
+    final long end = now + SegmentKeyMigrationWorker.MAX_CLOCK_SKEW;
+    return Iterators.concat(new AbstractIterator<Iterator<CounterTimeseriesTable.Counter>>() {
+      private long rangeEnd = end;
+
+      @Override
+      protected Iterator<CounterTimeseriesTable.Counter> computeNext() {
+        if (rangeEnd < start) {
+          return endOfData();
+        }
+        long rangeStart = Math.max(start, rangeEnd - range + 1);
+        Iterator<CounterTimeseriesTable.Counter> counters = table.read(legacyKey, rangeStart, rangeEnd);
+        rangeEnd = rangeStart - 1;
+        return counters;
+      }
+    });
+  }
+}
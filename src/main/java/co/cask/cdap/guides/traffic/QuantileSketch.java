@@ -0,0 +1,84 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import java.util.Arrays;
+
+/**
+ * Compact sketch of the distribution of non-negative values, to estimate their quantiles.  Values are counted in
+ * buckets with logarithmically growing bounds, so each estimated quantile is within {@link #RELATIVE_ERROR} of a
+ * value of the stream, and the size of the sketch only grows with the logarithm of the largest value.  Instances
+ * are not thread-safe.
+ */
+final class QuantileSketch {
+  static final double RELATIVE_ERROR = 0.05;
+
+  /** Ratio between the upper bounds of consecutive buckets */
+  private static final double GAMMA = (1 + RELATIVE_ERROR) / (1 - RELATIVE_ERROR);
+  private static final double LOG_GAMMA = Math.log(GAMMA);
+
+  /** Counts per bucket, where bucket 0 holds zero and bucket i holds values in (GAMMA^(i-2), GAMMA^(i-1)] */
+  private long[] counts = new long[16];
+  private long count;
+  private long sum;
+  private long max;
+
+  void add(long value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("Value must not be negative, got: " + value);
+    }
+    int bucket = value == 0 ? 0 : 1 + (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+    if (bucket >= counts.length) {
+      counts = Arrays.copyOf(counts, Math.max(bucket + 1, counts.length * 2));
+    }
+    counts[bucket]++;
+    count++;
+    sum += value;
+    max = Math.max(max, value);
+  }
+
+  long getCount() {
+    return count;
+  }
+
+  double getMean() {
+    return count == 0 ? 0 : (double) sum / count;
+  }
+
+  /**
+   * Returns the estimated value at the given quantile, between 0 and 1, or 0 if no values were added.
+   */
+  long getQuantile(double quantile) {
+    if (count == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(quantile * count);
+    long seen = 0;
+    for (int bucket = 0; bucket < counts.length; bucket++) {
+      seen += counts[bucket];
+      if (seen >= rank && counts[bucket] > 0) {
+        if (bucket == 0) {
+          return 0;
+        }
+        // the middle of the bucket, in relative terms, is within the relative error of all its values
+        double estimate = 2 * Math.pow(GAMMA, bucket - 1) / (1 + GAMMA);
+        return Math.min(max, Math.round(estimate));
+      }
+    }
+    return max;
+  }
+}
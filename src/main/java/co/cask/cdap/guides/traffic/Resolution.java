@@ -0,0 +1,88 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+/**
+ * Time resolutions at which traffic event counts are stored.  {@link #RAW} counters are kept at the timestamps
+ * reported by the sensors, while each rollup resolution sums the counts into buckets of a fixed interval, aligned
+ * to the epoch (in UTC), in a timeseries table of its own.
+ */
+public enum Resolution {
+  RAW(0L, TrafficApp.TIMESERIES_TABLE_NAME, TrafficApp.TIMESERIES_INTERVAL),
+  MINUTE(60 * 1000L, TrafficApp.MINUTE_TABLE_NAME, 60 * 60 * 1000),
+  HOUR(60 * 60 * 1000L, TrafficApp.HOUR_TABLE_NAME, 24 * 60 * 60 * 1000),
+  DAY(24 * 60 * 60 * 1000L, TrafficApp.DAY_TABLE_NAME, 7 * 24 * 60 * 60 * 1000);
+
+  private final long interval;
+  private final String tableName;
+  private final int rowInterval;
+
+  Resolution(long interval, String tableName, int rowInterval) {
+    this.interval = interval;
+    this.tableName = tableName;
+    this.rowInterval = rowInterval;
+  }
+
+  /**
+   * Returns the bucket interval in milliseconds, or 0 for raw counters.
+   */
+  public long getInterval() {
+    return interval;
+  }
+
+  /**
+   * Returns the name of the timeseries table holding the counters at this resolution.
+   */
+  public String getTableName() {
+    return tableName;
+  }
+
+  /**
+   * Returns the time interval stored per row of the timeseries table.
+   */
+  public int getRowInterval() {
+    return rowInterval;
+  }
+
+  /**
+   * Returns the start of the bucket that contains the given timestamp.
+   */
+  public long getBucket(long timestamp) {
+    return interval == 0 ? timestamp : floor(timestamp, interval);
+  }
+
+  /**
+   * Returns the coarsest resolution whose buckets can be summed exactly into buckets of the given step.
+   */
+  public static Resolution forStep(long step) {
+    Resolution selected = RAW;
+    for (Resolution resolution : values()) {
+      if (resolution.interval > 0 && step % resolution.interval == 0) {
+        selected = resolution;
+      }
+    }
+    return selected;
+  }
+
+  /**
+   * Rounds the timestamp down to a multiple of the given interval.
+   */
+  static long floor(long timestamp, long interval) {
+    long remainder = timestamp % interval;
+    return remainder < 0 ? timestamp - remainder - interval : timestamp - remainder;
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.TxRunnable;
+import co.cask.cdap.api.data.DatasetContext;
+import co.cask.cdap.api.dataset.lib.CloseableIterator;
+import co.cask.cdap.api.dataset.lib.KeyValue;
+import co.cask.cdap.api.dataset.lib.KeyValueTable;
+import co.cask.cdap.api.metrics.Metrics;
+import co.cask.cdap.api.worker.AbstractWorker;
+import co.cask.cdap.api.worker.WorkerContext;
+import com.google.common.collect.ImmutableMap;
+import org.apache.tephra.TransactionFailureException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically removes the materialized {@link SegmentState} of road segments that have not reported any events
+ * within the state retention period.  The state table is swept in batches of consecutive keys, each in its own
+ * transaction, so that a sweep never holds a long-running transaction.  Counters in the timeseries tables are
+ * expired by the storage layer, using the retention configured for each {@link Resolution}.  The sweep can be
+ * tuned with the runtime arguments:
+ * <ul>
+ *   <li>{@code retention.sweep.interval.ms}: time between the start of consecutive sweeps; and</li>
+ *   <li>{@code retention.batch.size}: number of states scanned per transaction.</li>
+ * </ul>
+ */
+public class RetentionWorker extends AbstractWorker {
+  private static final Logger LOG = LoggerFactory.getLogger(RetentionWorker.class);
+
+  static final String NAME = "RetentionWorker";
+  static final String SWEEP_INTERVAL = "retention.sweep.interval.ms";
+  static final String BATCH_SIZE = "retention.batch.size";
+
+  static final String SCANNED = "retention.state.scanned";
+  static final String DELETED = "retention.state.deleted";
+  static final String SWEEP_DURATION = "retention.state.sweep.ms";
+
+  private static final long DEFAULT_SWEEP_INTERVAL = TimeUnit.HOURS.toMillis(1);
+  private static final int DEFAULT_BATCH_SIZE = 1000;
+
+  /** Worker property for the retention of segment states */
+  private static final String STATE_RETENTION = "state.retention";
+
+  private Metrics metrics;
+
+  private long stateRetention;
+  private long sweepInterval;
+  private int batchSize;
+  private volatile boolean stopped;
+  private volatile Thread runThread;
+
+  public RetentionWorker() {
+    this(TimeUnit.DAYS.toMillis(7));
+  }
+
+  public RetentionWorker(long stateRetention) {
+    this.stateRetention = stateRetention;
+  }
+
+  @Override
+  protected void configure() {
+    setName(NAME);
+    setDescription("Removes the state of road segments that no longer report events");
+    setProperties(ImmutableMap.of(STATE_RETENTION, Long.toString(stateRetention)));
+  }
+
+  @Override
+  public void initialize(WorkerContext context) throws Exception {
+    super.initialize(context);
+    stateRetention = Long.parseLong(context.getSpecification().getProperty(STATE_RETENTION));
+    sweepInterval = Arguments.getLong(context.getRuntimeArguments(), SWEEP_INTERVAL, DEFAULT_SWEEP_INTERVAL);
+    batchSize = Arguments.getInt(context.getRuntimeArguments(), BATCH_SIZE, DEFAULT_BATCH_SIZE);
+    if (sweepInterval <= 0 || batchSize <= 0) {
+      throw new IllegalArgumentException(String.format("Arguments '%s' and '%s' must be positive",
+                                                       SWEEP_INTERVAL, BATCH_SIZE));
+    }
+  }
+
+  @Override
+  public void run() {
+    if (stateRetention <= 0) {
+      LOG.info("Segment states are retained forever, nothing to do");
+      return;
+    }
+    runThread = Thread.currentThread();
+    while (!stopped) {
+      long start = System.currentTimeMillis();
+      try {
+        sweep(start - stateRetention);
+        metrics.gauge(SWEEP_DURATION, System.currentTimeMillis() - start);
+      } catch (TransactionFailureException e) {
+        // conflicts with the flow are expected for segments that report again; retry with the next sweep
+        LOG.warn("Failed to sweep segment states, retrying in {} ms", sweepInterval, e);
+      }
+      try {
+        TimeUnit.MILLISECONDS.sleep(Math.max(0, start + sweepInterval - System.currentTimeMillis()));
+      } catch (InterruptedException e) {
+        break;
+      }
+    }
+  }
+
+  @Override
+  public void stop() {
+    stopped = true;
+    Thread thread = runThread;
+    if (thread != null) {
+      thread.interrupt();
+    }
+  }
+
+  /**
+   * Deletes all states last updated before the given time, one batch at a time.
+   */
+  private void sweep(long minLastUpdate) throws TransactionFailureException {
+    byte[] startKey = null;
+    do {
+      SweepBatch batch = new SweepBatch(startKey, minLastUpdate);
+      getContext().execute(batch);
+      metrics.count(SCANNED, batch.scanned);
+      metrics.count(DELETED, batch.deleted);
+      startKey = batch.nextKey;
+    } while (startKey != null && !stopped);
+  }
+
+  /**
+   * Scans a batch of states starting at a given key, and deletes the ones that have expired.
+   */
+  private final class SweepBatch implements TxRunnable {
+    private final byte[] startKey;
+    private final long minLastUpdate;
+    /** The key to start the next batch at, or null if the end of the table was reached */
+    private byte[] nextKey;
+    private int scanned;
+    private int deleted;
+
+    private SweepBatch(byte[] startKey, long minLastUpdate) {
+      this.startKey = startKey;
+      this.minLastUpdate = minLastUpdate;
+    }
+
+    @Override
+    public void run(DatasetContext context) throws Exception {
+      nextKey = null;
+      scanned = 0;
+      deleted = 0;
+      KeyValueTable states = context.getDataset(TrafficApp.SEGMENT_STATE_TABLE_NAME);
+      CloseableIterator<KeyValue<byte[], byte[]>> entries = states.scan(startKey, null);
+      try {
+        while (entries.hasNext()) {
+          KeyValue<byte[], byte[]> entry = entries.next();
+          if (scanned == batchSize) {
+            nextKey = entry.getKey();
+            return;
+          }
+          scanned++;
+          if (SegmentState.decode(entry.getValue()).getLastUpdate() < minLastUpdate) {
+            states.delete(entry.getKey());
+            deleted++;
+          }
+        }
+      } finally {
+        entries.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.guides.traffic.TrafficConditionService.Condition;
+
+import java.util.List;
+
+/**
+ * Condition and volumes of a corridor: the road segments with IDs starting with a common prefix, such as the
+ * consecutive segments {@code 66N_1} to {@code 66N_4} of a highway.  The condition of the corridor is the worst
+ * condition of its segments, and its volumes are the totals of the segment volumes.
+ */
+final class Route {
+  private final String prefix;
+  private final Condition condition;
+  private final long vehicles;
+  private final long accidents;
+  private final List<RouteSegment> segments;
+
+  Route(String prefix, Condition condition, long vehicles, long accidents, List<RouteSegment> segments) {
+    this.prefix = prefix;
+    this.condition = condition;
+    this.vehicles = vehicles;
+    this.accidents = accidents;
+    this.segments = segments;
+  }
+
+  String getPrefix() {
+    return prefix;
+  }
+
+  Condition getCondition() {
+    return condition;
+  }
+
+  long getVehicles() {
+    return vehicles;
+  }
+
+  long getAccidents() {
+    return accidents;
+  }
+
+  /**
+   * Returns the segments of the corridor, in the order of their IDs, see {@link SegmentOrder}.
+   */
+  List<RouteSegment> getSegments() {
+    return segments;
+  }
+}
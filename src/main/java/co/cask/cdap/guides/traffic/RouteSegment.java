@@ -0,0 +1,53 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.guides.traffic.TrafficConditionService.Condition;
+
+/**
+ * Condition of a single road segment of a {@link Route}, and the number of vehicles and accidents reported for it
+ * within its lookback period.
+ */
+final class RouteSegment {
+  private final String segment;
+  private final Condition condition;
+  private final long vehicles;
+  private final long accidents;
+
+  RouteSegment(String segment, Condition condition, long vehicles, long accidents) {
+    this.segment = segment;
+    this.condition = condition;
+    this.vehicles = vehicles;
+    this.accidents = accidents;
+  }
+
+  String getSegment() {
+    return segment;
+  }
+
+  Condition getCondition() {
+    return condition;
+  }
+
+  long getVehicles() {
+    return vehicles;
+  }
+
+  long getAccidents() {
+    return accidents;
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.table.Put;
+import co.cask.cdap.api.dataset.table.Row;
+import co.cask.cdap.api.dataset.table.Table;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Maps road segment IDs to compact integer IDs, used in the keys of the timeseries tables (see
+ * {@link SegmentKeys}), stored in a {@link Table}:
+ * <ul>
+ *   <li>{@code s<segment ID>} holds the integer ID, and whether the legacy counters of the segment have been
+ *       migrated;</li>
+ *   <li>{@code i<integer ID>} holds the road segment ID;</li>
+ *   <li>{@code n} holds the last assigned integer ID; and</li>
+ *   <li>{@code l} holds the number of salt buckets of the counter keys, recorded with the first integer ID, see
+ *       {@link SegmentKeys#verify}.</li>
+ * </ul>
+ * Integer IDs never change once assigned, so entries are kept in an in-memory cache.  Only migrated entries are
+ * cached, since the migration of a road segment changes whether its legacy counters must be read.  Entries
+ * assigned in the current transaction are only cached once {@link #commit()} is called.  Instances are not
+ * thread-safe, but the cache may be shared.
+ */
+final class SegmentDictionary {
+  static final int DEFAULT_CACHE_SIZE = 100000;
+
+  private static final byte SEGMENT_ROW = 's';
+  private static final byte ID_ROW = 'i';
+  private static final byte[] COUNTER_ROW = Bytes.toBytes("n");
+  private static final byte[] LAYOUT_ROW = Bytes.toBytes("l");
+  private static final byte[] SALT_BUCKETS = Bytes.toBytes("salt");
+  private static final byte[] ID = Bytes.toBytes("id");
+  private static final byte[] MIGRATED = Bytes.toBytes("m");
+  private static final byte[] SEGMENT = Bytes.toBytes("s");
+
+  /**
+   * The integer ID of a road segment, and whether its legacy counters have been migrated.
+   */
+  static final class Entry {
+    private final int id;
+    private final boolean migrated;
+
+    private Entry(int id, boolean migrated) {
+      this.id = id;
+      this.migrated = migrated;
+    }
+
+    int getId() {
+      return id;
+    }
+
+    /**
+     * Returns whether all counters of the road segment are stored under its integer ID.
+     */
+    boolean isMigrated() {
+      return migrated;
+    }
+  }
+
+  private final Table table;
+  @Nullable
+  private final Cache<String, Entry> cache;
+  /** Entries assigned or changed by the current transaction */
+  private final Map<String, Entry> written = new HashMap<String, Entry>();
+
+  /**
+   * @param cache the cache of entries, or null to always read the table
+   */
+  SegmentDictionary(Table table, @Nullable Cache<String, Entry> cache) {
+    this.table = table;
+    this.cache = cache;
+  }
+
+  static Cache<String, Entry> createCache(int maxSize) {
+    return CacheBuilder.newBuilder().maximumSize(maxSize).build();
+  }
+
+  /**
+   * Returns the entry for the given road segment, or null if it has not been assigned an integer ID.
+   */
+  @Nullable
+  Entry get(String roadSegmentId) {
+    Entry entry = written.get(roadSegmentId);
+    if (entry == null && cache != null) {
+      entry = cache.getIfPresent(roadSegmentId);
+    }
+    if (entry != null) {
+      return entry;
+    }
+    Row row = table.get(segmentRow(roadSegmentId));
+    Integer id = row.getInt(ID);
+    if (id == null) {
+      return null;
+    }
+    entry = new Entry(id, Boolean.TRUE.equals(row.getBoolean(MIGRATED)));
+    if (entry.migrated && cache != null) {
+      cache.put(roadSegmentId, entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Assigns the next integer ID to a road segment that does not have one yet.  The first ID records the layout of
+   * the counter keys.
+   *
+   * @param migrated whether the road segment has no legacy counters
+   * @param keys the layout of the counter keys of the program
+   */
+  Entry assign(String roadSegmentId, boolean migrated, SegmentKeys keys) {
+    long next = table.incrementAndGet(COUNTER_ROW, ID, 1L);
+    if (next > Integer.MAX_VALUE) {
+      throw new IllegalStateException("No more road segment IDs available");
+    }
+    if (next == 1) {
+      table.put(LAYOUT_ROW, SALT_BUCKETS, Bytes.toBytes(keys.getSaltBuckets()));
+    }
+    Entry entry = new Entry((int) next, migrated);
+    table.put(new Put(segmentRow(roadSegmentId)).add(ID, entry.id).add(MIGRATED, migrated));
+    table.put(idRow(entry.id), SEGMENT, Bytes.toBytes(roadSegmentId));
+    written.put(roadSegmentId, entry);
+    return entry;
+  }
+
+  /**
+   * Marks the legacy counters of a road segment as migrated.
+   */
+  void setMigrated(String roadSegmentId, Entry entry) {
+    table.put(segmentRow(roadSegmentId), MIGRATED, Bytes.toBytes(true));
+    written.put(roadSegmentId, new Entry(entry.id, true));
+  }
+
+  /**
+   * Returns the road segment ID for the given integer ID, or null if it has not been assigned.
+   */
+  @Nullable
+  String getRoadSegmentId(int id) {
+    byte[] segment = table.get(idRow(id), SEGMENT);
+    return segment == null ? null : Bytes.toString(segment);
+  }
+
+  /**
+   * Returns whether any road segment has been assigned an integer ID.
+   */
+  boolean hasIds() {
+    return table.get(COUNTER_ROW, ID) != null;
+  }
+
+  /**
+   * Returns the number of salt buckets recorded with the first integer ID, or null if none was recorded.
+   */
+  @Nullable
+  Integer getSaltBuckets() {
+    byte[] saltBuckets = table.get(LAYOUT_ROW, SALT_BUCKETS);
+    return saltBuckets == null ? null : Bytes.toInt(saltBuckets);
+  }
+
+  /**
+   * Called after the current transaction committed, to cache the entries it wrote.
+   */
+  void commit() {
+    if (cache != null) {
+      for (Map.Entry<String, Entry> entry : written.entrySet()) {
+        if (entry.getValue().migrated) {
+          cache.put(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+    written.clear();
+  }
+
+  /**
+   * Called after the current transaction failed, to forget the entries it wrote.
+   */
+  void abort() {
+    written.clear();
+  }
+
+  private static byte[] segmentRow(String roadSegmentId) {
+    return Bytes.add(new byte[] { SEGMENT_ROW }, Bytes.toBytes(roadSegmentId));
+  }
+
+  private static byte[] idRow(int id) {
+    return Bytes.add(new byte[] { ID_ROW }, Bytes.toBytes(id));
+  }
+}
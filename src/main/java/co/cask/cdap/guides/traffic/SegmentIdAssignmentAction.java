@@ -0,0 +1,174 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.TxRunnable;
+import co.cask.cdap.api.customaction.AbstractCustomAction;
+import co.cask.cdap.api.data.DatasetContext;
+import co.cask.cdap.api.dataset.lib.CloseableIterator;
+import co.cask.cdap.api.dataset.lib.CounterTimeseriesTable;
+import co.cask.cdap.api.dataset.lib.KeyValue;
+import co.cask.cdap.api.dataset.lib.KeyValueTable;
+import co.cask.cdap.api.dataset.table.Table;
+import com.google.common.collect.ImmutableMap;
+import org.apache.tephra.TransactionFailureException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assigns integer IDs in the {@link SegmentDictionary} to the road segments found by
+ * {@link SegmentRegistrationMapReduce}, before {@link TrafficBackfillMapReduce} writes their counters.  Each batch of
+ * road segments is assigned in a short transaction of its own, so that concurrent assignments by the flow are
+ * detected as conflicts and retried, and no ID is ever handed out twice.  A road segment that has counters under its
+ * legacy key starts as not migrated, so that they are still read until {@link SegmentKeyMigrationWorker} copies
+ * them.  The number of road segments per transaction is set with the {@code assignment.batch.size} runtime
+ * argument.
+ */
+public class SegmentIdAssignmentAction extends AbstractCustomAction {
+  private static final Logger LOG = LoggerFactory.getLogger(SegmentIdAssignmentAction.class);
+
+  static final String NAME = "SegmentIdAssignment";
+  static final String BATCH_SIZE = "assignment.batch.size";
+
+  private static final int DEFAULT_BATCH_SIZE = 100;
+  private static final int MAX_ATTEMPTS = 10;
+  private static final long RETRY_DELAY = TimeUnit.SECONDS.toMillis(1);
+
+  private final int saltBuckets;
+  private final String legacyRetentions;
+
+  public SegmentIdAssignmentAction() {
+    this(0, new LegacyCounters(new TrafficApp.TrafficConfig()));
+  }
+
+  /**
+   * @param saltBuckets the number of salt buckets of the counter keys, see {@link SegmentKeys}
+   * @param legacyCounters the retentions to look up legacy counters within, see {@link LegacyCounters}
+   */
+  SegmentIdAssignmentAction(int saltBuckets, LegacyCounters legacyCounters) {
+    this.saltBuckets = saltBuckets;
+    this.legacyRetentions = legacyCounters.toProperty();
+  }
+
+  @Override
+  protected void configure() {
+    setName(NAME);
+    setDescription("Assigns dictionary IDs to the road segments of archived traffic sensor records");
+    setProperties(ImmutableMap.of(SegmentKeys.SALT_BUCKETS, Integer.toString(saltBuckets),
+                                  LegacyCounters.RETENTIONS, legacyRetentions));
+  }
+
+  @Override
+  public void run() throws Exception {
+    int batchSize = Arguments.getInt(getContext().getRuntimeArguments(), BATCH_SIZE, DEFAULT_BATCH_SIZE);
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException(String.format("Argument '%s' must be positive", BATCH_SIZE));
+    }
+    SegmentKeys keys =
+      SegmentKeys.fromProperty(getContext().getSpecification().getProperty(SegmentKeys.SALT_BUCKETS));
+    keys.verify(getContext());
+    LegacyCounters legacyCounters =
+      LegacyCounters.fromProperty(getContext().getSpecification().getProperty(LegacyCounters.RETENTIONS));
+    long now = System.currentTimeMillis();
+    int assigned = 0;
+    AssignmentBatch batch;
+    do {
+      batch = new AssignmentBatch(batchSize, now, keys, legacyCounters);
+      execute(batch);
+      assigned += batch.assigned;
+    } while (batch.more);
+    LOG.info("Assigned IDs to {} road segments", assigned);
+  }
+
+  /**
+   * Runs a batch, retrying it when the transaction fails, which happens when the flow assigns an ID to one of its
+   * road segments at the same time.
+   */
+  private void execute(AssignmentBatch batch) throws TransactionFailureException, InterruptedException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        getContext().execute(batch);
+        return;
+      } catch (TransactionFailureException e) {
+        if (attempt == MAX_ATTEMPTS) {
+          throw e;
+        }
+        LOG.warn("Failed to assign road segment IDs, retrying in {} ms", RETRY_DELAY, e);
+        TimeUnit.MILLISECONDS.sleep(RETRY_DELAY);
+      }
+    }
+  }
+
+  /**
+   * Assigns IDs to the first road segments of the unassigned segments table, and removes them from it.
+   */
+  private static final class AssignmentBatch implements TxRunnable {
+    private final int batchSize;
+    private final long now;
+    private final SegmentKeys keys;
+    private final LegacyCounters legacyCounters;
+    /** Whether road segments are left after this batch */
+    private boolean more;
+    private int assigned;
+
+    private AssignmentBatch(int batchSize, long now, SegmentKeys keys, LegacyCounters legacyCounters) {
+      this.batchSize = batchSize;
+      this.now = now;
+      this.keys = keys;
+      this.legacyCounters = legacyCounters;
+    }
+
+    @Override
+    public void run(DatasetContext context) throws Exception {
+      more = false;
+      assigned = 0;
+      KeyValueTable unassigned = context.getDataset(TrafficApp.UNASSIGNED_SEGMENTS_NAME);
+      SegmentDictionary dictionary =
+        new SegmentDictionary(context.<Table>getDataset(TrafficApp.SEGMENT_DICTIONARY_NAME), null);
+      Map<Resolution, CounterTimeseriesTable> tables =
+        new EnumMap<Resolution, CounterTimeseriesTable>(Resolution.class);
+      for (Resolution resolution : Resolution.values()) {
+        tables.put(resolution, context.<CounterTimeseriesTable>getDataset(resolution.getTableName()));
+      }
+      // each batch starts over, since the previous ones removed their road segments
+      CloseableIterator<KeyValue<byte[], byte[]>> entries = unassigned.scan(null, null);
+      try {
+        int scanned = 0;
+        while (entries.hasNext()) {
+          if (scanned++ == batchSize) {
+            more = true;
+            return;
+          }
+          byte[] key = entries.next().getKey();
+          String segmentId = new String(key, "UTF-8");
+          if (dictionary.get(segmentId) == null) {
+            dictionary.assign(segmentId, !legacyCounters.exists(tables, segmentId, now), keys);
+            assigned++;
+          }
+          unassigned.delete(key);
+        }
+      } finally {
+        entries.close();
+      }
+    }
+  }
+}
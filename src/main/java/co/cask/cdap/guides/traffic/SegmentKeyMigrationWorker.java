@@ -0,0 +1,213 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.TxRunnable;
+import co.cask.cdap.api.data.DatasetContext;
+import co.cask.cdap.api.dataset.lib.CloseableIterator;
+import co.cask.cdap.api.dataset.lib.CounterTimeseriesTable;
+import co.cask.cdap.api.dataset.lib.KeyValue;
+import co.cask.cdap.api.dataset.lib.KeyValueTable;
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.api.metrics.Metrics;
+import co.cask.cdap.api.worker.AbstractWorker;
+import co.cask.cdap.api.worker.WorkerContext;
+import com.google.common.collect.ImmutableMap;
+import org.apache.tephra.TransactionFailureException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Migrates the counters of road segments registered before the {@link SegmentDictionary} existed from their legacy
+ * keys to their integer IDs, see {@link SegmentKeys}.  The worker goes through the segment registry once and then
+ * stops; start it once after upgrading, after running {@link SegmentRegistrationMapReduce} over the stream, which
+ * registers the road segments written before the registry existed.  Each road segment is migrated in a single
+ * transaction, which copies its legacy counters in every timeseries table and marks it as migrated, so readers see
+ * either the legacy and the new counters, or only the new ones once they include the copies.  Legacy counters are
+ * not deleted, and expire with the retention of each table.  The number of road segments per transaction is set
+ * with the {@code migration.batch.size} runtime argument.
+ */
+public class SegmentKeyMigrationWorker extends AbstractWorker {
+  private static final Logger LOG = LoggerFactory.getLogger(SegmentKeyMigrationWorker.class);
+
+  static final String NAME = "SegmentKeyMigration";
+  static final String BATCH_SIZE = "migration.batch.size";
+
+  static final String SEGMENTS = "migration.segments";
+  static final String COUNTERS = "migration.counters";
+
+  private static final int DEFAULT_BATCH_SIZE = 10;
+  private static final long RETRY_DELAY = TimeUnit.SECONDS.toMillis(5);
+  /** Legacy counters are copied up to this long after the start of the migration, in case of sensor clock skew */
+  static final long MAX_CLOCK_SKEW = TimeUnit.DAYS.toMillis(1);
+
+  private Metrics metrics;
+
+  private int saltBuckets;
+  private String legacyRetentions;
+  private SegmentKeys keys;
+  private LegacyCounters legacyCounters;
+  private int batchSize;
+  private volatile boolean stopped;
+  private volatile Thread runThread;
+
+  public SegmentKeyMigrationWorker() {
+    this(0, new LegacyCounters(new TrafficApp.TrafficConfig()));
+  }
+
+  /**
+   * @param saltBuckets the number of salt buckets of the counter keys, see {@link SegmentKeys}
+   * @param legacyCounters the retentions to read legacy counters within, see {@link LegacyCounters}
+   */
+  SegmentKeyMigrationWorker(int saltBuckets, LegacyCounters legacyCounters) {
+    this.saltBuckets = saltBuckets;
+    this.legacyRetentions = legacyCounters.toProperty();
+  }
+
+  @Override
+  protected void configure() {
+    setName(NAME);
+    setDescription("Migrates the counters of road segments from their legacy keys to their dictionary IDs");
+    setProperties(ImmutableMap.of(SegmentKeys.SALT_BUCKETS, Integer.toString(saltBuckets),
+                                  LegacyCounters.RETENTIONS, legacyRetentions));
+  }
+
+  @Override
+  public void initialize(WorkerContext context) throws Exception {
+    super.initialize(context);
+    keys = SegmentKeys.fromProperty(context.getSpecification().getProperty(SegmentKeys.SALT_BUCKETS));
+    keys.verify(context);
+    legacyCounters = LegacyCounters.fromProperty(context.getSpecification().getProperty(LegacyCounters.RETENTIONS));
+    batchSize = Arguments.getInt(context.getRuntimeArguments(), BATCH_SIZE, DEFAULT_BATCH_SIZE);
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException(String.format("Argument '%s' must be positive", BATCH_SIZE));
+    }
+  }
+
+  @Override
+  public void run() {
+    runThread = Thread.currentThread();
+    long now = System.currentTimeMillis();
+    byte[] startKey = null;
+    int migrated = 0;
+    do {
+      MigrationBatch batch = new MigrationBatch(startKey, now);
+      try {
+        getContext().execute(batch);
+      } catch (TransactionFailureException e) {
+        // conflicts with the flow are expected while it is running; retry the same batch
+        LOG.warn("Failed to migrate road segments, retrying in {} ms", RETRY_DELAY, e);
+        try {
+          TimeUnit.MILLISECONDS.sleep(RETRY_DELAY);
+        } catch (InterruptedException ie) {
+          break;
+        }
+        continue;
+      }
+      metrics.count(SEGMENTS, batch.migrated);
+      metrics.count(COUNTERS, batch.counters);
+      migrated += batch.migrated;
+      startKey = batch.nextKey;
+    } while (startKey != null && !stopped);
+    LOG.info("Migrated {} road segments{}", migrated, startKey == null ? "" : ", stopped before the end");
+  }
+
+  @Override
+  public void stop() {
+    stopped = true;
+    Thread thread = runThread;
+    if (thread != null) {
+      thread.interrupt();
+    }
+  }
+
+  /**
+   * Migrates a batch of road segments from the registry, starting at a given key.
+   */
+  private final class MigrationBatch implements TxRunnable {
+    private final byte[] startKey;
+    private final long now;
+    /** The key to start the next batch at, or null if the end of the registry was reached */
+    private byte[] nextKey;
+    private int migrated;
+    private int counters;
+
+    private MigrationBatch(byte[] startKey, long now) {
+      this.startKey = startKey;
+      this.now = now;
+    }
+
+    @Override
+    public void run(DatasetContext context) throws Exception {
+      nextKey = null;
+      migrated = 0;
+      counters = 0;
+      KeyValueTable segments = context.getDataset(TrafficApp.SEGMENT_REGISTRY_NAME);
+      SegmentDictionary dictionary =
+        new SegmentDictionary(context.<Table>getDataset(TrafficApp.SEGMENT_DICTIONARY_NAME), null);
+      int scanned = 0;
+      CloseableIterator<KeyValue<byte[], byte[]>> entries = segments.scan(startKey, null);
+      try {
+        while (entries.hasNext()) {
+          KeyValue<byte[], byte[]> entry = entries.next();
+          if (scanned++ == batchSize) {
+            nextKey = entry.getKey();
+            return;
+          }
+          if (migrate(context, dictionary, new String(entry.getKey(), "UTF-8"))) {
+            migrated++;
+          }
+        }
+      } finally {
+        entries.close();
+      }
+    }
+
+    /**
+     * Copies the legacy counters of a road segment to its integer ID, unless it is already migrated.
+     *
+     * @return whether the road segment was migrated
+     */
+    private boolean migrate(DatasetContext context, SegmentDictionary dictionary, String segmentId) {
+      SegmentDictionary.Entry entry = dictionary.get(segmentId);
+      if (entry != null && entry.isMigrated()) {
+        return false;
+      }
+      if (entry == null) {
+        entry = dictionary.assign(segmentId, false, keys);
+      }
+      byte[] key = keys.toKey(entry.getId());
+      for (Resolution resolution : Resolution.values()) {
+        CounterTimeseriesTable table = context.getDataset(resolution.getTableName());
+        Iterator<CounterTimeseriesTable.Counter> counters = legacyCounters.read(table, resolution, segmentId, now);
+        while (counters.hasNext()) {
+          CounterTimeseriesTable.Counter counter = counters.next();
+          TrafficEvent.Type type = SegmentKeys.getType(counter);
+          if (type != null) {
+            table.increment(key, counter.getValue(), counter.getTimestamp(), SegmentKeys.typeTag(type));
+            counters++;
+          }
+        }
+      }
+      dictionary.setMigrated(segmentId, entry);
+      return true;
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.Transactional;
+import co.cask.cdap.api.TxRunnable;
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.data.DatasetContext;
+import co.cask.cdap.api.dataset.lib.CounterTimeseriesTable;
+import co.cask.cdap.api.dataset.table.Table;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterators;
+import org.apache.tephra.TransactionFailureException;
+
+import java.util.Iterator;
+import javax.annotation.Nullable;
+
+/**
+ * Encoding of the counter keys and tags in the timeseries tables.  Counters are keyed by the compact ID of the road
+ * segment from the {@link SegmentDictionary}, as a {@link #MARKER} byte followed by the 4-byte ID, and tagged with
+ * the ordinal of the type as a single byte.  The marker never occurs in UTF-8, so these keys cannot collide with
+ * the legacy keys, which are the UTF-8 road segment ID, tagged with the type name.  Legacy counters are read until
+ * the road segment is migrated, see {@link SegmentKeyMigrationWorker}.
+ *
+ * <p>
+ * With a salted layout, a salt byte computed from a hash of the ID is inserted after the marker, so that counters
+ * of road segments with consecutive IDs, which are usually registered together and are equally busy, are spread
+ * over {@link #getSaltBuckets() salt buckets} in different regions instead of all being written to the region that
+ * holds the newest IDs.  The salt is derived from the ID, so the counters of a road segment are still read with a
+ * single scan.  The layout is set with the {@code saltBuckets} of the application configuration, and must not be
+ * changed once counters have been written: it is recorded in the {@link SegmentDictionary} with the first integer
+ * ID, and every program that reads or writes counters {@link #verify verifies} it when it starts.
+ * </p>
+ */
+final class SegmentKeys {
+  static final byte MARKER = (byte) 0xFF;
+  /** Program property for the number of salt buckets, see {@link #fromProperty} */
+  static final String SALT_BUCKETS = "key.salt.buckets";
+  /** Maximum number of salt buckets, since the salt is a single byte */
+  static final int MAX_SALT_BUCKETS = 256;
+  /** Layout without salt */
+  static final SegmentKeys UNSALTED = new SegmentKeys(0);
+
+  private static final TrafficEvent.Type[] TYPES = TrafficEvent.Type.values();
+  private static final byte[][] TYPE_TAGS = new byte[TYPES.length][];
+  private static final byte[][] LEGACY_TYPE_TAGS = new byte[TYPES.length][];
+  static {
+    for (TrafficEvent.Type type : TYPES) {
+      TYPE_TAGS[type.ordinal()] = new byte[] { (byte) type.ordinal() };
+      LEGACY_TYPE_TAGS[type.ordinal()] = Bytes.toBytes(type.name());
+    }
+  }
+
+  private final int saltBuckets;
+
+  /**
+   * @param saltBuckets the number of salt buckets, or 0 for keys without salt
+   */
+  SegmentKeys(int saltBuckets) {
+    if (saltBuckets < 0 || saltBuckets > MAX_SALT_BUCKETS) {
+      throw new IllegalArgumentException(String.format("Salt buckets must be between 0 and %d, got: %d",
+                                                       MAX_SALT_BUCKETS, saltBuckets));
+    }
+    this.saltBuckets = saltBuckets;
+  }
+
+  /**
+   * Creates the layout from the value of the {@link #SALT_BUCKETS} property of a program, where a missing value
+   * means no salt.
+   */
+  static SegmentKeys fromProperty(@Nullable String saltBuckets) {
+    return saltBuckets == null ? UNSALTED : new SegmentKeys(Integer.parseInt(saltBuckets));
+  }
+
+  int getSaltBuckets() {
+    return saltBuckets;
+  }
+
+  /**
+   * Checks that this layout is the one the counter keys of the dictionary IDs were written with.  IDs assigned
+   * before the layout was recorded were written without salt.
+   *
+   * @throws IllegalStateException if the layout differs
+   */
+  void verify(SegmentDictionary dictionary) {
+    if (!dictionary.hasIds()) {
+      return;
+    }
+    Integer recorded = dictionary.getSaltBuckets();
+    int expected = recorded == null ? 0 : recorded;
+    if (expected != saltBuckets) {
+      throw new IllegalStateException(String.format(
+        "Counter keys were written with %d salt buckets, but the application is configured with %d; " +
+          "redeploy it with saltBuckets set to %d", expected, saltBuckets, expected));
+    }
+  }
+
+  /**
+   * Checks the layout as {@link #verify(SegmentDictionary)} does, in a transaction of its own, for programs that do
+   * not start in one.
+   */
+  void verify(Transactional transactional) throws TransactionFailureException {
+    try {
+      transactional.execute(new TxRunnable() {
+        @Override
+        public void run(DatasetContext context) {
+          verify(new SegmentDictionary(context.<Table>getDataset(TrafficApp.SEGMENT_DICTIONARY_NAME), null));
+        }
+      });
+    } catch (TransactionFailureException e) {
+      // report a different layout as is, rather than as a failed transaction
+      Throwables.propagateIfInstanceOf(e.getCause(), IllegalStateException.class);
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the counter key for the road segment with the given dictionary ID.
+   */
+  byte[] toKey(int segmentId) {
+    if (saltBuckets == 0) {
+      return new byte[] { MARKER, (byte) (segmentId >>> 24), (byte) (segmentId >>> 16), (byte) (segmentId >>> 8),
+                          (byte) segmentId };
+    }
+    return new byte[] { MARKER, getSalt(segmentId), (byte) (segmentId >>> 24), (byte) (segmentId >>> 16),
+                        (byte) (segmentId >>> 8), (byte) segmentId };
+  }
+
+  private byte getSalt(int segmentId) {
+    // spread consecutive IDs with the finalizer of MurmurHash3
+    int hash = segmentId;
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    return (byte) ((hash & Integer.MAX_VALUE) % saltBuckets);
+  }
+
+  static byte[] toLegacyKey(String roadSegmentId) {
+    return Bytes.toBytes(roadSegmentId);
+  }
+
+  /**
+   * Returns the tag for counters of the given type.  The returned array must not be modified.
+   */
+  static byte[] typeTag(TrafficEvent.Type type) {
+    return TYPE_TAGS[type.ordinal()];
+  }
+
+  /**
+   * Returns the tag for legacy counters of the given type.  The returned array must not be modified.
+   */
+  static byte[] legacyTypeTag(TrafficEvent.Type type) {
+    return LEGACY_TYPE_TAGS[type.ordinal()];
+  }
+
+  /**
+   * Reads the counters of a road segment between the start and end timestamps, including its legacy counters if
+   * it has not been migrated yet.
+   *
+   * @param entry the dictionary entry of the road segment, or null if it has none
+   * @param type the type of counters to read, or null for all types
+   */
+  Iterator<CounterTimeseriesTable.Counter> read(CounterTimeseriesTable table, @Nullable SegmentDictionary.Entry entry,
+                                                String roadSegmentId, long start, long end,
+                                                @Nullable TrafficEvent.Type type) {
+    Iterator<CounterTimeseriesTable.Counter> counters = null;
+    if (entry != null) {
+      byte[] key = toKey(entry.getId());
+      counters = type == null ? table.read(key, start, end) : table.read(key, start, end, typeTag(type));
+      if (entry.isMigrated()) {
+        return counters;
+      }
+    }
+    byte[] legacyKey = toLegacyKey(roadSegmentId);
+    Iterator<CounterTimeseriesTable.Counter> legacyCounters = type == null ?
+      table.read(legacyKey, start, end) : table.read(legacyKey, start, end, legacyTypeTag(type));
+    return counters == null ? legacyCounters : Iterators.concat(counters, legacyCounters);
+  }
+
+  /**
+   * Returns the type of a counter with either a single byte or a legacy tag, or null if it has neither.
+   */
+  @Nullable
+  static TrafficEvent.Type getType(CounterTimeseriesTable.Counter counter) {
+    for (byte[] tag : counter.getTags()) {
+      if (tag.length == 1) {
+        if (tag[0] >= 0 && tag[0] < TYPES.length) {
+          return TYPES[tag[0]];
+        }
+        continue;
+      }
+      for (TrafficEvent.Type type : TYPES) {
+        if (Bytes.equals(tag, LEGACY_TYPE_TAGS[type.ordinal()])) {
+          return type;
+        }
+      }
+    }
+    return null;
+  }
+}
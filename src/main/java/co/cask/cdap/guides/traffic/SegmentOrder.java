@@ -0,0 +1,64 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import java.util.Comparator;
+
+/**
+ * Orders road segment IDs along their highway: IDs are ordered by the part before any trailing number, and then by
+ * the value of that number, so that {@code 66N_2} comes before {@code 66N_10}.
+ */
+final class SegmentOrder implements Comparator<String> {
+  static final SegmentOrder INSTANCE = new SegmentOrder();
+
+  private SegmentOrder() {
+  }
+
+  @Override
+  public int compare(String first, String second) {
+    int firstDigits = trailingDigitsStart(first);
+    int secondDigits = trailingDigitsStart(second);
+    int compared = first.substring(0, firstDigits).compareTo(second.substring(0, secondDigits));
+    if (compared != 0) {
+      return compared;
+    }
+    // the number with fewer digits, ignoring leading zeros, is smaller; no number at all is smallest
+    String firstNumber = stripZeros(first.substring(firstDigits));
+    String secondNumber = stripZeros(second.substring(secondDigits));
+    if (firstNumber.length() != secondNumber.length()) {
+      return firstNumber.length() < secondNumber.length() ? -1 : 1;
+    }
+    compared = firstNumber.compareTo(secondNumber);
+    return compared != 0 ? compared : first.compareTo(second);
+  }
+
+  private static int trailingDigitsStart(String segmentId) {
+    int i = segmentId.length();
+    while (i > 0 && segmentId.charAt(i - 1) >= '0' && segmentId.charAt(i - 1) <= '9') {
+      i--;
+    }
+    return i;
+  }
+
+  private static String stripZeros(String number) {
+    int i = 0;
+    while (i < number.length() && number.charAt(i) == '0') {
+      i++;
+    }
+    return number.substring(i);
+  }
+}
@@ -0,0 +1,482 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.Transactional;
+import co.cask.cdap.api.TxRunnable;
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.data.DatasetContext;
+import co.cask.cdap.api.dataset.lib.CloseableIterator;
+import co.cask.cdap.api.dataset.lib.CounterTimeseriesTable;
+import co.cask.cdap.api.dataset.lib.KeyValue;
+import co.cask.cdap.api.dataset.lib.KeyValueTable;
+import co.cask.cdap.api.metrics.Metrics;
+import co.cask.cdap.guides.traffic.TrafficConditionService.Condition;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import org.apache.tephra.TransactionFailureException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * The read path of {@code TrafficConditionHandler}, kept apart from the handler so that the handler only routes and
+ * parses requests.  Conditions are evaluated from the materialized {@link SegmentState} of a road segment when it
+ * covers the lookback period, and otherwise from a scan of its counters.  Reads are reported through
+ * {@link Metrics}, where histograms are reported as described in {@link Histogram}: the number of conditions
+ * computed from the segment state, the number of segment states read by watch requests, the number of baselines
+ * read, and the latency and number of counters read of each timeseries scan.  Instances are not thread-safe.
+ */
+final class SegmentReader {
+  static final String STATE_LOOKUPS = "condition.state.lookups";
+  static final String WATCH_READS = "condition.watch.reads";
+  static final String BASELINE_READS = "condition.baseline.reads";
+  static final String SCAN_TIME = "condition.scan.us";
+  static final String SCAN_ROWS = "condition.scan.rows";
+
+  /** Number of road segments whose states are read with a single multi-get in bulk lookups */
+  private static final int READ_BATCH_SIZE = 1000;
+
+  private final Map<Resolution, CounterTimeseriesTable> tables;
+  private final KeyValueTable segments;
+  private final KeyValueTable states;
+  private final KeyValueTable baselines;
+  private final KeyValueTable topCheckpoints;
+  private final SegmentDictionary dictionary;
+  private final SegmentKeys keys;
+  private final ConditionRuleSet ruleSet;
+  private final Cache<String, Optional<Baseline>> baselineCache;
+  private final Metrics metrics;
+  private final Histogram scanTime;
+
+  /**
+   * @param tables the timeseries table of each {@link Resolution}
+   * @param segments the segment registry
+   * @param states the table of segment states
+   * @param baselines the table of segment baselines
+   * @param topCheckpoints the checkpoints of the {@link TopSegments} of each sink instance
+   * @param baselineCache the cache of baselines read, where absent baselines are cached as well
+   * @param scanTime the histogram of the latency of timeseries scans
+   */
+  SegmentReader(Map<Resolution, CounterTimeseriesTable> tables, KeyValueTable segments, KeyValueTable states,
+                KeyValueTable baselines, KeyValueTable topCheckpoints, SegmentDictionary dictionary,
+                SegmentKeys keys, ConditionRuleSet ruleSet, Cache<String, Optional<Baseline>> baselineCache,
+                Metrics metrics, Histogram scanTime) {
+    for (Resolution resolution : Resolution.values()) {
+      if (!tables.containsKey(resolution)) {
+        throw new IllegalArgumentException("No timeseries table for resolution " + resolution);
+      }
+    }
+    this.tables = new EnumMap<Resolution, CounterTimeseriesTable>(tables);
+    this.segments = segments;
+    this.states = states;
+    this.baselines = baselines;
+    this.topCheckpoints = topCheckpoints;
+    this.dictionary = dictionary;
+    this.keys = keys;
+    this.ruleSet = ruleSet;
+    this.baselineCache = baselineCache;
+    this.metrics = metrics;
+    this.scanTime = scanTime;
+  }
+
+  /**
+   * Returns the condition of a road segment for the lookback period before the given end time, with a point lookup
+   * of its state, see {@link #getCondition(String, byte[], long)}.
+   */
+  Condition getCondition(String segmentId, long endTime) {
+    return getCondition(segmentId, states.read(Bytes.toBytes(segmentId)), endTime);
+  }
+
+  /**
+   * Returns the conditions of the given road segments for the lookback period before the given end time, keyed and
+   * sorted by road segment ID.  Road segments are read in batches of {@link #READ_BATCH_SIZE}: the states of each
+   * batch are read with a single multi-get of the state table, and the baselines that are not cached with a single
+   * multi-get of the baseline table, so that only the road segments whose state does not cover their lookback
+   * period cost a read of their own.
+   */
+  Map<String, Condition> getConditions(Set<String> segmentIds, long endTime) {
+    Map<String, Condition> conditions = new TreeMap<String, Condition>();
+    for (List<String> batch : Iterables.partition(segmentIds, READ_BATCH_SIZE)) {
+      Map<String, byte[]> storedStates = readAll(states, batch);
+      loadBaselines(batch);
+      for (String segmentId : batch) {
+        conditions.put(segmentId, getCondition(segmentId, storedStates.get(segmentId), endTime));
+      }
+    }
+    return conditions;
+  }
+
+  /**
+   * Returns the condition of a road segment for the lookback period before the given end time.  The condition is
+   * computed from the materialized segment state when it covers the lookback period.  Otherwise, counters of all
+   * types are read in a single scan, which stops as soon as the condition is known to be RED.
+   *
+   * @param stored the encoded state of the segment, or null if it has none
+   */
+  private Condition getCondition(String segmentId, @Nullable byte[] stored, long endTime) {
+    ConditionRules rules = ruleSet.getRules(segmentId);
+    if (stored != null) {
+      SegmentState state = SegmentState.decode(stored);
+      if (state.covers(rules.getLookbackPeriod(), endTime)) {
+        metrics.count(STATE_LOOKUPS, 1);
+        return rules.evaluate(state, endTime, getBaseline(segmentId, rules));
+      }
+    }
+    Baseline baseline = getBaseline(segmentId, rules);
+    long scanStart = scanTime.start();
+    CountingIterator counters = new CountingIterator(
+      keys.read(tables.get(Resolution.RAW), dictionary.get(segmentId), segmentId, rules.getStartTime(endTime),
+                endTime, null));
+    try {
+      return rules.evaluate(counters, baseline);
+    } finally {
+      scanTime.stop(scanStart, metrics);
+      metrics.count(SCAN_ROWS, counters.count);
+    }
+  }
+
+  /**
+   * Returns the {@link Volume} of events of a given type for a road segment, summed into the given number of
+   * buckets of {@code step} milliseconds from the aligned start, read from the coarsest {@link Resolution} that
+   * fits the step.
+   */
+  Volume getVolume(String segmentId, TrafficEvent.Type type, long alignedStart, long step, int buckets) {
+    Resolution resolution = Resolution.forStep(step);
+    long[] counts = new long[buckets];
+    Iterator<CounterTimeseriesTable.Counter> counters =
+      keys.read(tables.get(resolution), dictionary.get(segmentId), segmentId,
+                alignedStart, alignedStart + buckets * step - 1, type);
+    while (counters.hasNext()) {
+      CounterTimeseriesTable.Counter counter = counters.next();
+      counts[(int) ((counter.getTimestamp() - alignedStart) / step)] += counter.getValue();
+    }
+    return new Volume(segmentId, type, resolution, alignedStart, step, counts);
+  }
+
+  /**
+   * Returns the {@code k} road segments with the most events of a given type at the given time, merged from the
+   * checkpoints of the {@link TopSegments} of each sink instance.
+   */
+  List<TopSegment> getTop(TrafficEvent.Type type, int k, long now) {
+    byte[] prefix = TopSegments.getCheckpointPrefix(type);
+    List<byte[]> checkpoints = new ArrayList<byte[]>();
+    CloseableIterator<KeyValue<byte[], byte[]>> entries = topCheckpoints.scan(prefix, Bytes.stopKeyForPrefix(prefix));
+    try {
+      while (entries.hasNext()) {
+        checkpoints.add(entries.next().getValue());
+      }
+    } finally {
+      entries.close();
+    }
+    List<TopSegment> top = new ArrayList<TopSegment>(k);
+    for (TopSegments.Segment segment : TopSegments.top(checkpoints, now, k)) {
+      top.add(new TopSegment(segment.getSegment(), segment.getCount(), segment.getError()));
+    }
+    return top;
+  }
+
+  /**
+   * Returns the IDs of the registered road segments starting with the given prefix, or null if there are more
+   * than the given maximum.
+   */
+  @Nullable
+  Set<String> getSegmentIds(String prefix, int maxSegments) {
+    Set<String> segmentIds = new LinkedHashSet<String>();
+    CloseableIterator<KeyValue<byte[], byte[]>> entries = scanPrefix(segments, prefix);
+    try {
+      while (entries.hasNext()) {
+        if (segmentIds.size() == maxSegments) {
+          return null;
+        }
+        segmentIds.add(Bytes.toString(entries.next().getKey()));
+      }
+    } finally {
+      entries.close();
+    }
+    return segmentIds;
+  }
+
+  /**
+   * Returns the {@link Route} of the given road segments, which all start with the given prefix, for the lookback
+   * period before the given end time.  The states of all segments are read with a single scan of the state table.
+   */
+  Route getRoute(String prefix, Set<String> segmentIds, long endTime) {
+    Map<String, byte[]> storedStates = getStates(prefix);
+    List<RouteSegment> routeSegments = new ArrayList<RouteSegment>(segmentIds.size());
+    Condition condition = Condition.GREEN;
+    long vehicles = 0;
+    long accidents = 0;
+    List<String> orderedIds = new ArrayList<String>(segmentIds);
+    Collections.sort(orderedIds, SegmentOrder.INSTANCE);
+    for (String segmentId : orderedIds) {
+      RouteSegment routeSegment = getRouteSegment(segmentId, storedStates.get(segmentId), endTime);
+      routeSegments.add(routeSegment);
+      if (routeSegment.getCondition().compareTo(condition) > 0) {
+        condition = routeSegment.getCondition();
+      }
+      vehicles += routeSegment.getVehicles();
+      accidents += routeSegment.getAccidents();
+    }
+    return new Route(prefix, condition, vehicles, accidents, routeSegments);
+  }
+
+  /**
+   * Returns the encoded states of the road segments starting with the given prefix, keyed by road segment ID.
+   */
+  private Map<String, byte[]> getStates(String prefix) {
+    Map<String, byte[]> storedStates = new HashMap<String, byte[]>();
+    CloseableIterator<KeyValue<byte[], byte[]>> entries = scanPrefix(states, prefix);
+    try {
+      while (entries.hasNext()) {
+        KeyValue<byte[], byte[]> entry = entries.next();
+        storedStates.put(Bytes.toString(entry.getKey()), entry.getValue());
+      }
+    } finally {
+      entries.close();
+    }
+    return storedStates;
+  }
+
+  private static CloseableIterator<KeyValue<byte[], byte[]>> scanPrefix(KeyValueTable kvTable, String prefix) {
+    byte[] startKey = prefix.isEmpty() ? null : Bytes.toBytes(prefix);
+    byte[] stopKey = prefix.isEmpty() ? null : Bytes.stopKeyForPrefix(startKey);
+    return kvTable.scan(startKey, stopKey);
+  }
+
+  /**
+   * Returns the condition and volumes of a road segment for the lookback period before the given end time, from
+   * its materialized state if it covers the lookback period, or else from its counters.
+   *
+   * @param stored the encoded state of the segment, or null if it has none
+   */
+  private RouteSegment getRouteSegment(String segmentId, @Nullable byte[] stored, long endTime) {
+    ConditionRules rules = ruleSet.getRules(segmentId);
+    long startTime = rules.getStartTime(endTime);
+    long[] counts = new long[TrafficEvent.Type.values().length];
+    if (stored != null) {
+      SegmentState state = SegmentState.decode(stored);
+      if (state.covers(rules.getLookbackPeriod(), endTime)) {
+        metrics.count(STATE_LOOKUPS, 1);
+        for (SegmentState.Cell cell : state.getCells()) {
+          if (cell.getTimestamp() >= startTime && cell.getTimestamp() <= endTime) {
+            counts[cell.getType().ordinal()] += cell.getValue();
+          }
+        }
+        return newRouteSegment(segmentId, rules.evaluate(state, endTime, getBaseline(segmentId, rules)), counts);
+      }
+    }
+    // all counters are needed for the volumes, so they are read fully before evaluating the condition
+    long scanStart = scanTime.start();
+    List<CounterTimeseriesTable.Counter> counters = new ArrayList<CounterTimeseriesTable.Counter>();
+    Iterators.addAll(counters, keys.read(tables.get(Resolution.RAW), dictionary.get(segmentId), segmentId,
+                                         startTime, endTime, null));
+    scanTime.stop(scanStart, metrics);
+    metrics.count(SCAN_ROWS, counters.size());
+    for (CounterTimeseriesTable.Counter counter : counters) {
+      TrafficEvent.Type type = SegmentKeys.getType(counter);
+      if (type != null) {
+        counts[type.ordinal()] += counter.getValue();
+      }
+    }
+    return newRouteSegment(segmentId, rules.evaluate(counters.iterator(), getBaseline(segmentId, rules)), counts);
+  }
+
+  private static RouteSegment newRouteSegment(String segmentId, Condition condition, long[] counts) {
+    return new RouteSegment(segmentId, condition, counts[TrafficEvent.Type.VEHICLE.ordinal()],
+                            counts[TrafficEvent.Type.ACCIDENT.ordinal()]);
+  }
+
+  /**
+   * Polls the watched road segments every {@code pollInterval} milliseconds, each time in a short transaction of
+   * its own, until the condition of any of them changes or the timeout expires, see {@link #poll}.
+   *
+   * @return the conditions that changed, keyed by road segment ID, or an empty map if none did
+   */
+  Map<String, Condition> watch(Transactional transactional, final ConditionWatch watch, long timeout,
+                               long pollInterval) throws TransactionFailureException, InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    while (true) {
+      final long now = System.currentTimeMillis();
+      transactional.execute(new TxRunnable() {
+        @Override
+        public void run(DatasetContext context) throws Exception {
+          poll(watch, now);
+        }
+      });
+      if (watch.hasChanges() || now >= deadline) {
+        return watch.getChanges();
+      }
+      TimeUnit.MILLISECONDS.sleep(Math.min(pollInterval, deadline - now));
+    }
+  }
+
+  /**
+   * Reads the state of each watched road segment with a point lookup, and evaluates the condition again for the
+   * road segments that need it, up to the given time.
+   */
+  private void poll(ConditionWatch watch, long now) {
+    for (String segmentId : watch.getSegmentIds()) {
+      byte[] stored = states.read(Bytes.toBytes(segmentId));
+      long lastUpdate = stored == null ? 0 : SegmentState.decodeLastUpdate(stored);
+      if (!watch.isStale(segmentId, lastUpdate, now)) {
+        continue;
+      }
+      ConditionRules rules = ruleSet.getRules(segmentId);
+      SegmentState state = stored == null ? null : SegmentState.decode(stored);
+      if (state != null && state.covers(rules.getLookbackPeriod(), now)) {
+        metrics.count(STATE_LOOKUPS, 1);
+        watch.update(segmentId, lastUpdate, rules.evaluate(state, now, getBaseline(segmentId, rules)),
+                     rules.getNextChange(state, now));
+      } else {
+        SegmentState counters = readCounters(segmentId, rules, now);
+        long nextCheck = rules.getNextChange(counters, now);
+        if (state != null) {
+          // the condition is evaluated from the state once it covers the lookback period
+          nextCheck = Math.min(nextCheck, state.getCoveredFrom(rules.getLookbackPeriod()));
+        }
+        watch.update(segmentId, lastUpdate, rules.evaluate(counters, now, getBaseline(segmentId, rules)),
+                     nextCheck);
+      }
+    }
+    metrics.count(WATCH_READS, watch.size());
+  }
+
+  /**
+   * Reads the counters of a road segment from the start of the lookback period before the given time, including
+   * counters with later timestamps, and sums them into the buckets of a state that is never stored, so that
+   * {@link ConditionRules#getNextChange} can be used on them.
+   */
+  private SegmentState readCounters(String segmentId, ConditionRules rules, long now) {
+    SegmentState counters = new SegmentState(rules.getLookbackPeriod(), 0L);
+    long scanStart = scanTime.start();
+    CountingIterator iterator = new CountingIterator(
+      keys.read(tables.get(Resolution.RAW), dictionary.get(segmentId), segmentId, rules.getStartTime(now),
+                now + SegmentKeyMigrationWorker.MAX_CLOCK_SKEW, null));
+    while (iterator.hasNext()) {
+      CounterTimeseriesTable.Counter counter = iterator.next();
+      TrafficEvent.Type type = SegmentKeys.getType(counter);
+      if (type != null) {
+        counters.add(counter.getTimestamp(), type, counter.getValue());
+      }
+    }
+    scanTime.stop(scanStart, metrics);
+    metrics.count(SCAN_ROWS, iterator.count);
+    return counters;
+  }
+
+  /**
+   * Reads the baselines of the given road segments that use one and are not cached, with a single multi-get, into
+   * the baseline cache.
+   */
+  private void loadBaselines(List<String> segmentIds) {
+    List<String> missing = new ArrayList<String>();
+    for (String segmentId : segmentIds) {
+      if (ruleSet.getRules(segmentId).usesBaseline() && baselineCache.getIfPresent(segmentId) == null) {
+        missing.add(segmentId);
+      }
+    }
+    if (missing.isEmpty()) {
+      return;
+    }
+    Map<String, byte[]> stored = readAll(baselines, missing);
+    metrics.count(BASELINE_READS, missing.size());
+    for (String segmentId : missing) {
+      byte[] baseline = stored.get(segmentId);
+      baselineCache.put(segmentId,
+                        baseline == null ? Optional.<Baseline>absent() : Optional.of(Baseline.decode(baseline)));
+    }
+  }
+
+  /**
+   * Reads the values of the given road segments with a single multi-get, keyed by road segment ID.  Road segments
+   * without a value are left out.
+   */
+  private static Map<String, byte[]> readAll(KeyValueTable kvTable, List<String> segmentIds) {
+    byte[][] rowKeys = new byte[segmentIds.size()][];
+    for (int i = 0; i < rowKeys.length; i++) {
+      rowKeys[i] = Bytes.toBytes(segmentIds.get(i));
+    }
+    Map<String, byte[]> values = new HashMap<String, byte[]>();
+    for (Map.Entry<byte[], byte[]> entry : kvTable.readAll(rowKeys).entrySet()) {
+      if (entry.getValue() != null) {
+        values.put(Bytes.toString(entry.getKey()), entry.getValue());
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Returns the baseline of a road segment if the rules use one, from the baseline cache or with a single point
+   * lookup on a miss, or null if the rules do not use a baseline or the segment has none.
+   */
+  @Nullable
+  private Baseline getBaseline(String segmentId, ConditionRules rules) {
+    if (!rules.usesBaseline()) {
+      return null;
+    }
+    Optional<Baseline> baseline = baselineCache.getIfPresent(segmentId);
+    if (baseline == null) {
+      byte[] stored = baselines.read(Bytes.toBytes(segmentId));
+      metrics.count(BASELINE_READS, 1);
+      baseline = stored == null ? Optional.<Baseline>absent() : Optional.of(Baseline.decode(stored));
+      baselineCache.put(segmentId, baseline);
+    }
+    return baseline.orNull();
+  }
+
+  /**
+   * Counts the counters read from the timeseries table.
+   */
+  private static final class CountingIterator implements Iterator<CounterTimeseriesTable.Counter> {
+    private final Iterator<CounterTimeseriesTable.Counter> delegate;
+    private int count;
+
+    private CountingIterator(Iterator<CounterTimeseriesTable.Counter> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return delegate.hasNext();
+    }
+
+    @Override
+    public CounterTimeseriesTable.Counter next() {
+      CounterTimeseriesTable.Counter counter = delegate.next();
+      count++;
+      return counter;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
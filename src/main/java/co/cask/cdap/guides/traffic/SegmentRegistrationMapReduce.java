@@ -0,0 +1,219 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.ProgramLifecycle;
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.data.batch.Input;
+import co.cask.cdap.api.data.batch.Output;
+import co.cask.cdap.api.dataset.lib.KeyValueTable;
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.api.flow.flowlet.StreamEvent;
+import co.cask.cdap.api.mapreduce.AbstractMapReduce;
+import co.cask.cdap.api.mapreduce.MapReduceContext;
+import co.cask.cdap.api.mapreduce.MapReduceTaskContext;
+import co.cask.cdap.api.metrics.Metrics;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registers the road segments of sensor records, and records the ones that need an integer ID.  It has two uses:
+ * <ul>
+ *   <li>with the {@code input.path} runtime argument, it registers the road segments of archived records before
+ *       they are loaded by {@link TrafficBackfillMapReduce}, as the first step of {@link TrafficBackfillWorkflow};
+ *       and</li>
+ *   <li>without it, it registers every road segment of the stream events up to the logical start time, which
+ *       include the road segments written before the registry existed, whose counters are only stored under their
+ *       legacy keys.  Run it once before {@link SegmentKeyMigrationWorker}, which only migrates registered road
+ *       segments.</li>
+ * </ul>
+ * Each distinct road segment ID is added to the segment registry if it is missing, with the earliest timestamp of
+ * its records.  Road segments without an entry in the {@link SegmentDictionary} are written to
+ * the unassigned segments table, and are assigned their integer IDs by {@link SegmentIdAssignmentAction}.  IDs are
+ * not assigned here, since the tasks of a MapReduce run in a single long transaction, without conflict detection,
+ * and would hand out the same ID to different road segments.
+ */
+public class SegmentRegistrationMapReduce extends AbstractMapReduce {
+  static final String NAME = "SegmentRegistration";
+
+  @Override
+  protected void configure() {
+    setName(NAME);
+    setDescription("Registers the road segments of archived traffic sensor records");
+  }
+
+  @Override
+  protected void initialize() throws Exception {
+    MapReduceContext context = getContext();
+    Map<String, String> args = context.getRuntimeArguments();
+
+    Job job = context.getHadoopJob();
+    job.setMapperClass(SegmentMapper.class);
+    job.setCombinerClass(EarliestTimestampCombiner.class);
+    job.setReducerClass(SegmentReducer.class);
+    job.setMapOutputKeyClass(Text.class);
+    job.setMapOutputValueClass(LongWritable.class);
+    job.setNumReduceTasks(Arguments.getInt(args, TrafficBackfillMapReduce.REDUCERS,
+                                           TrafficBackfillMapReduce.DEFAULT_REDUCERS));
+    if (args.containsKey(TrafficBackfillMapReduce.INPUT_PATH)) {
+      TrafficBackfillMapReduce.addArchiveInput(context);
+    } else {
+      context.addInput(Input.ofStream(TrafficApp.STREAM_NAME, 0L, context.getLogicalStartTime()),
+                       StreamSegmentMapper.class);
+    }
+    context.addOutput(Output.ofDataset(TrafficApp.UNASSIGNED_SEGMENTS_NAME));
+  }
+
+  /**
+   * Parses each line of the input into its road segment ID and timestamp.
+   */
+  public static class SegmentMapper extends Mapper<LongWritable, Text, Text, LongWritable> {
+    private final TrafficEventDecoder decoder = new TrafficEventDecoder();
+    private final Text outputSegment = new Text();
+    private final LongWritable outputTimestamp = new LongWritable();
+
+    @Override
+    protected void map(LongWritable offset, Text line, Context context) throws IOException, InterruptedException {
+      TrafficEvent event = decoder.decode(ByteBuffer.wrap(line.getBytes(), 0, line.getLength()));
+      // bad records are counted by the backfill
+      if (event == null || event.getCount() <= 0) {
+        return;
+      }
+      outputSegment.set(event.getRoadSegmentId());
+      outputTimestamp.set(event.getTimestamp());
+      context.write(outputSegment, outputTimestamp);
+    }
+  }
+
+  /**
+   * Parses each stream event, in either of the formats of {@link TrafficEventParser}, into the road segment IDs and
+   * timestamps of its records.
+   */
+  public static class StreamSegmentMapper extends Mapper<LongWritable, StreamEvent, Text, LongWritable> {
+    private final TrafficEventDecoder decoder = new TrafficEventDecoder();
+    private final List<TrafficEvent> binaryEvents = new ArrayList<TrafficEvent>();
+    private final Text outputSegment = new Text();
+    private final LongWritable outputTimestamp = new LongWritable();
+
+    @Override
+    protected void map(LongWritable timestamp, StreamEvent streamEvent, Context context)
+      throws IOException, InterruptedException {
+      ByteBuffer body = streamEvent.getBody();
+      if (BinaryTrafficEventCodec.isBinary(body)) {
+        try {
+          BinaryTrafficEventCodec.decode(body, binaryEvents);
+          for (TrafficEvent event : binaryEvents) {
+            write(event, context);
+          }
+        } catch (IllegalArgumentException e) {
+          // skipped, as by the flow
+        } finally {
+          binaryEvents.clear();
+        }
+        return;
+      }
+      TrafficEvent event = decoder.decode(body);
+      if (event != null) {
+        write(event, context);
+      }
+    }
+
+    private void write(TrafficEvent event, Context context) throws IOException, InterruptedException {
+      if (event.getCount() <= 0) {
+        return;
+      }
+      outputSegment.set(event.getRoadSegmentId());
+      outputTimestamp.set(event.getTimestamp());
+      context.write(outputSegment, outputTimestamp);
+    }
+  }
+
+  /**
+   * Keeps the earliest timestamp of each road segment.
+   */
+  public static class EarliestTimestampCombiner extends Reducer<Text, LongWritable, Text, LongWritable> {
+    private final LongWritable outputTimestamp = new LongWritable();
+
+    @Override
+    protected void reduce(Text segmentId, Iterable<LongWritable> timestamps, Context context)
+      throws IOException, InterruptedException {
+      outputTimestamp.set(getEarliest(timestamps));
+      context.write(segmentId, outputTimestamp);
+    }
+  }
+
+  /**
+   * Registers each road segment that is not registered yet, and writes the ones without a dictionary entry to the
+   * unassigned segments table.
+   */
+  public static class SegmentReducer extends Reducer<Text, LongWritable, byte[], byte[]>
+    implements ProgramLifecycle<MapReduceTaskContext<byte[], byte[]>> {
+    /** Metrics keys for the road segments registered and left to assign */
+    private static final String REGISTERED = "registration.segments";
+    private static final String UNASSIGNED = "registration.unassigned";
+
+    private KeyValueTable segments;
+    private SegmentDictionary dictionary;
+
+    private Metrics metrics;
+
+    @Override
+    public void initialize(MapReduceTaskContext<byte[], byte[]> context) throws Exception {
+      segments = context.getDataset(TrafficApp.SEGMENT_REGISTRY_NAME);
+      dictionary = new SegmentDictionary(context.<Table>getDataset(TrafficApp.SEGMENT_DICTIONARY_NAME), null);
+    }
+
+    @Override
+    protected void reduce(Text segmentId, Iterable<LongWritable> timestamps, Context context)
+      throws IOException, InterruptedException {
+      String roadSegmentId = segmentId.toString();
+      byte[] segmentKey = Bytes.toBytes(roadSegmentId);
+      byte[] timestamp = Bytes.toBytes(getEarliest(timestamps));
+      if (segments.read(segmentKey) == null) {
+        segments.write(segmentKey, timestamp);
+        metrics.count(REGISTERED, 1);
+      }
+      if (dictionary.get(roadSegmentId) == null) {
+        context.write(segmentKey, timestamp);
+        metrics.count(UNASSIGNED, 1);
+      }
+    }
+
+    @Override
+    public void destroy() {
+      // nothing to release
+    }
+  }
+
+  private static long getEarliest(Iterable<LongWritable> timestamps) {
+    long earliest = Long.MAX_VALUE;
+    for (LongWritable timestamp : timestamps) {
+      earliest = Math.min(earliest, timestamp.get());
+    }
+    return earliest;
+  }
+}
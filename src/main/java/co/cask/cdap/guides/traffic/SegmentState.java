@@ -0,0 +1,261 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.guides.traffic.TrafficConditionService.Condition;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact, materialized state of a single road segment, maintained by {@link TrafficEventSink} as events arrive.
+ * It holds the counter values of the segment for the most recent time window, summed by type into buckets of
+ * {@link #BUCKET_INTERVAL}, so that conditions can be evaluated from a single point lookup instead of a scan, and
+ * the number of cells is bounded by the number of buckets in the window, however many distinct timestamps the
+ * events have.  Counts written before the state was created are not included, so the state only covers a time
+ * range once it has existed for that long.  Instances are not thread-safe.
+ */
+public final class SegmentState {
+  /** Version 1 kept a cell per timestamp; its cells are summed into buckets when decoded */
+  private static final byte UNBUCKETED_VERSION = 1;
+  private static final byte VERSION = 2;
+  private static final TrafficEvent.Type[] TYPES = TrafficEvent.Type.values();
+  private static final Condition[] CONDITIONS = Condition.values();
+  /** Encoded size of the header: version, condition, creation time, last update time, window and cell count */
+  private static final int HEADER_SIZE = 1 + 1 + 8 + 8 + 8 + 4;
+  /** Encoded size of a single cell: timestamp, type and value */
+  private static final int CELL_SIZE = 8 + 1 + 8;
+
+  /** Length of the time buckets into which counts are summed, the time period of the {@link ConditionRules} */
+  public static final long BUCKET_INTERVAL = TrafficApp.TIMESERIES_INTERVAL;
+
+  /**
+   * The summed counter value for a single bucket and type.
+   */
+  public static final class Cell {
+    private final long timestamp;
+    private final TrafficEvent.Type type;
+    private long value;
+
+    private Cell(long timestamp, TrafficEvent.Type type, long value) {
+      this.timestamp = timestamp;
+      this.type = type;
+      this.value = value;
+    }
+
+    /**
+     * Returns the start time of the bucket.
+     */
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    public TrafficEvent.Type getType() {
+      return type;
+    }
+
+    public long getValue() {
+      return value;
+    }
+  }
+
+  private final long window;
+  private long created;
+  /** Ordered by timestamp */
+  private final List<Cell> cells;
+  private Condition condition;
+  private long lastUpdate;
+
+  public SegmentState(long window, long created) {
+    this(window, created, Condition.GREEN, created, new ArrayList<Cell>());
+  }
+
+  private SegmentState(long window, long created, Condition condition, long lastUpdate, List<Cell> cells) {
+    this.window = window;
+    this.created = created;
+    this.condition = condition;
+    this.lastUpdate = lastUpdate;
+    this.cells = cells;
+  }
+
+  /**
+   * Returns the length of the time window, before the last update, for which all counter values are kept.
+   */
+  public long getWindow() {
+    return window;
+  }
+
+  /**
+   * Returns the time the state was created.
+   */
+  public long getCreated() {
+    return created;
+  }
+
+  /**
+   * Returns whether the state holds all counter values of the buckets that overlap the given lookback period before
+   * the end time.
+   */
+  public boolean covers(long lookbackPeriod, long endTime) {
+    return lookbackPeriod <= window && created <= getBucket(endTime - lookbackPeriod);
+  }
+
+  /**
+   * Returns the earliest end time for which the state {@link #covers} the given lookback period, or
+   * {@link Long#MAX_VALUE} if the lookback period is longer than the window.
+   */
+  public long getCoveredFrom(long lookbackPeriod) {
+    if (lookbackPeriod > window) {
+      return Long.MAX_VALUE;
+    }
+    long firstBucket = getBucket(created) == created ? created : getBucket(created) + BUCKET_INTERVAL;
+    return firstBucket + lookbackPeriod;
+  }
+
+  /**
+   * Marks the bucket of the given timestamp, and every earlier one, as missing counts that were written without
+   * updating the state, so that the state no longer covers any lookback period that overlaps them.
+   *
+   * @return whether the state covered that bucket until now
+   */
+  public boolean invalidate(long timestamp) {
+    long end = getBucket(timestamp) + BUCKET_INTERVAL;
+    if (end <= created) {
+      return false;
+    }
+    created = end;
+    return true;
+  }
+
+  /**
+   * Returns the start time of the bucket that contains the given timestamp.
+   */
+  public static long getBucket(long timestamp) {
+    return Resolution.floor(timestamp, BUCKET_INTERVAL);
+  }
+
+  /**
+   * Returns the condition of the segment as of the last update.
+   */
+  public Condition getCondition() {
+    return condition;
+  }
+
+  public long getLastUpdate() {
+    return lastUpdate;
+  }
+
+  public List<Cell> getCells() {
+    return cells;
+  }
+
+  /**
+   * Adds a count to the cell for the bucket of the given timestamp and type.
+   */
+  public void add(long timestamp, TrafficEvent.Type type, long count) {
+    addToBucket(cells, getBucket(timestamp), type, count);
+  }
+
+  private static void addToBucket(List<Cell> cells, long timestamp, TrafficEvent.Type type, long count) {
+    int i = cells.size();
+    while (i > 0 && cells.get(i - 1).timestamp >= timestamp) {
+      Cell cell = cells.get(i - 1);
+      if (cell.timestamp == timestamp && cell.type == type) {
+        cell.value += count;
+        return;
+      }
+      i--;
+    }
+    cells.add(i, new Cell(timestamp, type, count));
+  }
+
+  /**
+   * Drops the cells of the buckets that fall out of the window at the given time, and records the condition at that
+   * time.
+   */
+  public void update(long now, Condition condition) {
+    long minTimestamp = getBucket(now - window);
+    int expired = 0;
+    while (expired < cells.size() && cells.get(expired).timestamp < minTimestamp) {
+      expired++;
+    }
+    cells.subList(0, expired).clear();
+    this.condition = condition;
+    this.lastUpdate = now;
+  }
+
+  public byte[] encode() {
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + cells.size() * CELL_SIZE);
+    buffer.put(VERSION)
+      .put((byte) condition.ordinal())
+      .putLong(created)
+      .putLong(lastUpdate)
+      .putLong(window)
+      .putInt(cells.size());
+    for (Cell cell : cells) {
+      buffer.putLong(cell.timestamp).put((byte) cell.type.ordinal()).putLong(cell.value);
+    }
+    return buffer.array();
+  }
+
+  /**
+   * Returns the time of the last update of a state encoded by {@link #encode()}, without decoding its cells.
+   *
+   * @throws IllegalArgumentException if the bytes are not a valid encoded state
+   */
+  public static long decodeLastUpdate(byte[] bytes) {
+    if (bytes.length < HEADER_SIZE || (bytes[0] != VERSION && bytes[0] != UNBUCKETED_VERSION)) {
+      throw new IllegalArgumentException("Unsupported segment state encoding");
+    }
+    // after the version, condition and creation time
+    return ByteBuffer.wrap(bytes).getLong(1 + 1 + 8);
+  }
+
+  /**
+   * Decodes a state encoded by {@link #encode()}.
+   *
+   * @throws IllegalArgumentException if the bytes are not a valid encoded state
+   */
+  public static SegmentState decode(byte[] bytes) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    byte version = bytes.length < HEADER_SIZE ? 0 : buffer.get();
+    if (version != VERSION && version != UNBUCKETED_VERSION) {
+      throw new IllegalArgumentException("Unsupported segment state encoding");
+    }
+    Condition condition = CONDITIONS[buffer.get()];
+    long created = buffer.getLong();
+    long lastUpdate = buffer.getLong();
+    long window = buffer.getLong();
+    int size = buffer.getInt();
+    if (buffer.remaining() != size * CELL_SIZE) {
+      throw new IllegalArgumentException("Truncated segment state with " + size + " cells");
+    }
+    List<Cell> cells = new ArrayList<Cell>(size);
+    for (int i = 0; i < size; i++) {
+      long timestamp = buffer.getLong();
+      TrafficEvent.Type type = TYPES[buffer.get()];
+      long value = buffer.getLong();
+      if (version == UNBUCKETED_VERSION) {
+        addToBucket(cells, getBucket(timestamp), type, value);
+      } else {
+        cells.add(new Cell(timestamp, type, value));
+      }
+    }
+    return new SegmentState(window, created, condition, lastUpdate, cells);
+  }
+}
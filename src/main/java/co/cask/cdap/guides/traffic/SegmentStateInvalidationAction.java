@@ -0,0 +1,138 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.TxRunnable;
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.customaction.AbstractCustomAction;
+import co.cask.cdap.api.data.DatasetContext;
+import co.cask.cdap.api.dataset.lib.CloseableIterator;
+import co.cask.cdap.api.dataset.lib.KeyValue;
+import co.cask.cdap.api.dataset.lib.KeyValueTable;
+import org.apache.tephra.TransactionFailureException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Invalidates the materialized {@link SegmentState} of the road segments backfilled by
+ * {@link TrafficBackfillMapReduce}, whose counters were written without updating the states.  The state of a road
+ * segment is {@link SegmentState#invalidate invalidated} up to the latest backfilled timestamp, so that conditions
+ * over a lookback period that overlaps the backfilled counters are computed from the timeseries table until the
+ * state covers the lookback period again.  States are rewritten in short transactions, so that concurrent updates
+ * by the flow are detected as conflicts and retried.  The number of road segments per transaction is set with the
+ * {@code invalidation.batch.size} runtime argument.
+ */
+public class SegmentStateInvalidationAction extends AbstractCustomAction {
+  private static final Logger LOG = LoggerFactory.getLogger(SegmentStateInvalidationAction.class);
+
+  static final String NAME = "SegmentStateInvalidation";
+  static final String BATCH_SIZE = "invalidation.batch.size";
+
+  private static final int DEFAULT_BATCH_SIZE = 100;
+  private static final int MAX_ATTEMPTS = 10;
+  private static final long RETRY_DELAY = TimeUnit.SECONDS.toMillis(1);
+
+  @Override
+  protected void configure() {
+    setName(NAME);
+    setDescription("Invalidates the states of the road segments of archived traffic sensor records");
+  }
+
+  @Override
+  public void run() throws Exception {
+    int batchSize = Arguments.getInt(getContext().getRuntimeArguments(), BATCH_SIZE, DEFAULT_BATCH_SIZE);
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException(String.format("Argument '%s' must be positive", BATCH_SIZE));
+    }
+    int invalidated = 0;
+    InvalidationBatch batch;
+    do {
+      batch = new InvalidationBatch(batchSize);
+      execute(batch);
+      invalidated += batch.invalidated;
+    } while (batch.more);
+    LOG.info("Invalidated the states of {} road segments", invalidated);
+  }
+
+  /**
+   * Runs a batch, retrying it when the transaction fails, which happens when the flow updates the state of one of
+   * its road segments at the same time.
+   */
+  private void execute(InvalidationBatch batch) throws TransactionFailureException, InterruptedException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        getContext().execute(batch);
+        return;
+      } catch (TransactionFailureException e) {
+        if (attempt == MAX_ATTEMPTS) {
+          throw e;
+        }
+        LOG.warn("Failed to invalidate road segment states, retrying in {} ms", RETRY_DELAY, e);
+        TimeUnit.MILLISECONDS.sleep(RETRY_DELAY);
+      }
+    }
+  }
+
+  /**
+   * Invalidates the states of the first road segments of the backfilled segments table, and removes them from it.
+   */
+  private static final class InvalidationBatch implements TxRunnable {
+    private final int batchSize;
+    /** Whether road segments are left after this batch */
+    private boolean more;
+    private int invalidated;
+
+    private InvalidationBatch(int batchSize) {
+      this.batchSize = batchSize;
+    }
+
+    @Override
+    public void run(DatasetContext context) throws Exception {
+      more = false;
+      invalidated = 0;
+      KeyValueTable backfilled = context.getDataset(TrafficApp.BACKFILLED_SEGMENTS_NAME);
+      KeyValueTable states = context.getDataset(TrafficApp.SEGMENT_STATE_TABLE_NAME);
+      // each batch starts over, since the previous ones removed their road segments
+      CloseableIterator<KeyValue<byte[], byte[]>> entries = backfilled.scan(null, null);
+      try {
+        int scanned = 0;
+        while (entries.hasNext()) {
+          if (scanned++ == batchSize) {
+            more = true;
+            return;
+          }
+          KeyValue<byte[], byte[]> entry = entries.next();
+          // states are keyed by road segment ID, like the backfilled segments
+          byte[] stored = states.read(entry.getKey());
+          if (stored != null) {
+            SegmentState state = SegmentState.decode(stored);
+            if (state.invalidate(Bytes.toLong(entry.getValue()))) {
+              states.write(entry.getKey(), state.encode());
+              invalidated++;
+            }
+          }
+          backfilled.delete(entry.getKey());
+        }
+      } finally {
+        entries.close();
+      }
+    }
+  }
+}
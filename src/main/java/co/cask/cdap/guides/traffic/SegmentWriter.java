@@ -0,0 +1,227 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.lib.CounterTimeseriesTable;
+import co.cask.cdap.api.dataset.lib.KeyValueTable;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The write path of {@link TrafficEventSink}, kept apart from the flowlet so that {@code TrafficEventSinkBenchmark}
+ * runs the same code against in-memory tables.  Events added in a transaction are summed per road segment ID, type
+ * and timestamp, and {@link #write} then increments each counter once in the raw and rollup tables, registers new
+ * road segments, and updates the {@link SegmentState} of each road segment of the batch.  {@link #commit} or
+ * {@link #abort} must be called once the transaction ends.  Instances are not thread-safe.
+ */
+final class SegmentWriter {
+  /** Maximum number of road segment IDs remembered as already registered */
+  private static final int REGISTERED_CACHE_SIZE = 100000;
+
+  private final Map<Resolution, CounterTimeseriesTable> tables;
+  private final KeyValueTable segments;
+  private final KeyValueTable states;
+  private final SegmentDictionary dictionary;
+  private final SegmentKeys keys;
+  private final LegacyCounters legacyCounters;
+  private final ConditionRuleSet ruleSet;
+  private final long stateWindow;
+
+  private final TrafficCountAggregator aggregator = new TrafficCountAggregator();
+  private final Map<Resolution, TrafficCountAggregator> rollups =
+    new EnumMap<Resolution, TrafficCountAggregator>(Resolution.class);
+
+  /** Road segment IDs known to be in the registry, to avoid rewriting them for every batch */
+  private final Cache<String, Boolean> registered =
+    CacheBuilder.newBuilder().maximumSize(REGISTERED_CACHE_SIZE).build();
+  /** Road segment IDs registered by the current transaction, only remembered once it commits */
+  private final Set<String> registering = new HashSet<String>();
+  /** Segment states updated by the current batch */
+  private final Map<String, SegmentState> batchStates = new HashMap<String, SegmentState>();
+
+  /**
+   * @param tables the timeseries table of each {@link Resolution}
+   * @param segments the segment registry
+   * @param states the table of segment states
+   * @param legacyCounters the retentions to look up legacy counters within, when assigning IDs
+   * @param stateWindow the time window of counters kept in each segment state
+   */
+  SegmentWriter(Map<Resolution, CounterTimeseriesTable> tables, KeyValueTable segments, KeyValueTable states,
+                SegmentDictionary dictionary, SegmentKeys keys, LegacyCounters legacyCounters,
+                ConditionRuleSet ruleSet, long stateWindow) {
+    for (Resolution resolution : Resolution.values()) {
+      if (!tables.containsKey(resolution)) {
+        throw new IllegalArgumentException("No timeseries table for resolution " + resolution);
+      }
+      if (resolution != Resolution.RAW) {
+        rollups.put(resolution, new TrafficCountAggregator());
+      }
+    }
+    this.tables = new EnumMap<Resolution, CounterTimeseriesTable>(tables);
+    this.segments = segments;
+    this.states = states;
+    this.dictionary = dictionary;
+    this.keys = keys;
+    this.legacyCounters = legacyCounters;
+    this.ruleSet = ruleSet;
+    this.stateWindow = stateWindow;
+  }
+
+  /**
+   * Adds the count of an event to the counts of the current batch.
+   */
+  void add(TrafficEvent event) {
+    aggregator.add(event);
+  }
+
+  /**
+   * Returns the counts of the current batch, summed per road segment ID, type and timestamp.
+   */
+  Collection<TrafficCountAggregator.Cell> getCells() {
+    return aggregator.getCells();
+  }
+
+  /**
+   * Writes the counts of the current batch to the tables, and updates the states of its road segments.
+   *
+   * @param now the current time, up to which the states are evaluated
+   * @return the number of counters incremented
+   */
+  int write(long now) {
+    CounterTimeseriesTable table = tables.get(Resolution.RAW);
+    for (TrafficCountAggregator.Cell cell : aggregator.getCells()) {
+      // look up the state before incrementing, to tell whether the segment has earlier counters
+      getState(cell.getRoadSegmentId(), now).add(cell.getTimestamp(), cell.getType(), cell.getCount());
+      increment(table, cell, now);
+      for (Map.Entry<Resolution, TrafficCountAggregator> rollup : rollups.entrySet()) {
+        rollup.getValue().add(cell.getRoadSegmentId(), cell.getType(), rollup.getKey().getBucket(cell.getTimestamp()),
+                              cell.getCount());
+      }
+      register(cell);
+    }
+    int increments = aggregator.getCells().size();
+    for (Map.Entry<Resolution, TrafficCountAggregator> rollup : rollups.entrySet()) {
+      CounterTimeseriesTable rollupTable = tables.get(rollup.getKey());
+      for (TrafficCountAggregator.Cell cell : rollup.getValue().getCells()) {
+        increment(rollupTable, cell, now);
+      }
+      increments += rollup.getValue().getCells().size();
+    }
+    for (Map.Entry<String, SegmentState> entry : batchStates.entrySet()) {
+      SegmentState state = entry.getValue();
+      state.update(now, ruleSet.getRules(entry.getKey()).evaluate(state, now));
+      states.write(Bytes.toBytes(entry.getKey()), state.encode());
+    }
+    return increments;
+  }
+
+  /**
+   * Forgets the counts and states of the current batch.  A failed batch is retried from the start, so this must be
+   * called after every batch, whether it was written or not.
+   */
+  void clear() {
+    aggregator.clear();
+    for (TrafficCountAggregator rollup : rollups.values()) {
+      rollup.clear();
+    }
+    batchStates.clear();
+  }
+
+  /**
+   * Remembers the IDs assigned and the road segments registered by the transaction, once it committed.
+   */
+  void commit() {
+    dictionary.commit();
+    for (String segmentId : registering) {
+      registered.put(segmentId, Boolean.TRUE);
+    }
+    registering.clear();
+  }
+
+  /**
+   * Forgets the IDs assigned and the road segments registered by the transaction, once it failed.
+   */
+  void abort() {
+    dictionary.abort();
+    registering.clear();
+  }
+
+  private void increment(CounterTimeseriesTable table, TrafficCountAggregator.Cell cell, long now) {
+    table.increment(getKey(cell.getRoadSegmentId(), now), cell.getCount(), cell.getTimestamp(),
+                    SegmentKeys.typeTag(cell.getType()));
+  }
+
+  /**
+   * Returns the counter key of a road segment, assigning it an integer ID if it does not have one yet.  Road
+   * segments written before the dictionary existed, registered or not, have counters under their legacy keys, so a
+   * new ID only starts as migrated if there are none.
+   */
+  private byte[] getKey(String segmentId, long now) {
+    SegmentDictionary.Entry entry = dictionary.get(segmentId);
+    if (entry == null) {
+      entry = dictionary.assign(segmentId, !legacyCounters.exists(tables, segmentId, now), keys);
+    }
+    return keys.toKey(entry.getId());
+  }
+
+  /**
+   * Returns the state of a road segment, reading it on first use in the batch.  A segment without a state and
+   * without counters in the window has no earlier counts to miss, so its new state is complete from the start.
+   * Otherwise, as for segments written before states existed, the new state only covers the time after it is
+   * created.
+   */
+  private SegmentState getState(String segmentId, long now) {
+    SegmentState state = batchStates.get(segmentId);
+    if (state == null) {
+      byte[] stored = states.read(Bytes.toBytes(segmentId));
+      if (stored != null) {
+        state = SegmentState.decode(stored);
+      }
+      if (state == null || state.getWindow() != stateWindow) {
+        boolean complete = stored == null && !hasCounters(segmentId, now);
+        state = new SegmentState(stateWindow, complete ? 0L : now);
+      }
+      batchStates.put(segmentId, state);
+    }
+    return state;
+  }
+
+  /**
+   * Returns whether a road segment has counters that fall within the window of its state at the given time.
+   */
+  private boolean hasCounters(String segmentId, long now) {
+    return keys.read(tables.get(Resolution.RAW), dictionary.get(segmentId), segmentId,
+                     SegmentState.getBucket(now - stateWindow), now + SegmentKeyMigrationWorker.MAX_CLOCK_SKEW,
+                     null).hasNext();
+  }
+
+  private void register(TrafficCountAggregator.Cell cell) {
+    String segmentId = cell.getRoadSegmentId();
+    if (registered.getIfPresent(segmentId) == null && registering.add(segmentId)) {
+      segments.write(Bytes.toBytes(segmentId), Bytes.toBytes(cell.getTimestamp()));
+    }
+  }
+}
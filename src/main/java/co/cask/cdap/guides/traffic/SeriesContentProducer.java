@@ -0,0 +1,167 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.Transactional;
+import co.cask.cdap.api.TxRunnable;
+import co.cask.cdap.api.data.DatasetContext;
+import co.cask.cdap.api.dataset.lib.CounterTimeseriesTable;
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.api.service.http.HttpContentProducer;
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.annotation.Nullable;
+
+/**
+ * Streams the counters of a road segment over a time range as JSON lines, one per timestamp and type with a
+ * non-zero count:
+ * <pre>
+ *   {"timestamp":1418673600000,"type":"VEHICLE","count":10}
+ * </pre>
+ * The range is read lazily, one time window per chunk, so memory use does not depend on the length of the range.
+ * Each window is one row of the timeseries table, and is read in a short transaction of its own.  If a step is
+ * given, counts are summed into buckets aligned to multiples of the step, read from the coarsest
+ * {@link Resolution} that fits the step, and each bucket is reported at its start time.
+ */
+final class SeriesContentProducer extends HttpContentProducer {
+  static final String CONTENT_TYPE = "application/x-ndjson";
+
+  private static final Logger LOG = LoggerFactory.getLogger(SeriesContentProducer.class);
+  private static final TrafficEvent.Type[] TYPES = TrafficEvent.Type.values();
+
+  /** Maximum number of empty windows to skip in a single transaction */
+  private static final int MAX_WINDOWS_PER_TRANSACTION = 64;
+
+  private final String segmentId;
+  private final SegmentKeys keys;
+  private final Cache<String, SegmentDictionary.Entry> dictionaryCache;
+  @Nullable
+  private final TrafficEvent.Type type;
+  private final long step;
+  private final Resolution resolution;
+  private final long window;
+  private final long end;
+  /** Start of the next window to read */
+  private long next;
+
+  /**
+   * @param type the type of counters to return, or null for all types
+   * @param step the bucket size in milliseconds, or 0 to return the raw counters
+   * @param keys the layout of the counter keys
+   * @param dictionaryCache the cache of road segment dictionary entries
+   */
+  SeriesContentProducer(String segmentId, @Nullable TrafficEvent.Type type, long start, long end, long step,
+                        SegmentKeys keys, Cache<String, SegmentDictionary.Entry> dictionaryCache) {
+    this.segmentId = segmentId;
+    this.keys = keys;
+    this.dictionaryCache = dictionaryCache;
+    this.type = type;
+    this.step = step;
+    if (step == 0) {
+      this.resolution = Resolution.RAW;
+      this.window = resolution.getRowInterval();
+      this.next = start;
+      this.end = end;
+    } else {
+      this.resolution = Resolution.forStep(step);
+      this.window = Math.max(1, resolution.getRowInterval() / step) * step;
+      this.next = Resolution.floor(start, step);
+      this.end = Resolution.floor(end, step) + step - 1;
+    }
+  }
+
+  @Override
+  public ByteBuffer nextChunk(Transactional transactional) throws Exception {
+    // an empty chunk ends the response, so keep reading until some counters are found or the range is done
+    final StringBuilder lines = new StringBuilder();
+    while (lines.length() == 0 && next <= end) {
+      final long[] position = { next };
+      transactional.execute(new TxRunnable() {
+        @Override
+        public void run(DatasetContext context) throws Exception {
+          CounterTimeseriesTable table = context.getDataset(resolution.getTableName());
+          Table dictionaryTable = context.getDataset(TrafficApp.SEGMENT_DICTIONARY_NAME);
+          // looked up for every chunk, since the road segment may be migrated while streaming
+          SegmentDictionary.Entry entry = new SegmentDictionary(dictionaryTable, dictionaryCache).get(segmentId);
+          lines.setLength(0);
+          position[0] = next;
+          for (int i = 0; i < MAX_WINDOWS_PER_TRANSACTION && lines.length() == 0 && position[0] <= end; i++) {
+            long windowEnd = Math.min(end, position[0] + window - 1);
+            readWindow(table, entry, position[0], windowEnd, lines);
+            position[0] = windowEnd + 1;
+          }
+        }
+      });
+      next = position[0];
+    }
+    return ByteBuffer.wrap(lines.toString().getBytes(Charsets.UTF_8));
+  }
+
+  @Override
+  public void onFinish() throws Exception {
+    // nothing to release, each chunk is read in a transaction of its own
+  }
+
+  @Override
+  public void onError(Throwable failure) {
+    LOG.warn("Failed to stream counters for road segment {} at {}", segmentId, next, failure);
+  }
+
+  private void readWindow(CounterTimeseriesTable table, @Nullable SegmentDictionary.Entry entry, long start,
+                          long end, StringBuilder lines) {
+    Iterator<CounterTimeseriesTable.Counter> counters = keys.read(table, entry, segmentId, start, end, type);
+    // counters of a road segment that is not migrated yet can be split between its two keys, so they are summed
+    // per bucket, which is a single timestamp for raw counters; buckets never span windows, since windows are
+    // aligned to multiples of the step
+    Map<Long, long[]> buckets = new TreeMap<Long, long[]>();
+    while (counters.hasNext()) {
+      CounterTimeseriesTable.Counter counter = counters.next();
+      TrafficEvent.Type counterType = SegmentKeys.getType(counter);
+      if (counterType == null) {
+        continue;
+      }
+      long bucket = step == 0 ? counter.getTimestamp() : Resolution.floor(counter.getTimestamp(), step);
+      long[] counts = buckets.get(bucket);
+      if (counts == null) {
+        counts = new long[TYPES.length];
+        buckets.put(bucket, counts);
+      }
+      counts[counterType.ordinal()] += counter.getValue();
+    }
+    for (Map.Entry<Long, long[]> bucket : buckets.entrySet()) {
+      for (TrafficEvent.Type bucketType : TYPES) {
+        long count = bucket.getValue()[bucketType.ordinal()];
+        if (count != 0) {
+          appendLine(lines, bucket.getKey(), bucketType, count);
+        }
+      }
+    }
+  }
+
+  private static void appendLine(StringBuilder lines, long timestamp, TrafficEvent.Type type, long count) {
+    lines.append("{\"timestamp\":").append(timestamp)
+      .append(",\"type\":\"").append(type.name())
+      .append("\",\"count\":").append(count).append("}\n");
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import com.google.common.base.Charsets;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Space-Saving summary of the heaviest items of a weighted stream, in memory bounded by its capacity.  When the
+ * summary is full, a new item replaces the item with the smallest count, and inherits that count as its error, so
+ * each reported count overestimates the true count by at most its error.  Any item with a true count larger than
+ * the smallest count in the summary is guaranteed to be in it.  Instances are not thread-safe.
+ */
+final class SpaceSaving {
+
+  /**
+   * The estimated count of an item, and the maximum amount by which it overestimates the true count.
+   */
+  static final class Entry {
+    private final String item;
+    private long count;
+    private long error;
+
+    private Entry(String item, long count, long error) {
+      this.item = item;
+      this.count = count;
+      this.error = error;
+    }
+
+    String getItem() {
+      return item;
+    }
+
+    long getCount() {
+      return count;
+    }
+
+    long getError() {
+      return error;
+    }
+  }
+
+  /** Orders entries by ascending count, and by item to tell apart entries with the same count */
+  private static final Comparator<Entry> BY_COUNT = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry first, Entry second) {
+      if (first.count != second.count) {
+        return first.count < second.count ? -1 : 1;
+      }
+      return first.item.compareTo(second.item);
+    }
+  };
+
+  private final int capacity;
+  private final Map<String, Entry> entries = new HashMap<String, Entry>();
+  private final TreeSet<Entry> byCount = new TreeSet<Entry>(BY_COUNT);
+
+  SpaceSaving(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive, got: " + capacity);
+    }
+    this.capacity = capacity;
+  }
+
+  /**
+   * Adds a positive count to an item.
+   */
+  void offer(String item, long count) {
+    Entry entry = entries.get(item);
+    if (entry != null) {
+      byCount.remove(entry);
+      entry.count += count;
+    } else if (entries.size() < capacity) {
+      entry = new Entry(item, count, 0);
+      entries.put(item, entry);
+    } else {
+      Entry min = byCount.pollFirst();
+      entries.remove(min.item);
+      entry = new Entry(item, min.count + count, min.count);
+      entries.put(item, entry);
+    }
+    byCount.add(entry);
+  }
+
+  Collection<Entry> getEntries() {
+    return entries.values();
+  }
+
+  SpaceSaving copy() {
+    SpaceSaving copy = new SpaceSaving(capacity);
+    for (Entry entry : entries.values()) {
+      copy.put(entry.item, entry.count, entry.error);
+    }
+    return copy;
+  }
+
+  /**
+   * Returns the number of bytes written by {@link #encode}.
+   */
+  int getEncodedSize() {
+    int size = 4 + 4;
+    for (Entry entry : entries.values()) {
+      size += 4 + entry.item.getBytes(Charsets.UTF_8).length + 8 + 8;
+    }
+    return size;
+  }
+
+  void encode(ByteBuffer buffer) {
+    buffer.putInt(capacity).putInt(entries.size());
+    for (Entry entry : entries.values()) {
+      byte[] item = entry.item.getBytes(Charsets.UTF_8);
+      buffer.putInt(item.length).put(item).putLong(entry.count).putLong(entry.error);
+    }
+  }
+
+  /**
+   * Decodes a summary written by {@link #encode}.
+   *
+   * @throws IllegalArgumentException if the buffer does not hold a valid summary
+   */
+  static SpaceSaving decode(ByteBuffer buffer) {
+    SpaceSaving summary = new SpaceSaving(buffer.getInt());
+    int size = buffer.getInt();
+    if (size < 0 || size > summary.capacity) {
+      throw new IllegalArgumentException("Invalid summary size " + size + " for capacity " + summary.capacity);
+    }
+    for (int i = 0; i < size; i++) {
+      int length = buffer.getInt();
+      if (length < 0 || length > buffer.remaining()) {
+        throw new IllegalArgumentException("Truncated summary with " + size + " entries");
+      }
+      byte[] item = new byte[length];
+      buffer.get(item);
+      summary.put(new String(item, Charsets.UTF_8), buffer.getLong(), buffer.getLong());
+    }
+    return summary;
+  }
+
+  private void put(String item, long count, long error) {
+    Entry entry = new Entry(item, count, error);
+    entries.put(item, entry);
+    byCount.add(entry);
+  }
+}
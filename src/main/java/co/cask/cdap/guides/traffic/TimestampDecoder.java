@@ -0,0 +1,141 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import com.google.common.base.Charsets;
+
+import java.nio.ByteBuffer;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+/**
+ * Thread-safe decoder for timestamps in the {@link TrafficEventParser#DATE_FORMAT} format.
+ *
+ * <p>
+ * Timestamps in the canonical {@code yyyy-MM-dd HH:mm:ss} form are decoded straight from the bytes, using a small
+ * cache of epoch millis keyed by the {@code yyyy-MM-dd HH:mm} minute prefix.  Sensor reports arrive roughly in time
+ * order, so almost every lookup hits the cache.  Anything else is handed to a lenient {@link SimpleDateFormat}, so
+ * that the accepted values are exactly the same as before.
+ * </p>
+ */
+public class TimestampDecoder {
+  /** Length of a timestamp in the canonical {@code yyyy-MM-dd HH:mm:ss} form */
+  private static final int TIMESTAMP_LENGTH = 19;
+  /** Length of the {@code yyyy-MM-dd HH:mm} prefix used as the cache key */
+  private static final int MINUTE_PREFIX_LENGTH = 16;
+  private static final String MINUTE_FORMAT = "yyyy-MM-dd HH:mm";
+  /** Expected separator for each position in the canonical form, or 0 for a digit */
+  private static final byte[] LAYOUT = {
+    0, 0, 0, 0, '-', 0, 0, '-', 0, 0, ' ', 0, 0, ':', 0, 0, ':', 0, 0
+  };
+  /** Number of cached minutes, must be a power of two */
+  private static final int CACHE_SIZE = 64;
+
+  /**
+   * Cached epoch millis for a single minute.  Entries are immutable, so they can be shared between threads
+   * without locking.
+   */
+  private static final class Minute {
+    private final long key;
+    private final long millis;
+
+    private Minute(long key, long millis) {
+      this.key = key;
+      this.millis = millis;
+    }
+  }
+
+  private final Minute[] minutes = new Minute[CACHE_SIZE];
+  private final DateFormat minuteFormat = new SimpleDateFormat(MINUTE_FORMAT);
+  private final DateFormat fullFormat = new SimpleDateFormat(TrafficEventParser.DATE_FORMAT);
+
+  /**
+   * Decodes the timestamp held in the bytes {@code [start, end)} of the given buffer.
+   *
+   * @throws ParseException if the bytes are not a valid timestamp
+   */
+  public long decode(ByteBuffer buffer, int start, int end) throws ParseException {
+    if (!isCanonical(buffer, start, end)) {
+      return parse(decodeString(buffer, start, end));
+    }
+    long key = 0;
+    for (int i = 0; i < MINUTE_PREFIX_LENGTH; i++) {
+      if (LAYOUT[i] == 0) {
+        key = key * 10 + (buffer.get(start + i) - '0');
+      }
+    }
+    int seconds = (buffer.get(start + 17) - '0') * 10 + (buffer.get(start + 18) - '0');
+
+    int slot = (int) (key & (CACHE_SIZE - 1));
+    Minute minute = minutes[slot];
+    if (minute == null || minute.key != key) {
+      minute = new Minute(key, parseMinute(decodeString(buffer, start, start + MINUTE_PREFIX_LENGTH)));
+      minutes[slot] = minute;
+    }
+    return minute.millis + seconds * 1000L;
+  }
+
+  /**
+   * Parses a timestamp string using the same lenient rules as {@link SimpleDateFormat#parse(String)}.
+   */
+  public long parse(String timestamp) throws ParseException {
+    synchronized (fullFormat) {
+      return fullFormat.parse(timestamp).getTime();
+    }
+  }
+
+  private long parseMinute(String prefix) throws ParseException {
+    synchronized (minuteFormat) {
+      return minuteFormat.parse(prefix).getTime();
+    }
+  }
+
+  /**
+   * Returns whether the bytes are a {@code yyyy-MM-dd HH:mm:ss} timestamp with nothing trailing, and with seconds
+   * inside the minute, so that adding them to the minute start gives the same result as a full parse.
+   */
+  private static boolean isCanonical(ByteBuffer buffer, int start, int end) {
+    if (end - start != TIMESTAMP_LENGTH) {
+      return false;
+    }
+    for (int i = 0; i < TIMESTAMP_LENGTH; i++) {
+      byte b = buffer.get(start + i);
+      if (LAYOUT[i] == 0) {
+        if (b < '0' || b > '9') {
+          return false;
+        }
+      } else if (b != LAYOUT[i]) {
+        return false;
+      }
+    }
+    return buffer.get(start + 17) <= '5';
+  }
+
+  /**
+   * Decodes the UTF-8 bytes {@code [start, end)} of the given buffer, leaving the buffer position unchanged.
+   */
+  static String decodeString(ByteBuffer buffer, int start, int end) {
+    if (buffer.hasArray()) {
+      return new String(buffer.array(), buffer.arrayOffset() + start, end - start, Charsets.UTF_8);
+    }
+    ByteBuffer slice = buffer.duplicate();
+    slice.limit(end);
+    slice.position(start);
+    return Charsets.UTF_8.decode(slice).toString();
+  }
+}
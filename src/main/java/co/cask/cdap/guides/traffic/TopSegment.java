@@ -0,0 +1,45 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+/**
+ * Estimated count of events of one type for a road segment over the recent window, which overestimates the true
+ * count by at most {@code error}, see {@link TopSegments}.
+ */
+final class TopSegment {
+  private final String segment;
+  private final long count;
+  private final long error;
+
+  TopSegment(String segment, long count, long error) {
+    this.segment = segment;
+    this.count = count;
+    this.error = error;
+  }
+
+  String getSegment() {
+    return segment;
+  }
+
+  long getCount() {
+    return count;
+  }
+
+  long getError() {
+    return error;
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.common.Bytes;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Approximate heaviest road segments per {@link TrafficEvent.Type} over a rolling time window, maintained by
+ * {@link TrafficEventSink}.  The window is split into buckets by event timestamp, each with a {@link SpaceSaving}
+ * summary of bounded capacity, so memory does not depend on the number of road segments.  Buckets that fall out of
+ * the window, relative to the newest bucket, are dropped, and counts older than the window are ignored.  The
+ * buckets of a type are checkpointed as a single value, and checkpoints written by different sink instances, which
+ * own disjoint sets of road segments, are merged with {@link #top}.  Instances are not thread-safe.
+ */
+final class TopSegments {
+  private static final byte VERSION = 1;
+  /** Encoded size of the header of a checkpoint: version, bucket interval, bucket count and number of buckets */
+  private static final int HEADER_SIZE = 1 + 8 + 4 + 4;
+  private static final TrafficEvent.Type[] TYPES = TrafficEvent.Type.values();
+
+  /**
+   * The estimated count of a road segment, summed over buckets and sink instances, and the maximum amount by which
+   * it overestimates the true count.  Counts in buckets that the road segment was evicted from are not included,
+   * which only happens for road segments that are not among the heaviest of those buckets.
+   */
+  static final class Segment {
+    private final String segment;
+    private long count;
+    private long error;
+
+    private Segment(String segment) {
+      this.segment = segment;
+    }
+
+    String getSegment() {
+      return segment;
+    }
+
+    long getCount() {
+      return count;
+    }
+
+    long getError() {
+      return error;
+    }
+  }
+
+  private static final Comparator<Segment> BY_COUNT_DESCENDING = new Comparator<Segment>() {
+    @Override
+    public int compare(Segment first, Segment second) {
+      if (first.count != second.count) {
+        return first.count > second.count ? -1 : 1;
+      }
+      return first.segment.compareTo(second.segment);
+    }
+  };
+
+  private final long bucketInterval;
+  private final int bucketCount;
+  private final int capacity;
+  /** Summaries by bucket start time, for each type */
+  private final Map<TrafficEvent.Type, TreeMap<Long, SpaceSaving>> buckets =
+    new EnumMap<TrafficEvent.Type, TreeMap<Long, SpaceSaving>>(TrafficEvent.Type.class);
+
+  /**
+   * @param window the length of the rolling window in milliseconds
+   * @param bucketCount the number of buckets the window is split into
+   * @param capacity the capacity of the summary of each bucket
+   */
+  TopSegments(long window, int bucketCount, int capacity) {
+    if (window < bucketCount || bucketCount <= 0 || capacity <= 0) {
+      throw new IllegalArgumentException("Invalid window, bucket count or capacity");
+    }
+    this.bucketInterval = window / bucketCount;
+    this.bucketCount = bucketCount;
+    this.capacity = capacity;
+    for (TrafficEvent.Type type : TYPES) {
+      buckets.put(type, new TreeMap<Long, SpaceSaving>());
+    }
+  }
+
+  /**
+   * Returns the key of the checkpoint of a type written by a sink instance.
+   */
+  static byte[] getCheckpointKey(TrafficEvent.Type type, int instanceId) {
+    return Bytes.toBytes(type.name() + "/" + instanceId);
+  }
+
+  /**
+   * Returns the common prefix of the keys of the checkpoints of a type written by all sink instances.
+   */
+  static byte[] getCheckpointPrefix(TrafficEvent.Type type) {
+    return Bytes.toBytes(type.name() + "/");
+  }
+
+  void add(String roadSegmentId, TrafficEvent.Type type, long timestamp, long count) {
+    TreeMap<Long, SpaceSaving> typeBuckets = buckets.get(type);
+    long bucket = Resolution.floor(timestamp, bucketInterval);
+    long newest = typeBuckets.isEmpty() ? bucket : Math.max(bucket, typeBuckets.lastKey());
+    long oldest = newest - (bucketCount - 1) * bucketInterval;
+    if (bucket < oldest) {
+      return;
+    }
+    SpaceSaving summary = typeBuckets.get(bucket);
+    if (summary == null) {
+      summary = new SpaceSaving(capacity);
+      typeBuckets.put(bucket, summary);
+      typeBuckets.headMap(oldest).clear();
+    }
+    summary.offer(roadSegmentId, count);
+  }
+
+  TopSegments copy() {
+    TopSegments copy = new TopSegments(bucketInterval * bucketCount, bucketCount, capacity);
+    for (TrafficEvent.Type type : TYPES) {
+      for (Map.Entry<Long, SpaceSaving> bucket : buckets.get(type).entrySet()) {
+        copy.buckets.get(type).put(bucket.getKey(), bucket.getValue().copy());
+      }
+    }
+    return copy;
+  }
+
+  /**
+   * Encodes the buckets of a type, as a checkpoint that can be read with {@link #restore} and {@link #top}.
+   */
+  byte[] encode(TrafficEvent.Type type) {
+    TreeMap<Long, SpaceSaving> typeBuckets = buckets.get(type);
+    int size = HEADER_SIZE;
+    for (SpaceSaving summary : typeBuckets.values()) {
+      size += 8 + summary.getEncodedSize();
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    buffer.put(VERSION).putLong(bucketInterval).putInt(bucketCount).putInt(typeBuckets.size());
+    for (Map.Entry<Long, SpaceSaving> bucket : typeBuckets.entrySet()) {
+      buffer.putLong(bucket.getKey());
+      bucket.getValue().encode(buffer);
+    }
+    return buffer.array();
+  }
+
+  /**
+   * Replaces the buckets of a type with the ones from a checkpoint.  Checkpoints written with a different bucket
+   * interval or count are ignored.
+   *
+   * @throws IllegalArgumentException if the checkpoint is not valid
+   */
+  void restore(TrafficEvent.Type type, byte[] checkpoint) {
+    ByteBuffer header = getHeader(checkpoint);
+    if (header.getLong() == bucketInterval && header.getInt() == bucketCount) {
+      buckets.put(type, decode(checkpoint));
+    }
+  }
+
+  /**
+   * Returns the heaviest road segments in the given checkpoints, counting the buckets that overlap the window of
+   * each checkpoint before the given time.  Bucket summaries are merged by summing the counts and errors of each
+   * road segment, so the cost depends on the number and capacity of the summaries, not on the number of road
+   * segments.
+   *
+   * @throws IllegalArgumentException if any checkpoint is not valid
+   */
+  static List<Segment> top(Iterable<byte[]> checkpoints, long now, int k) {
+    Map<String, Segment> merged = new HashMap<String, Segment>();
+    for (byte[] checkpoint : checkpoints) {
+      ByteBuffer header = getHeader(checkpoint);
+      long interval = header.getLong();
+      long start = now - interval * header.getInt();
+      for (Map.Entry<Long, SpaceSaving> bucket : decode(checkpoint).entrySet()) {
+        if (bucket.getKey() + interval <= start) {
+          continue;
+        }
+        for (SpaceSaving.Entry entry : bucket.getValue().getEntries()) {
+          Segment segment = merged.get(entry.getItem());
+          if (segment == null) {
+            segment = new Segment(entry.getItem());
+            merged.put(entry.getItem(), segment);
+          }
+          segment.count += entry.getCount();
+          segment.error += entry.getError();
+        }
+      }
+    }
+    List<Segment> segments = new ArrayList<Segment>(merged.values());
+    Collections.sort(segments, BY_COUNT_DESCENDING);
+    return segments.size() > k ? new ArrayList<Segment>(segments.subList(0, k)) : segments;
+  }
+
+  /**
+   * Returns a buffer positioned at the bucket interval of a checkpoint, after checking its version.
+   */
+  private static ByteBuffer getHeader(byte[] checkpoint) {
+    if (checkpoint.length < HEADER_SIZE || checkpoint[0] != VERSION) {
+      throw new IllegalArgumentException("Unsupported top segments encoding");
+    }
+    return ByteBuffer.wrap(checkpoint, 1, checkpoint.length - 1);
+  }
+
+  private static TreeMap<Long, SpaceSaving> decode(byte[] checkpoint) {
+    ByteBuffer buffer = getHeader(checkpoint);
+    buffer.position(HEADER_SIZE - 4);
+    int size = buffer.getInt();
+    TreeMap<Long, SpaceSaving> decoded = new TreeMap<Long, SpaceSaving>();
+    for (int i = 0; i < size; i++) {
+      decoded.put(buffer.getLong(), SpaceSaving.decode(buffer));
+    }
+    return decoded;
+  }
+}
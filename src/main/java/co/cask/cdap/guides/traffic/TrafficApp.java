@@ -16,20 +16,46 @@
 
 package co.cask.cdap.guides.traffic;
 
+import co.cask.cdap.api.Config;
 import co.cask.cdap.api.app.AbstractApplication;
+import co.cask.cdap.api.app.ProgramType;
 import co.cask.cdap.api.data.stream.Stream;
 import co.cask.cdap.api.dataset.DatasetProperties;
 import co.cask.cdap.api.dataset.lib.CounterTimeseriesTable;
+import co.cask.cdap.api.dataset.lib.KeyValueTable;
 import co.cask.cdap.api.dataset.lib.TimeseriesTables;
+import co.cask.cdap.api.dataset.table.Table;
+
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 
 /**
  * An application that demonstrates real-time processing of events from a sensor network, and storage using
  * a timeseries Dataset.
  */
-public class TrafficApp extends AbstractApplication {
+public class TrafficApp extends AbstractApplication<TrafficApp.TrafficConfig> {
   static final String APP_NAME = "TrafficApp";
   static final String STREAM_NAME = "trafficEvents";
   static final String TIMESERIES_TABLE_NAME = "trafficEventTable";
+  /** Rollup timeseries tables, see {@link Resolution} */
+  static final String MINUTE_TABLE_NAME = "trafficEventTable1m";
+  static final String HOUR_TABLE_NAME = "trafficEventTable1h";
+  static final String DAY_TABLE_NAME = "trafficEventTable1d";
+  /** Registry of all road segment IDs seen, keyed by segment ID, used to look up segments by prefix */
+  static final String SEGMENT_REGISTRY_NAME = "trafficSegments";
+  /** Materialized {@link SegmentState} of each road segment, keyed by segment ID */
+  static final String SEGMENT_STATE_TABLE_NAME = "trafficConditions";
+  /** {@link SegmentDictionary} of the integer IDs that key the counters of each road segment */
+  static final String SEGMENT_DICTIONARY_NAME = "trafficSegmentIds";
+  /** Road segments of a backfill without a {@link SegmentDictionary} entry yet, see {@link TrafficBackfillWorkflow} */
+  static final String UNASSIGNED_SEGMENTS_NAME = "trafficUnassignedSegments";
+  /** Latest timestamp backfilled for each road segment whose {@link SegmentState} may not be invalidated yet */
+  static final String BACKFILLED_SEGMENTS_NAME = "trafficBackfilledSegments";
+  /** Checkpoints of the {@link TopSegments} of each sink instance, keyed by type and instance ID */
+  static final String TOP_SEGMENTS_NAME = "trafficTopSegments";
+  /** Encoded {@link Baseline} of each road segment, keyed by segment ID */
+  static final String BASELINE_TABLE_NAME = "trafficBaselines";
+  static final String BASELINE_SCHEDULE_NAME = "DailyBaseline";
 
   /**
    * Time interval to store per row in the TimeseriesTable.  This controls the time range over which entries
@@ -37,17 +63,120 @@ public class TrafficApp extends AbstractApplication {
    */
   public static final int TIMESERIES_INTERVAL = 15 * 60 * 1000; // 15 minutes
 
+  /**
+   * Configuration for the application, given when it is deployed.  The flowlet instance counts are only the
+   * initial values; they can be changed for a running flow through the flowlet instances REST API.
+   */
+  public static class TrafficConfig extends Config {
+    /** Number of instances of the parser flowlet */
+    private int parserInstances = 1;
+    /** Number of instances of the sink flowlet; each instance owns a disjoint set of road segments */
+    private int sinkInstances = 1;
+    /**
+     * Time window, in milliseconds, of counters kept in the materialized state of each road segment.  Conditions
+     * with a longer lookback period are computed from the timeseries table instead.
+     */
+    private long stateWindow = ConditionRules.DEFAULT_LOOKBACK_PERIOD;
+    /**
+     * Retention, in milliseconds, of the counters at each {@link Resolution}; zero or less keeps them forever.
+     * Raw counters must be kept for at least the longest lookback period of the condition rules.
+     */
+    private long rawRetention = TimeUnit.DAYS.toMillis(7);
+    private long minuteRetention = TimeUnit.DAYS.toMillis(35);
+    private long hourRetention = TimeUnit.DAYS.toMillis(400);
+    private long dayRetention = 0;
+    /** Retention, in milliseconds, of the state of road segments that no longer report events */
+    private long stateRetention = TimeUnit.DAYS.toMillis(7);
+    /** Cron expression of the schedule of {@link TrafficBaselineWorkflow}; empty to not schedule it */
+    private String baselineSchedule = "0 3 * * *";
+    /**
+     * Number of salt buckets of the counter keys in the timeseries tables, see {@link SegmentKeys}; zero for keys
+     * without salt.  Counters written with another layout are not read, so this must not be changed once the
+     * tables contain counters; programs fail to start if it differs from the layout recorded with the counters.
+     */
+    private int saltBuckets = 0;
+
+    public int getParserInstances() {
+      return Math.max(1, parserInstances);
+    }
+
+    public int getSinkInstances() {
+      return Math.max(1, sinkInstances);
+    }
+
+    public long getStateWindow() {
+      return stateWindow;
+    }
+
+    public long getRetention(Resolution resolution) {
+      switch (resolution) {
+        case MINUTE:
+          return minuteRetention;
+        case HOUR:
+          return hourRetention;
+        case DAY:
+          return dayRetention;
+        default:
+          return rawRetention;
+      }
+    }
+
+    public long getStateRetention() {
+      return stateRetention;
+    }
+
+    @Nullable
+    public String getBaselineSchedule() {
+      return baselineSchedule == null || baselineSchedule.trim().isEmpty() ? null : baselineSchedule.trim();
+    }
+
+    public int getSaltBuckets() {
+      return saltBuckets;
+    }
+  }
+
   @Override
   public void configure() {
+    TrafficConfig config = getConfig();
     setName(APP_NAME);
     setDescription("Traffic event data processing");
     addStream(new Stream(STREAM_NAME));
 
-    // configure the timeseries table
-    DatasetProperties props = TimeseriesTables.timeseriesTableProperties(TIMESERIES_INTERVAL, DatasetProperties.EMPTY);
-    createDataset(TIMESERIES_TABLE_NAME, CounterTimeseriesTable.class, props);
+    // configure the timeseries tables for the raw counters and each rollup resolution; expired counters are
+    // removed by the storage layer as part of its regular compactions
+    int saltBuckets = new SegmentKeys(config.getSaltBuckets()).getSaltBuckets();
+    for (Resolution resolution : Resolution.values()) {
+      DatasetProperties.Builder tableProps = DatasetProperties.builder();
+      long retention = config.getRetention(resolution);
+      if (retention > 0) {
+        tableProps.add(Table.PROPERTY_TTL, String.valueOf(TimeUnit.MILLISECONDS.toSeconds(retention)));
+      }
+      DatasetProperties props = TimeseriesTables.timeseriesTableProperties(resolution.getRowInterval(),
+                                                                           tableProps.build());
+      createDataset(resolution.getTableName(), CounterTimeseriesTable.class, props);
+    }
+    createDataset(SEGMENT_REGISTRY_NAME, KeyValueTable.class);
+    createDataset(SEGMENT_STATE_TABLE_NAME, KeyValueTable.class);
+    createDataset(SEGMENT_DICTIONARY_NAME, Table.class);
+    createDataset(UNASSIGNED_SEGMENTS_NAME, KeyValueTable.class);
+    createDataset(BACKFILLED_SEGMENTS_NAME, KeyValueTable.class);
+    createDataset(TOP_SEGMENTS_NAME, KeyValueTable.class);
+    createDataset(BASELINE_TABLE_NAME, KeyValueTable.class);
 
-    addFlow(new TrafficFlow());
-    addService(new TrafficConditionService());
+    addFlow(new TrafficFlow(config, saltBuckets));
+    addService(new TrafficConditionService(saltBuckets));
+    addWorker(new RetentionWorker(config.getStateRetention()));
+    addMapReduce(new SegmentRegistrationMapReduce());
+    addMapReduce(new TrafficBackfillMapReduce(saltBuckets));
+    LegacyCounters legacyCounters = new LegacyCounters(config);
+    addWorkflow(new TrafficBackfillWorkflow(saltBuckets, legacyCounters));
+    addWorker(new SegmentKeyMigrationWorker(saltBuckets, legacyCounters));
+    addMapReduce(new TrafficBaselineMapReduce(saltBuckets));
+    addWorkflow(new TrafficBaselineWorkflow());
+    if (config.getBaselineSchedule() != null) {
+      schedule(buildSchedule(BASELINE_SCHEDULE_NAME, ProgramType.WORKFLOW, TrafficBaselineWorkflow.NAME)
+                 .setDescription("Recomputes the road segment baselines")
+                 .triggerByTime(config.getBaselineSchedule()));
+    }
   }
 }
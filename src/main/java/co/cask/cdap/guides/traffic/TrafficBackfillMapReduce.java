@@ -0,0 +1,310 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.ProgramLifecycle;
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.data.batch.Input;
+import co.cask.cdap.api.data.batch.InputFormatProvider;
+import co.cask.cdap.api.dataset.lib.CounterTimeseriesTable;
+import co.cask.cdap.api.dataset.lib.KeyValueTable;
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.api.mapreduce.AbstractMapReduce;
+import co.cask.cdap.api.mapreduce.MapReduceContext;
+import co.cask.cdap.api.mapreduce.MapReduceTaskContext;
+import co.cask.cdap.api.metrics.Metrics;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
+import org.apache.hadoop.mapreduce.lib.reduce.LongSumReducer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Loads archived sensor records from files directly into the timeseries tables, bypassing the stream and
+ * {@link TrafficFlow}.  Each line of the input files is a record in the text format of {@link TrafficEventParser},
+ * and is accepted or rejected with exactly the same rules.  Counts are summed per road segment ID, type and
+ * timestamp by a combiner and the reducers, so that each counter is incremented once, and the reducers also sum
+ * the counts into the rollup tables of each {@link Resolution}.  Records are partitioned by road segment ID, so
+ * each reducer owns a disjoint set of road segments.
+ *
+ * <p>
+ * The program runs as the last step of {@link TrafficBackfillWorkflow}, after every road segment of the input has
+ * been registered and assigned an integer ID in the {@link SegmentDictionary}, which the reducers only read; the job
+ * fails if a road segment has no ID.  It is configured with the runtime arguments:
+ * <ul>
+ *   <li>{@code input.path}: comma-separated list of input files or directories, which are read recursively;
+ *       and</li>
+ *   <li>{@code backfill.reducers}: number of reducers.</li>
+ * </ul>
+ * The materialized states of road segments are not updated here, since the reducers run in a single long
+ * transaction, which would overwrite the updates of the flow without detecting the conflicts.  Instead, the latest
+ * timestamp of each road segment is recorded, and {@link SegmentStateInvalidationAction} invalidates the states it
+ * falls into once the job completes.
+ * </p>
+ */
+public class TrafficBackfillMapReduce extends AbstractMapReduce {
+  static final String NAME = "TrafficBackfill";
+  static final String INPUT_PATH = "input.path";
+  static final String REDUCERS = "backfill.reducers";
+
+  static final int DEFAULT_REDUCERS = 4;
+
+  /** Size of the timestamp and type at the end of each intermediate key */
+  private static final int KEY_SUFFIX_SIZE = 8 + 1;
+  private static final TrafficEvent.Type[] TYPES = TrafficEvent.Type.values();
+
+  private final int saltBuckets;
+
+  public TrafficBackfillMapReduce() {
+    this(0);
+  }
+
+  /**
+   * @param saltBuckets the number of salt buckets of the counter keys, see {@link SegmentKeys}
+   */
+  public TrafficBackfillMapReduce(int saltBuckets) {
+    this.saltBuckets = saltBuckets;
+  }
+
+  @Override
+  protected void configure() {
+    setName(NAME);
+    setDescription("Loads archived traffic sensor records into the timeseries tables");
+    setProperties(ImmutableMap.of(SegmentKeys.SALT_BUCKETS, Integer.toString(saltBuckets)));
+  }
+
+  @Override
+  protected void initialize() throws Exception {
+    MapReduceContext context = getContext();
+    Map<String, String> args = context.getRuntimeArguments();
+    SegmentKeys.fromProperty(context.getSpecification().getProperty(SegmentKeys.SALT_BUCKETS))
+      .verify(new SegmentDictionary(context.<Table>getDataset(TrafficApp.SEGMENT_DICTIONARY_NAME), null));
+    Job job = context.getHadoopJob();
+    job.setMapperClass(BackfillMapper.class);
+    job.setCombinerClass(LongSumReducer.class);
+    job.setPartitionerClass(SegmentPartitioner.class);
+    job.setReducerClass(BackfillReducer.class);
+    job.setMapOutputKeyClass(BytesWritable.class);
+    job.setMapOutputValueClass(LongWritable.class);
+    job.setNumReduceTasks(Arguments.getInt(args, REDUCERS, DEFAULT_REDUCERS));
+    // all counters are written by the reducers
+    job.setOutputFormatClass(NullOutputFormat.class);
+    addArchiveInput(context);
+  }
+
+  /**
+   * Adds the files of the {@code input.path} runtime argument as the input of a job, as lines of text.
+   *
+   * @throws IllegalArgumentException if the argument is missing
+   */
+  static void addArchiveInput(MapReduceContext context) {
+    final String inputPath = context.getRuntimeArguments().get(INPUT_PATH);
+    if (inputPath == null || inputPath.trim().isEmpty()) {
+      throw new IllegalArgumentException(String.format("Missing runtime argument '%s'", INPUT_PATH));
+    }
+    context.addInput(Input.of("archive", new InputFormatProvider() {
+      @Override
+      public String getInputFormatClassName() {
+        return TextInputFormat.class.getName();
+      }
+
+      @Override
+      public Map<String, String> getInputFormatConfiguration() {
+        return ImmutableMap.of(FileInputFormat.INPUT_DIR, inputPath.trim(),
+                               FileInputFormat.INPUT_DIR_RECURSIVE, Boolean.TRUE.toString());
+      }
+    }));
+  }
+
+  /**
+   * Returns the intermediate key for a counter: the road segment ID in UTF-8, followed by the timestamp and the
+   * ordinal of the type.
+   */
+  private static byte[] toKey(String roadSegmentId, long timestamp, TrafficEvent.Type type) {
+    byte[] segmentId = roadSegmentId.getBytes(Charsets.UTF_8);
+    return ByteBuffer.allocate(segmentId.length + KEY_SUFFIX_SIZE)
+      .put(segmentId).putLong(timestamp).put((byte) type.ordinal()).array();
+  }
+
+  /**
+   * Parses each line of the input into a counter key and count.
+   */
+  public static class BackfillMapper extends Mapper<LongWritable, Text, BytesWritable, LongWritable> {
+    /** Metrics key used to count bad records, as in {@link TrafficEventParser} */
+    private static final String BAD_EVENT = "event.bad";
+
+    private final TrafficEventDecoder decoder = new TrafficEventDecoder();
+    private final BytesWritable outputKey = new BytesWritable();
+    private final LongWritable outputCount = new LongWritable();
+
+    private Metrics metrics;
+
+    @Override
+    protected void map(LongWritable offset, Text line, Context context) throws IOException, InterruptedException {
+      TrafficEvent event = decoder.decode(ByteBuffer.wrap(line.getBytes(), 0, line.getLength()));
+      if (event == null) {
+        metrics.count(BAD_EVENT, 1);
+        return;
+      }
+      if (event.getCount() <= 0) {
+        // same as TrafficEventSink
+        return;
+      }
+      byte[] key = toKey(event.getRoadSegmentId(), event.getTimestamp(), event.getType());
+      outputKey.set(key, 0, key.length);
+      outputCount.set(event.getCount());
+      context.write(outputKey, outputCount);
+    }
+  }
+
+  /**
+   * Partitions intermediate keys by road segment ID only, so that all counters of a road segment, and therefore
+   * its rollup buckets, are summed by the same reducer.
+   */
+  public static class SegmentPartitioner extends Partitioner<BytesWritable, LongWritable> {
+    @Override
+    public int getPartition(BytesWritable key, LongWritable count, int numPartitions) {
+      int hash = WritableComparator.hashBytes(key.getBytes(), key.getLength() - KEY_SUFFIX_SIZE);
+      return (hash & Integer.MAX_VALUE) % numPartitions;
+    }
+  }
+
+  /**
+   * Increments each counter once with its summed count, and sums the counts into the rollup tables.  Rollup cells
+   * are flushed whenever too many have been summed in memory.  The latest timestamp of each road segment is
+   * recorded in the backfilled segments table when the reducer completes.
+   */
+  public static class BackfillReducer extends Reducer<BytesWritable, LongWritable, NullWritable, NullWritable>
+    implements ProgramLifecycle<MapReduceTaskContext<NullWritable, NullWritable>> {
+    /** Maximum number of rollup cells to sum in memory before incrementing them */
+    private static final int MAX_ROLLUP_CELLS = 100000;
+
+    private final Map<Resolution, TrafficCountAggregator> rollups =
+      new EnumMap<Resolution, TrafficCountAggregator>(Resolution.class);
+    private final Map<Resolution, CounterTimeseriesTable> tables =
+      new EnumMap<Resolution, CounterTimeseriesTable>(Resolution.class);
+    /** Counter keys of the road segments of this reducer, which never change once assigned */
+    private final Map<String, byte[]> segmentKeys = new HashMap<String, byte[]>();
+    private final Map<String, Long> latestTimestamps = new HashMap<String, Long>();
+    private SegmentDictionary dictionary;
+    private KeyValueTable backfilled;
+    private SegmentKeys keys;
+    private int rollupCells;
+
+    @Override
+    public void initialize(MapReduceTaskContext<NullWritable, NullWritable> context) throws Exception {
+      for (Resolution resolution : Resolution.values()) {
+        tables.put(resolution, context.<CounterTimeseriesTable>getDataset(resolution.getTableName()));
+        if (resolution != Resolution.RAW) {
+          rollups.put(resolution, new TrafficCountAggregator());
+        }
+      }
+      dictionary = new SegmentDictionary(context.<Table>getDataset(TrafficApp.SEGMENT_DICTIONARY_NAME), null);
+      backfilled = context.getDataset(TrafficApp.BACKFILLED_SEGMENTS_NAME);
+      keys = SegmentKeys.fromProperty(context.getSpecification().getProperty(SegmentKeys.SALT_BUCKETS));
+    }
+
+    @Override
+    protected void reduce(BytesWritable key, Iterable<LongWritable> counts, Context context) {
+      long count = 0;
+      for (LongWritable value : counts) {
+        count += value.get();
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(key.getBytes(), 0, key.getLength());
+      int segmentLength = key.getLength() - KEY_SUFFIX_SIZE;
+      String segmentId = TimestampDecoder.decodeString(buffer, 0, segmentLength);
+      long timestamp = buffer.getLong(segmentLength);
+      TrafficEvent.Type type = TYPES[buffer.get(segmentLength + 8)];
+
+      tables.get(Resolution.RAW).increment(getKey(segmentId), count, timestamp, SegmentKeys.typeTag(type));
+      Long latest = latestTimestamps.get(segmentId);
+      if (latest == null || timestamp > latest) {
+        latestTimestamps.put(segmentId, timestamp);
+      }
+      for (Map.Entry<Resolution, TrafficCountAggregator> rollup : rollups.entrySet()) {
+        rollup.getValue().add(segmentId, type, rollup.getKey().getBucket(timestamp), count);
+      }
+      if (++rollupCells >= MAX_ROLLUP_CELLS) {
+        flushRollups();
+      }
+    }
+
+    @Override
+    protected void cleanup(Context context) {
+      flushRollups();
+      for (Map.Entry<String, Long> entry : latestTimestamps.entrySet()) {
+        // keep the timestamp of an earlier backfill whose states have not been invalidated yet, if it is later
+        byte[] key = Bytes.toBytes(entry.getKey());
+        byte[] recorded = backfilled.read(key);
+        if (recorded == null || Bytes.toLong(recorded) < entry.getValue()) {
+          backfilled.write(key, Bytes.toBytes(entry.getValue()));
+        }
+      }
+    }
+
+    @Override
+    public void destroy() {
+      // nothing to release
+    }
+
+    private void flushRollups() {
+      for (Map.Entry<Resolution, TrafficCountAggregator> rollup : rollups.entrySet()) {
+        CounterTimeseriesTable table = tables.get(rollup.getKey());
+        for (TrafficCountAggregator.Cell cell : rollup.getValue().getCells()) {
+          table.increment(getKey(cell.getRoadSegmentId()), cell.getCount(), cell.getTimestamp(),
+                          SegmentKeys.typeTag(cell.getType()));
+        }
+        rollup.getValue().clear();
+      }
+      rollupCells = 0;
+    }
+
+    /**
+     * Returns the counter key of a road segment.  IDs are never assigned here, since all reducers run in the single
+     * long transaction of the job, which would not detect two of them, or the flow, assigning the same ID.
+     */
+    private byte[] getKey(String segmentId) {
+      byte[] key = segmentKeys.get(segmentId);
+      if (key == null) {
+        SegmentDictionary.Entry entry = dictionary.get(segmentId);
+        if (entry == null) {
+          throw new IllegalStateException(String.format("No dictionary entry for road segment %s; run %s to backfill",
+                                                        segmentId, TrafficBackfillWorkflow.NAME));
+        }
+        key = keys.toKey(entry.getId());
+        segmentKeys.put(segmentId, key);
+      }
+      return key;
+    }
+  }
+}
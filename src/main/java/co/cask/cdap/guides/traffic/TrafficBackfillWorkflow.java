@@ -0,0 +1,57 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.workflow.AbstractWorkflow;
+
+/**
+ * Workflow that loads archived sensor records into the timeseries tables.  The road segments of the input are first
+ * registered by {@link SegmentRegistrationMapReduce}, then assigned integer IDs in short transactions by
+ * {@link SegmentIdAssignmentAction}, and only then are the counters written by {@link TrafficBackfillMapReduce}.
+ * Finally, {@link SegmentStateInvalidationAction} invalidates the materialized states that the backfilled counters
+ * fall into.  Every program reads the input from the {@code input.path} runtime argument of the workflow.
+ */
+public class TrafficBackfillWorkflow extends AbstractWorkflow {
+  static final String NAME = "TrafficBackfillWorkflow";
+
+  private final int saltBuckets;
+  private final LegacyCounters legacyCounters;
+
+  public TrafficBackfillWorkflow() {
+    this(0, new LegacyCounters(new TrafficApp.TrafficConfig()));
+  }
+
+  /**
+   * @param saltBuckets the number of salt buckets of the counter keys, see {@link SegmentKeys}
+   * @param legacyCounters the retentions to look up legacy counters within, see {@link LegacyCounters}
+   */
+  TrafficBackfillWorkflow(int saltBuckets, LegacyCounters legacyCounters) {
+    this.saltBuckets = saltBuckets;
+    this.legacyCounters = legacyCounters;
+  }
+
+  @Override
+  protected void configure() {
+    setName(NAME);
+    setDescription("Loads archived traffic sensor records into the timeseries tables");
+    addMapReduce(SegmentRegistrationMapReduce.NAME);
+    addAction(new SegmentIdAssignmentAction(saltBuckets, legacyCounters));
+    addMapReduce(TrafficBackfillMapReduce.NAME);
+    addAction(new SegmentStateInvalidationAction());
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.ProgramLifecycle;
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.data.batch.Input;
+import co.cask.cdap.api.data.batch.Output;
+import co.cask.cdap.api.dataset.lib.CounterTimeseriesTable;
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.api.mapreduce.AbstractMapReduce;
+import co.cask.cdap.api.mapreduce.MapReduceContext;
+import co.cask.cdap.api.mapreduce.MapReduceTaskContext;
+import co.cask.cdap.api.metrics.Metrics;
+import com.google.common.collect.ImmutableMap;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes the {@link Baseline} of every registered road segment from its vehicle counts over a history period
+ * before the logical start time of the run, and writes it to the baseline table.  Counts are read from the
+ * {@link Resolution#MINUTE} rollups, which are kept longer than the raw counters, and summed into the same buckets
+ * that {@link ConditionRules} evaluates; the bucket of the logical start time is left out, since it is not complete
+ * yet.  The input is the segment registry, so each mapper reads the counters of a disjoint set of road segments, one
+ * road segment at a time, and only keeps its bucket sums in memory.  The program runs daily as part of
+ * {@link TrafficBaselineWorkflow}, and is configured with the runtime arguments:
+ * <ul>
+ *   <li>{@code baseline.history.days}: number of days of counters to compute the baseline from, which is limited by
+ *       the retention of the minute rollups; and</li>
+ *   <li>{@code baseline.timezone}: ID of the time zone of the hours of the week.</li>
+ * </ul>
+ * Road segments without any vehicle counts in the history period keep their previous baseline.
+ */
+public class TrafficBaselineMapReduce extends AbstractMapReduce {
+  static final String NAME = "TrafficBaseline";
+  static final String HISTORY_DAYS = "baseline.history.days";
+  static final String TIME_ZONE = "baseline.timezone";
+
+  private static final int DEFAULT_HISTORY_DAYS = 28;
+  private static final String DEFAULT_TIME_ZONE = "UTC";
+
+  private final int saltBuckets;
+
+  public TrafficBaselineMapReduce() {
+    this(0);
+  }
+
+  /**
+   * @param saltBuckets the number of salt buckets of the counter keys, see {@link SegmentKeys}
+   */
+  public TrafficBaselineMapReduce(int saltBuckets) {
+    this.saltBuckets = saltBuckets;
+  }
+
+  @Override
+  protected void configure() {
+    setName(NAME);
+    setDescription("Computes the historical vehicle count profile of each road segment");
+    setProperties(ImmutableMap.of(SegmentKeys.SALT_BUCKETS, Integer.toString(saltBuckets)));
+  }
+
+  @Override
+  protected void initialize() throws Exception {
+    MapReduceContext context = getContext();
+    Map<String, String> args = context.getRuntimeArguments();
+    if (Arguments.getInt(args, HISTORY_DAYS, DEFAULT_HISTORY_DAYS) <= 0) {
+      throw new IllegalArgumentException(String.format("Argument '%s' must be positive", HISTORY_DAYS));
+    }
+    getTimeZone(args);
+    SegmentKeys.fromProperty(context.getSpecification().getProperty(SegmentKeys.SALT_BUCKETS))
+      .verify(new SegmentDictionary(context.<Table>getDataset(TrafficApp.SEGMENT_DICTIONARY_NAME), null));
+
+    Job job = context.getHadoopJob();
+    job.setMapperClass(BaselineMapper.class);
+    // each mapper writes the baselines of its road segments directly
+    job.setNumReduceTasks(0);
+    context.addInput(Input.ofDataset(TrafficApp.SEGMENT_REGISTRY_NAME));
+    context.addOutput(Output.ofDataset(TrafficApp.BASELINE_TABLE_NAME));
+  }
+
+  /**
+   * Returns the time zone set in the runtime arguments.
+   *
+   * @throws IllegalArgumentException if the time zone ID is not known
+   */
+  private static TimeZone getTimeZone(Map<String, String> args) {
+    String id = args.containsKey(TIME_ZONE) ? args.get(TIME_ZONE).trim() : DEFAULT_TIME_ZONE;
+    TimeZone timeZone = TimeZone.getTimeZone(id);
+    // unknown IDs silently fall back to GMT
+    if (!timeZone.getID().equals(id)) {
+      throw new IllegalArgumentException(String.format("Argument '%s' is not a known time zone: %s", TIME_ZONE, id));
+    }
+    return timeZone;
+  }
+
+  /**
+   * Reads the minute vehicle counts of each road segment in the registry and writes its baseline.
+   */
+  public static class BaselineMapper extends Mapper<byte[], byte[], byte[], byte[]>
+    implements ProgramLifecycle<MapReduceTaskContext<byte[], byte[]>> {
+    /** Metrics key used to count the baselines written */
+    private static final String BASELINES = "baseline.segments";
+
+    private CounterTimeseriesTable table;
+    private SegmentDictionary dictionary;
+    private SegmentKeys keys;
+    private TimeZone timeZone;
+    private long computed;
+    private long start;
+    private long end;
+
+    private Metrics metrics;
+
+    @Override
+    public void initialize(MapReduceTaskContext<byte[], byte[]> context) throws Exception {
+      Map<String, String> args = context.getRuntimeArguments();
+      table = context.getDataset(Resolution.MINUTE.getTableName());
+      dictionary = new SegmentDictionary(context.<Table>getDataset(TrafficApp.SEGMENT_DICTIONARY_NAME),
+                                         SegmentDictionary.createCache(SegmentDictionary.DEFAULT_CACHE_SIZE));
+      keys = SegmentKeys.fromProperty(context.getSpecification().getProperty(SegmentKeys.SALT_BUCKETS));
+      timeZone = getTimeZone(args);
+      computed = context.getLogicalStartTime();
+      end = SegmentState.getBucket(computed) - 1;
+      start = SegmentState.getBucket(
+        computed - TimeUnit.DAYS.toMillis(Arguments.getInt(args, HISTORY_DAYS, DEFAULT_HISTORY_DAYS)));
+    }
+
+    @Override
+    protected void map(byte[] segmentKey, byte[] registered, Context context)
+      throws IOException, InterruptedException {
+      String segmentId = Bytes.toString(segmentKey);
+      Baseline.Builder builder = new Baseline.Builder(timeZone);
+      Iterator<CounterTimeseriesTable.Counter> counters =
+        keys.read(table, dictionary.get(segmentId), segmentId, start, end, TrafficEvent.Type.VEHICLE);
+      while (counters.hasNext()) {
+        CounterTimeseriesTable.Counter counter = counters.next();
+        builder.add(counter.getTimestamp(), counter.getValue());
+      }
+      if (!builder.isEmpty()) {
+        context.write(segmentKey, builder.build(computed).encode());
+        metrics.count(BASELINES, 1);
+      }
+    }
+
+    @Override
+    public void destroy() {
+      // nothing to release
+    }
+  }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.workflow.AbstractWorkflow;
+
+/**
+ * Workflow that recomputes the {@link Baseline} of each road segment with {@link TrafficBaselineMapReduce}.  It is
+ * scheduled by {@link TrafficApp} with the {@code baselineSchedule} of the application configuration.
+ */
+public class TrafficBaselineWorkflow extends AbstractWorkflow {
+  static final String NAME = "TrafficBaselineWorkflow";
+
+  @Override
+  protected void configure() {
+    setName(NAME);
+    setDescription("Recomputes the historical vehicle count profile of each road segment");
+    addMapReduce(TrafficBaselineMapReduce.NAME);
+  }
+}
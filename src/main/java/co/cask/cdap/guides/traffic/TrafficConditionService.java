@@ -16,99 +16,616 @@
 
 package co.cask.cdap.guides.traffic;
 
+import co.cask.cdap.api.annotation.TransactionControl;
+import co.cask.cdap.api.annotation.TransactionPolicy;
 import co.cask.cdap.api.annotation.UseDataSet;
-import co.cask.cdap.api.common.Bytes;
 import co.cask.cdap.api.dataset.lib.CounterTimeseriesTable;
+import co.cask.cdap.api.dataset.lib.KeyValueTable;
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.api.metrics.Metrics;
 import co.cask.cdap.api.service.AbstractService;
 import co.cask.cdap.api.service.http.AbstractHttpServiceHandler;
+import co.cask.cdap.api.service.http.HttpServiceContext;
 import co.cask.cdap.api.service.http.HttpServiceRequest;
 import co.cask.cdap.api.service.http.HttpServiceResponder;
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.base.Splitter;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import org.apache.tephra.TransactionFailureException;
 
-import java.util.Iterator;
+import java.net.HttpURLConnection;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.QueryParam;
 
 /**
- * Service that queries the stored traffic events for the past 45 minutes to return a report on traffic
- * conditions.
+ * Service that queries the stored traffic events of the 15-minute intervals overlapping the past 45 minutes to
+ * return a report on traffic conditions.
  */
 public class TrafficConditionService extends AbstractService {
   public enum Condition {GREEN, YELLOW, RED};
 
   static final String SERVICE_NAME = "TrafficConditions";
 
+  private final int saltBuckets;
+
+  public TrafficConditionService() {
+    this(0);
+  }
+
+  /**
+   * @param saltBuckets the number of salt buckets of the counter keys, see {@link SegmentKeys}
+   */
+  public TrafficConditionService(int saltBuckets) {
+    this.saltBuckets = saltBuckets;
+  }
+
   @Override
   protected void configure() {
     setName(SERVICE_NAME);
     setDescription("Service to look up recent traffic conditions for a given road segment");
-    addHandler(new TrafficConditionHandler());
+    addHandler(new TrafficConditionHandler(saltBuckets));
   }
 
   /**
-   * HTTP Service handler to lookup recent traffic conditions.
+   * HTTP Service handler to lookup recent traffic conditions.  Computed conditions are cached for a few seconds,
+   * configurable with the {@code condition.cache.size} and {@code condition.cache.ttl.ms} runtime arguments.
    */
   @Path("/v1")
   public static final class TrafficConditionHandler extends AbstractHttpServiceHandler {
 
-    /** Threshold for number of vehicles in a time period, above which the road is considered congested */
-    private static final int CONGESTED_THRESHOLD = 100;
+    /** Runtime argument for the maximum number of road segments in a single bulk lookup */
+    static final String BULK_MAX_SEGMENTS = "bulk.max.segments";
+    private static final int DEFAULT_BULK_MAX_SEGMENTS = 10000;
+
+    /** Runtime argument for the maximum number of cached conditions; 0 disables the cache */
+    static final String CACHE_SIZE = "condition.cache.size";
+    /** Runtime argument for how long, in milliseconds, a computed condition is cached; 0 disables the cache */
+    static final String CACHE_TTL = "condition.cache.ttl.ms";
+    private static final int DEFAULT_CACHE_SIZE = 10000;
+    private static final long DEFAULT_CACHE_TTL = 5000;
+
+    /**
+     * Runtime arguments for the maximum number of concurrent watch requests per service instance, which should be
+     * less than the number of handler threads so that other requests are still served; the maximum timeout of a
+     * watch request, in milliseconds; and how often, in milliseconds, a watch request reads the watched states.
+     */
+    static final String WATCH_MAX_WATCHERS = "watch.max.watchers";
+    static final String WATCH_MAX_TIMEOUT = "watch.max.timeout.ms";
+    static final String WATCH_POLL_INTERVAL = "watch.poll.interval.ms";
+    private static final int DEFAULT_WATCH_MAX_WATCHERS = 10;
+    private static final long DEFAULT_WATCH_MAX_TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+    private static final long DEFAULT_WATCH_POLL_INTERVAL = 1000;
+
+    /**
+     * Metrics keys of the latency of each endpoint, reported as described in {@link Histogram}; the reads of each
+     * endpoint are reported by the {@link SegmentReader}.
+     */
+    private static final String RECENT_TIME = "endpoint.recent.us";
+    private static final String BULK_TIME = "endpoint.bulk.us";
+    private static final String VOLUME_TIME = "endpoint.volume.us";
+    private static final String SERIES_TIME = "endpoint.series.us";
+    private static final String ROUTE_TIME = "endpoint.route.us";
+    private static final String TOP_TIME = "endpoint.top.us";
+    private static final String WATCH_TIME = "endpoint.watch.us";
+
+    /** Shared by all handler instances, so that concurrent requests for a segment only compute it once */
+    private static ConditionCache sharedCache;
+    /** Shared by all handler instances, since dictionary entries never change once cached */
+    private static Cache<String, SegmentDictionary.Entry> sharedDictionaryCache;
+    /** Shared by all handler instances; baselines are recomputed daily, so they are only refreshed hourly */
+    private static Cache<String, Optional<Baseline>> sharedBaselineCache;
+    /** Number of watch requests in progress in all handler instances */
+    private static final AtomicInteger activeWatchers = new AtomicInteger();
+    private static final int BASELINE_CACHE_SIZE = 100000;
+    private static final long BASELINE_CACHE_TTL = TimeUnit.HOURS.toMillis(1);
+
+    /** Default time range for volume and series queries */
+    private static final long DEFAULT_QUERY_RANGE = 24 * 60 * 60 * 1000L;
+    /** Number of buckets up to which the step of a volume query is chosen automatically */
+    private static final long AUTO_STEP_BUCKETS = 1440;
+    /** Maximum number of buckets in a single volume query */
+    private static final long MAX_VOLUME_BUCKETS = 100000;
+    /** Maximum number of road segments returned by a top query */
+    private static final int MAX_TOP_SEGMENTS = 1000;
 
-    /** How far to look back for the traffic patterns */
-    private static final long LOOKBACK_PERIOD = TrafficApp.TIMESERIES_INTERVAL * 3;
+    private static final Splitter SEGMENT_SPLITTER = Splitter.on(CharMatcher.is(',').or(CharMatcher.WHITESPACE))
+      .trimResults().omitEmptyStrings();
 
     @UseDataSet(TrafficApp.TIMESERIES_TABLE_NAME)
     private CounterTimeseriesTable table;
 
+    @UseDataSet(TrafficApp.MINUTE_TABLE_NAME)
+    private CounterTimeseriesTable minuteTable;
+
+    @UseDataSet(TrafficApp.HOUR_TABLE_NAME)
+    private CounterTimeseriesTable hourTable;
+
+    @UseDataSet(TrafficApp.DAY_TABLE_NAME)
+    private CounterTimeseriesTable dayTable;
+
+    @UseDataSet(TrafficApp.SEGMENT_REGISTRY_NAME)
+    private KeyValueTable segments;
+
+    @UseDataSet(TrafficApp.SEGMENT_STATE_TABLE_NAME)
+    private KeyValueTable states;
+
+    @UseDataSet(TrafficApp.SEGMENT_DICTIONARY_NAME)
+    private Table dictionaryTable;
+
+    @UseDataSet(TrafficApp.TOP_SEGMENTS_NAME)
+    private KeyValueTable topCheckpoints;
+
+    @UseDataSet(TrafficApp.BASELINE_TABLE_NAME)
+    private KeyValueTable baselines;
+
+    private Metrics metrics;
+
+    private final int saltBuckets;
+    private SegmentKeys keys;
+    private int bulkMaxSegments;
+    private int watchMaxWatchers;
+    private long watchMaxTimeout;
+    private long watchPollInterval;
+    private ConditionCache cache;
+    private SegmentReader reader;
+    private Histogram recentTime;
+    private Histogram bulkTime;
+    private Histogram volumeTime;
+    private Histogram seriesTime;
+    private Histogram routeTime;
+    private Histogram topTime;
+    private Histogram watchTime;
+
+    public TrafficConditionHandler() {
+      this(0);
+    }
+
+    TrafficConditionHandler(int saltBuckets) {
+      this.saltBuckets = saltBuckets;
+    }
+
+    @Override
+    protected void configure() {
+      setProperties(ImmutableMap.of(SegmentKeys.SALT_BUCKETS, Integer.toString(saltBuckets)));
+    }
+
+    @Override
+    public void initialize(HttpServiceContext context) throws Exception {
+      super.initialize(context);
+      keys = SegmentKeys.fromProperty(context.getSpecification().getProperty(SegmentKeys.SALT_BUCKETS));
+      Map<String, String> args = context.getRuntimeArguments();
+      bulkMaxSegments = Arguments.getInt(args, BULK_MAX_SEGMENTS, DEFAULT_BULK_MAX_SEGMENTS);
+      watchMaxWatchers = Arguments.getInt(args, WATCH_MAX_WATCHERS, DEFAULT_WATCH_MAX_WATCHERS);
+      watchMaxTimeout = Arguments.getLong(args, WATCH_MAX_TIMEOUT, DEFAULT_WATCH_MAX_TIMEOUT);
+      watchPollInterval = Arguments.getLong(args, WATCH_POLL_INTERVAL, DEFAULT_WATCH_POLL_INTERVAL);
+      if (watchPollInterval <= 0) {
+        throw new IllegalArgumentException(String.format("Argument '%s' must be positive", WATCH_POLL_INTERVAL));
+      }
+      ConditionRuleSet ruleSet = ConditionRuleSet.fromArguments(args);
+      cache = getSharedCache(Arguments.getInt(args, CACHE_SIZE, DEFAULT_CACHE_SIZE),
+                             Arguments.getLong(args, CACHE_TTL, DEFAULT_CACHE_TTL));
+      SegmentDictionary dictionary = new SegmentDictionary(dictionaryTable, getSharedDictionaryCache());
+      keys.verify(dictionary);
+      Map<Resolution, CounterTimeseriesTable> tables =
+        new EnumMap<Resolution, CounterTimeseriesTable>(Resolution.class);
+      tables.put(Resolution.RAW, table);
+      tables.put(Resolution.MINUTE, minuteTable);
+      tables.put(Resolution.HOUR, hourTable);
+      tables.put(Resolution.DAY, dayTable);
+      reader = new SegmentReader(tables, segments, states, baselines, topCheckpoints, dictionary, keys, ruleSet,
+                                 getSharedBaselineCache(), metrics,
+                                 Histogram.latency(SegmentReader.SCAN_TIME, args));
+      recentTime = Histogram.latency(RECENT_TIME, args);
+      bulkTime = Histogram.latency(BULK_TIME, args);
+      volumeTime = Histogram.latency(VOLUME_TIME, args);
+      seriesTime = Histogram.latency(SERIES_TIME, args);
+      routeTime = Histogram.latency(ROUTE_TIME, args);
+      topTime = Histogram.latency(TOP_TIME, args);
+      watchTime = Histogram.latency(WATCH_TIME, args);
+    }
+
+    @Nullable
+    private static synchronized ConditionCache getSharedCache(int maxSize, long ttlMillis) {
+      if (maxSize <= 0 || ttlMillis <= 0) {
+        return null;
+      }
+      if (sharedCache == null || !sharedCache.hasSettings(maxSize, ttlMillis)) {
+        sharedCache = new ConditionCache(maxSize, ttlMillis);
+      }
+      return sharedCache;
+    }
+
+    private static synchronized Cache<String, SegmentDictionary.Entry> getSharedDictionaryCache() {
+      if (sharedDictionaryCache == null) {
+        sharedDictionaryCache = SegmentDictionary.createCache(SegmentDictionary.DEFAULT_CACHE_SIZE);
+      }
+      return sharedDictionaryCache;
+    }
+
+    private static synchronized Cache<String, Optional<Baseline>> getSharedBaselineCache() {
+      if (sharedBaselineCache == null) {
+        sharedBaselineCache = CacheBuilder.newBuilder()
+          .maximumSize(BASELINE_CACHE_SIZE)
+          .expireAfterWrite(BASELINE_CACHE_TTL, TimeUnit.MILLISECONDS)
+          .build();
+      }
+      return sharedBaselineCache;
+    }
+
     /**
      * Service method that determines a {@link co.cask.cdap.guides.traffic.TrafficConditionService.Condition}
-     * corresponding to a given road segment for the most recent timeseries intervals:
+     * corresponding to a given road segment from the totals of the 15-minute timeseries intervals that overlap the
+     * lookback period, so that up to one interval more than the lookback period is counted:
      * <ul>
      *   <li>if any traffic accidents were reported, return RED;</li>
-     *   <li>if 2+ vehicle count reports are greater than the threshold, return RED;</li>
-     *   <li>if 1 vehicle count report is greater than the threshold, return YELLOW;</li>
+     *   <li>if the vehicle counts of 2+ intervals add up to more than the threshold, return RED;</li>
+     *   <li>if the vehicle counts of 1 interval add up to more than the threshold, return YELLOW;</li>
      *   <li>otherwise, return GREEN.</li>
      * </ul>
+     * The thresholds and lookback period can be set per segment class, see {@link ConditionRuleSet}.  With a
+     * baseline quantile, the vehicle threshold is taken from the historical {@link Baseline} of the segment.
      */
     @Path("road/{segment}/recent")
     @GET
     public void recentConditions(HttpServiceRequest request, HttpServiceResponder responder,
                         @PathParam("segment") String segmentId) {
-      long endTime = System.currentTimeMillis();
-      long startTime = endTime - LOOKBACK_PERIOD;
+      long requestStart = recentTime.start();
+      try {
+        responder.sendString(getCachedCondition(segmentId, System.currentTimeMillis()).name());
+      } finally {
+        recentTime.stop(requestStart, metrics);
+      }
+    }
+
+    /**
+     * Service method that returns the {@link Volume} of events of a given type for a road segment, summed into
+     * buckets of {@code step} milliseconds between the {@code start} and {@code end} timestamps.  Buckets are
+     * aligned to multiples of the step, and counts are read from the coarsest {@link Resolution} that fits the
+     * step, so that a month of daily volumes only reads about 30 counters.  If no step is given, the finest of the
+     * rollup resolutions that gives at most {@link #AUTO_STEP_BUCKETS} buckets is used.
+     */
+    @Path("road/{segment}/volume")
+    @GET
+    public void volume(HttpServiceRequest request, HttpServiceResponder responder,
+                       @PathParam("segment") String segmentId,
+                       @QueryParam("start") @DefaultValue("-1") long start,
+                       @QueryParam("end") @DefaultValue("-1") long end,
+                       @QueryParam("step") @DefaultValue("0") long step,
+                       @QueryParam("type") @DefaultValue("VEHICLE") String typeName) {
+      long requestStart = volumeTime.start();
+      try {
+        TrafficEvent.Type type;
+        try {
+          type = TrafficEvent.Type.valueOf(typeName);
+        } catch (IllegalArgumentException e) {
+          responder.sendError(HttpURLConnection.HTTP_BAD_REQUEST, "Type should be 'VEHICLE' or 'ACCIDENT'");
+          return;
+        }
+        if (end < 0) {
+          end = System.currentTimeMillis();
+        }
+        if (start < 0) {
+          start = end - DEFAULT_QUERY_RANGE;
+        }
+        if (step == 0) {
+          step = getAutoStep(end - start);
+        }
+        if (start > end || step < 0) {
+          responder.sendError(HttpURLConnection.HTTP_BAD_REQUEST, "Invalid time range or step");
+          return;
+        }
+        long alignedStart = Resolution.floor(start, step);
+        long buckets = (Resolution.floor(end, step) - alignedStart) / step + 1;
+        if (buckets > MAX_VOLUME_BUCKETS) {
+          responder.sendError(HttpURLConnection.HTTP_BAD_REQUEST,
+                              String.format("At most %d buckets can be returned, use a larger step",
+                                            MAX_VOLUME_BUCKETS));
+          return;
+        }
+
+        responder.sendJson(reader.getVolume(segmentId, type, alignedStart, step, (int) buckets));
+      } finally {
+        volumeTime.stop(requestStart, metrics);
+      }
+    }
+
+    /**
+     * Service method that streams the counters of a road segment between the {@code start} and {@code end}
+     * timestamps, optionally restricted to one {@code type} and summed into buckets of {@code step} milliseconds,
+     * as JSON lines.  The response is chunked and read lazily, see {@link SeriesContentProducer}.
+     */
+    @Path("road/{segment}/series")
+    @GET
+    public void series(HttpServiceRequest request, HttpServiceResponder responder,
+                       @PathParam("segment") String segmentId,
+                       @QueryParam("start") @DefaultValue("-1") long start,
+                       @QueryParam("end") @DefaultValue("-1") long end,
+                       @QueryParam("step") @DefaultValue("0") long step,
+                       @QueryParam("type") @DefaultValue("") String typeName) {
+      long requestStart = seriesTime.start();
+      try {
+        TrafficEvent.Type type = null;
+        if (!typeName.isEmpty()) {
+          try {
+            type = TrafficEvent.Type.valueOf(typeName);
+          } catch (IllegalArgumentException e) {
+            responder.sendError(HttpURLConnection.HTTP_BAD_REQUEST, "Type should be 'VEHICLE' or 'ACCIDENT'");
+            return;
+          }
+        }
+        if (end < 0) {
+          end = System.currentTimeMillis();
+        }
+        if (start < 0) {
+          start = end - DEFAULT_QUERY_RANGE;
+        }
+        if (start > end || step < 0) {
+          responder.sendError(HttpURLConnection.HTTP_BAD_REQUEST, "Invalid time range or step");
+          return;
+        }
+        responder.send(HttpURLConnection.HTTP_OK,
+                       new SeriesContentProducer(segmentId, type, start, end, step, keys,
+                                                 getSharedDictionaryCache()),
+                       SeriesContentProducer.CONTENT_TYPE);
+      } finally {
+        seriesTime.stop(requestStart, metrics);
+      }
+    }
 
-      Condition currentCondition = Condition.GREEN;
-      int accidentEntries =
-        getCountsExceeding(segmentId, startTime, endTime, TrafficEvent.Type.ACCIDENT, 0);
-      if (accidentEntries > 0) {
-        currentCondition = Condition.RED;
-      } else {
-        int congestedEntries =
-          getCountsExceeding(segmentId, startTime, endTime,
-                             TrafficEvent.Type.VEHICLE, CONGESTED_THRESHOLD);
-        if (congestedEntries > 1) {
-          currentCondition = Condition.RED;
-        } else if (congestedEntries > 0) {
-          currentCondition = Condition.YELLOW;
+    /**
+     * Returns the interval of the finest rollup resolution that splits the given range into a reasonable number
+     * of buckets.
+     */
+    private static long getAutoStep(long range) {
+      long step = 0;
+      for (Resolution resolution : Resolution.values()) {
+        step = resolution.getInterval();
+        if (step > 0 && range / step <= AUTO_STEP_BUCKETS) {
+          break;
         }
       }
-      responder.sendString(currentCondition.name());
+      return step;
     }
 
     /**
-     * Returns the number of counter entries with a value exceeding the given threshold.
+     * Service method that returns the current {@link Condition} for each road segment with an ID starting with the
+     * given prefix, as a JSON object keyed by road segment ID.  All segments are looked up in a single request,
+     * using the same rules as {@link #recentConditions}.
      */
-    private int getCountsExceeding(String roadSegmentId, long startTime, long endTime,
-                                   TrafficEvent.Type type, long threshold) {
-      int count = 0;
-      Iterator<CounterTimeseriesTable.Counter> events =
-        table.read(Bytes.toBytes(roadSegmentId), startTime, endTime, Bytes.toBytes(type.name()));
-      while (events.hasNext()) {
-        if (events.next().getValue() > threshold) {
-          count++;
+    @Path("roads/recent")
+    @GET
+    public void recentConditionsByPrefix(HttpServiceRequest request, HttpServiceResponder responder,
+                                         @QueryParam("prefix") @DefaultValue("") String prefix) {
+      long requestStart = bulkTime.start();
+      try {
+        Set<String> segmentIds = getSegmentIds(prefix);
+        if (segmentIds == null) {
+          responder.sendError(HttpURLConnection.HTTP_BAD_REQUEST,
+                              String.format("More than %d road segments match prefix '%s'", bulkMaxSegments, prefix));
+          return;
         }
+        responder.sendJson(getConditions(segmentIds));
+      } finally {
+        bulkTime.stop(requestStart, metrics);
       }
-      return count;
+    }
+
+    /**
+     * Service method that returns the current {@link Condition} for each of the road segment IDs given in the
+     * request body, separated by commas or whitespace, as a JSON object keyed by road segment ID.
+     */
+    @Path("roads/recent")
+    @POST
+    public void recentConditionsBySegments(HttpServiceRequest request, HttpServiceResponder responder) {
+      long requestStart = bulkTime.start();
+      try {
+        Set<String> segmentIds = new LinkedHashSet<String>();
+        for (String segmentId : SEGMENT_SPLITTER.split(Charsets.UTF_8.decode(request.getContent()))) {
+          segmentIds.add(segmentId);
+        }
+        if (segmentIds.size() > bulkMaxSegments) {
+          responder.sendError(HttpURLConnection.HTTP_BAD_REQUEST,
+                              String.format("At most %d road segments can be looked up at once", bulkMaxSegments));
+          return;
+        }
+        responder.sendJson(getConditions(segmentIds));
+      } finally {
+        bulkTime.stop(requestStart, metrics);
+      }
+    }
+
+    /**
+     * Service method that waits until the condition of any of the road segments given in the request body differs
+     * from the condition the client last saw, and returns the current condition of each road segment that differs,
+     * as a JSON object keyed by road segment ID, or an empty object if none did within {@code timeout}
+     * milliseconds.  Road segments are separated by commas or whitespace, each followed by {@code =} and the last
+     * condition seen, such as {@code 66N_1=GREEN,66N_2=RED}; a road segment without a condition is returned right
+     * away, which gives the initial conditions.  Clients send the request again with the returned conditions.
+     *
+     * <p>
+     * The request reads the state of each road segment every {@code watch.poll.interval.ms} milliseconds, each time
+     * in a short transaction of its own, so that states written by the flow are seen.  A condition is only evaluated
+     * again when the state was updated by new events, or when it may change as counters enter or leave the lookback
+     * period, see {@link ConditionWatch}.  Road segments whose state does not cover their lookback period are
+     * evaluated from a scan of their counters, which also gives the time of their next possible change, or the time
+     * from which the state covers the lookback period if that is earlier, so they are not scanned on every read.
+     * Counters backfilled while a request waits are only seen once the condition is evaluated again.
+     * </p>
+     *
+     * <p>
+     * Each request holds a handler thread until it returns.  At most {@code watch.max.watchers} requests are served
+     * at once by each service instance, over all of its handler threads, and further requests are rejected with
+     * status 503 until one returns, so a service can serve {@code watch.max.watchers} times its number of instances
+     * watch requests at once.  The limit should stay below the number of handler threads of an instance, so that
+     * other requests are still served while it is reached; raise the service instances to serve more watchers.
+     * </p>
+     */
+    @Path("roads/watch")
+    @POST
+    @TransactionPolicy(TransactionControl.EXPLICIT)
+    public void watchConditions(HttpServiceRequest request, HttpServiceResponder responder,
+                                @QueryParam("timeout") @DefaultValue("30000") long timeout) {
+      long requestStart = watchTime.start();
+      try {
+        if (timeout < 0 || timeout > watchMaxTimeout) {
+          responder.sendError(HttpURLConnection.HTTP_BAD_REQUEST,
+                              String.format("The timeout must be between 0 and %d ms", watchMaxTimeout));
+          return;
+        }
+        ConditionWatch watch;
+        try {
+          watch = ConditionWatch.parse(Charsets.UTF_8.decode(request.getContent()));
+        } catch (IllegalArgumentException e) {
+          responder.sendError(HttpURLConnection.HTTP_BAD_REQUEST, e.getMessage());
+          return;
+        }
+        if (watch.size() > bulkMaxSegments) {
+          responder.sendError(HttpURLConnection.HTTP_BAD_REQUEST,
+                              String.format("At most %d road segments can be watched at once", bulkMaxSegments));
+          return;
+        }
+        if (activeWatchers.incrementAndGet() > watchMaxWatchers) {
+          activeWatchers.decrementAndGet();
+          responder.sendError(HttpURLConnection.HTTP_UNAVAILABLE,
+                              String.format("At most %d watch requests are served at once", watchMaxWatchers));
+          return;
+        }
+        try {
+          responder.sendJson(reader.watch(getContext(), watch, timeout, watchPollInterval));
+        } catch (TransactionFailureException e) {
+          responder.sendError(HttpURLConnection.HTTP_INTERNAL_ERROR,
+                              "Failed to read the road segment states: " + e.getMessage());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          responder.sendError(HttpURLConnection.HTTP_UNAVAILABLE, "The service is stopping");
+        } finally {
+          activeWatchers.decrementAndGet();
+        }
+      } finally {
+        watchTime.stop(requestStart, metrics);
+      }
+    }
+
+    /**
+     * Service method that returns the current {@link Route} of the corridor made of the road segments with an ID
+     * starting with the given prefix: the condition of each segment and of the whole corridor, and the number of
+     * vehicles and accidents reported within the lookback period.  The materialized states of all segments are read
+     * with a single scan of the state table, so the whole corridor normally costs two range scans; only segments
+     * whose state does not cover their lookback period are computed from a scan of their counters.  Route conditions
+     * are always computed, and do not use the condition cache.
+     */
+    @Path("route/{prefix}/recent")
+    @GET
+    public void routeConditions(HttpServiceRequest request, HttpServiceResponder responder,
+                                @PathParam("prefix") String prefix) {
+      long requestStart = routeTime.start();
+      try {
+        Set<String> segmentIds = getSegmentIds(prefix);
+        if (segmentIds == null) {
+          responder.sendError(HttpURLConnection.HTTP_BAD_REQUEST,
+                              String.format("More than %d road segments match prefix '%s'", bulkMaxSegments, prefix));
+          return;
+        }
+        if (segmentIds.isEmpty()) {
+          responder.sendError(HttpURLConnection.HTTP_NOT_FOUND,
+                              String.format("No road segments match prefix '%s'", prefix));
+          return;
+        }
+        responder.sendJson(reader.getRoute(prefix, segmentIds, System.currentTimeMillis()));
+      } finally {
+        routeTime.stop(requestStart, metrics);
+      }
+    }
+
+    /**
+     * Service method that returns the {@code k} road segments with the most events of a given type over the recent
+     * window, as a JSON list of {@link TopSegment} in descending order of count.  Counts are approximate, and are
+     * merged from the checkpoints of the {@link TopSegments} maintained by each sink instance, so the cost does not
+     * depend on the number of road segments, and results lag behind the flow by up to the checkpoint interval.
+     */
+    @Path("top")
+    @GET
+    public void topSegments(HttpServiceRequest request, HttpServiceResponder responder,
+                            @QueryParam("type") @DefaultValue("VEHICLE") String typeName,
+                            @QueryParam("k") @DefaultValue("50") int k) {
+      long requestStart = topTime.start();
+      try {
+        TrafficEvent.Type type;
+        try {
+          type = TrafficEvent.Type.valueOf(typeName);
+        } catch (IllegalArgumentException e) {
+          responder.sendError(HttpURLConnection.HTTP_BAD_REQUEST, "Type should be 'VEHICLE' or 'ACCIDENT'");
+          return;
+        }
+        if (k <= 0 || k > MAX_TOP_SEGMENTS) {
+          responder.sendError(HttpURLConnection.HTTP_BAD_REQUEST,
+                              String.format("The number of road segments must be between 1 and %d",
+                                            MAX_TOP_SEGMENTS));
+          return;
+        }
+        responder.sendJson(reader.getTop(type, k, System.currentTimeMillis()));
+      } finally {
+        topTime.stop(requestStart, metrics);
+      }
+    }
+
+    /**
+     * Returns the IDs of the registered road segments starting with the given prefix, or null if there are more
+     * than {@link #BULK_MAX_SEGMENTS}.
+     */
+    @Nullable
+    private Set<String> getSegmentIds(String prefix) {
+      return reader.getSegmentIds(prefix, bulkMaxSegments);
+    }
+
+    /**
+     * Returns the current conditions of the given road segments, all computed up to the same end time within
+     * the request's transaction.  Cached conditions are returned as is, and the others are computed together, see
+     * {@link SegmentReader#getConditions}.
+     */
+    private Map<String, Condition> getConditions(Set<String> segmentIds) {
+      final long endTime = System.currentTimeMillis();
+      if (cache == null) {
+        return reader.getConditions(segmentIds, endTime);
+      }
+      return cache.getAll(segmentIds, new Function<Set<String>, Map<String, Condition>>() {
+        @Override
+        public Map<String, Condition> apply(Set<String> missing) {
+          return reader.getConditions(missing, endTime);
+        }
+      }, metrics);
+    }
+
+    /**
+     * Returns the condition of a road segment from the condition cache, computing it on a miss.
+     */
+    private Condition getCachedCondition(final String segmentId, final long endTime) {
+      if (cache == null) {
+        return reader.getCondition(segmentId, endTime);
+      }
+      return cache.get(segmentId, new Callable<Condition>() {
+        @Override
+        public Condition call() {
+          return reader.getCondition(segmentId, endTime);
+        }
+      }, metrics);
     }
   }
 }
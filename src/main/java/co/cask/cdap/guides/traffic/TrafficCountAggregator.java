@@ -0,0 +1,116 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sums {@link TrafficEvent} counts in memory per road segment ID, type and timestamp, so that each distinct
+ * timeseries counter only needs to be incremented once.  Instances are not thread-safe.
+ */
+public class TrafficCountAggregator {
+
+  /**
+   * The summed count for a single road segment ID, type and timestamp.
+   */
+  public static final class Cell {
+    private final String roadSegmentId;
+    private final TrafficEvent.Type type;
+    private final long timestamp;
+    private long count;
+
+    private Cell(String roadSegmentId, TrafficEvent.Type type, long timestamp) {
+      this.roadSegmentId = roadSegmentId;
+      this.type = type;
+      this.timestamp = timestamp;
+    }
+
+    public String getRoadSegmentId() {
+      return roadSegmentId;
+    }
+
+    public TrafficEvent.Type getType() {
+      return type;
+    }
+
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Cell)) {
+        return false;
+      }
+      Cell other = (Cell) o;
+      return timestamp == other.timestamp && type == other.type && roadSegmentId.equals(other.roadSegmentId);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = roadSegmentId.hashCode();
+      result = 31 * result + type.hashCode();
+      return 31 * result + (int) (timestamp ^ (timestamp >>> 32));
+    }
+  }
+
+  private final Map<Cell, Cell> cells = new LinkedHashMap<Cell, Cell>();
+
+  /**
+   * Adds the count of the given event to its cell.
+   */
+  public void add(TrafficEvent event) {
+    add(event.getRoadSegmentId(), event.getType(), event.getTimestamp(), event.getCount());
+  }
+
+  /**
+   * Adds a count to the cell for the given road segment ID, type and timestamp.
+   */
+  public void add(String roadSegmentId, TrafficEvent.Type type, long timestamp, long count) {
+    Cell key = new Cell(roadSegmentId, type, timestamp);
+    Cell cell = cells.get(key);
+    if (cell == null) {
+      cell = key;
+      cells.put(key, cell);
+    }
+    cell.count += count;
+  }
+
+  /**
+   * Returns the cells added since the last {@link #clear()}, in the order they were first seen.
+   */
+  public Collection<Cell> getCells() {
+    return cells.values();
+  }
+
+  public boolean isEmpty() {
+    return cells.isEmpty();
+  }
+
+  public void clear() {
+    cells.clear();
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import com.google.common.base.Charsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import javax.annotation.Nullable;
+
+/**
+ * Decodes traffic sensor records in the {@code <segmentID>, <timestamp>, <type>, <count>} format described in
+ * {@link TrafficEventParser}, scanning the record bytes directly instead of decoding and splitting a string.
+ *
+ * <p>
+ * Records are accepted and rejected exactly as if the body were decoded as UTF-8 and split with
+ * {@code String.split("\\s*,\\s*")}: whitespace is only trimmed next to commas, and trailing empty fields are
+ * dropped.  Instances keep per-record scratch state and must not be shared between threads.
+ * </p>
+ */
+public class TrafficEventDecoder {
+  private static final Logger LOG = LoggerFactory.getLogger(TrafficEventDecoder.class);
+
+  private static final int FIELD_COUNT = 4;
+  private static final byte[] NOW = TrafficEventParser.TIMESTAMP_NOW.getBytes(Charsets.UTF_8);
+  private static final byte[] VEHICLE = TrafficEvent.Type.VEHICLE.name().getBytes(Charsets.UTF_8);
+  private static final byte[] ACCIDENT = TrafficEvent.Type.ACCIDENT.name().getBytes(Charsets.UTF_8);
+
+  /** Shared between all decoders, so that every flowlet instance in a container uses the same cache */
+  private static final TimestampDecoder TIMESTAMPS = new TimestampDecoder();
+
+  private final int[] starts = new int[FIELD_COUNT];
+  private final int[] ends = new int[FIELD_COUNT];
+
+  /**
+   * Decodes a single record from the remaining bytes of the given buffer, without changing its position.
+   *
+   * @return the decoded event, or {@code null} if the record is malformed
+   */
+  @Nullable
+  public TrafficEvent decode(ByteBuffer body) {
+    if (tokenize(body) != FIELD_COUNT) {
+      LOG.info("Received a malformed event message: {}",
+               TimestampDecoder.decodeString(body, body.position(), body.limit()));
+      return null;
+    }
+
+    long timestamp;
+    try {
+      timestamp = decodeTimestamp(body, starts[1], ends[1]);
+    } catch (ParseException pe) {
+      LOG.info("Timestamp should be in 'yyyy-MM-dd HH:mm:ss' format, got: {}",
+               TimestampDecoder.decodeString(body, starts[1], ends[1]));
+      return null;
+    }
+    TrafficEvent.Type type = decodeType(body, starts[2], ends[2]);
+    if (type == null) {
+      LOG.info("Type should be 'VEHICLE' or 'ACCIDENT', got: {}",
+               TimestampDecoder.decodeString(body, starts[2], ends[2]));
+      return null;
+    }
+    int count;
+    try {
+      count = decodeCount(body, starts[3], ends[3]);
+    } catch (NumberFormatException nfe) {
+      LOG.info("Invalid integer for count, got: {}", TimestampDecoder.decodeString(body, starts[3], ends[3]));
+      return null;
+    }
+
+    return new TrafficEvent(TimestampDecoder.decodeString(body, starts[0], ends[0]), timestamp, type, count);
+  }
+
+  /**
+   * Splits the buffer on commas, recording the bounds of the first {@link #FIELD_COUNT} fields.
+   *
+   * @return the number of fields, not counting trailing empty ones
+   */
+  private int tokenize(ByteBuffer body) {
+    int limit = body.limit();
+    int fields = 0;
+    int field = 0;
+    int start = body.position();
+    for (int i = start; i <= limit; i++) {
+      if (i < limit && body.get(i) != ',') {
+        continue;
+      }
+      int end = i;
+      if (i < limit) {
+        // whitespace is only trimmed next to a comma, so the last field keeps its trailing whitespace
+        while (end > start && isWhitespace(body.get(end - 1))) {
+          end--;
+        }
+      }
+      if (field < FIELD_COUNT) {
+        starts[field] = start;
+        ends[field] = end;
+      }
+      if (end > start) {
+        fields = field + 1;
+      }
+      field++;
+
+      start = i + 1;
+      while (start < limit && isWhitespace(body.get(start))) {
+        start++;
+      }
+      i = start - 1;
+    }
+    return fields;
+  }
+
+  private static long decodeTimestamp(ByteBuffer body, int start, int end) throws ParseException {
+    if (end - start == NOW.length) {
+      boolean now = true;
+      for (int i = 0; i < NOW.length && now; i++) {
+        now = (body.get(start + i) | 0x20) == NOW[i];
+      }
+      if (now) {
+        return System.currentTimeMillis();
+      }
+    }
+    return TIMESTAMPS.decode(body, start, end);
+  }
+
+  @Nullable
+  private static TrafficEvent.Type decodeType(ByteBuffer body, int start, int end) {
+    if (matches(body, start, end, VEHICLE)) {
+      return TrafficEvent.Type.VEHICLE;
+    }
+    if (matches(body, start, end, ACCIDENT)) {
+      return TrafficEvent.Type.ACCIDENT;
+    }
+    return null;
+  }
+
+  /**
+   * Decodes a count with the same rules as {@link Integer#parseInt(String)}.
+   */
+  private static int decodeCount(ByteBuffer body, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (body.get(i) < 0) {
+        // non-ASCII digits are valid for Integer.parseInt, so leave those to it
+        return Integer.parseInt(TimestampDecoder.decodeString(body, start, end));
+      }
+    }
+
+    int i = start;
+    boolean negative = false;
+    if (i < end && (body.get(i) == '-' || body.get(i) == '+')) {
+      negative = body.get(i) == '-';
+      i++;
+    }
+    if (i == end) {
+      throw new NumberFormatException();
+    }
+    long limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+    long value = 0;
+    for (; i < end; i++) {
+      byte b = body.get(i);
+      if (b < '0' || b > '9') {
+        throw new NumberFormatException();
+      }
+      value = value * 10 + (b - '0');
+      if (value > limit) {
+        throw new NumberFormatException();
+      }
+    }
+    return (int) (negative ? -value : value);
+  }
+
+  private static boolean matches(ByteBuffer body, int start, int end, byte[] expected) {
+    if (end - start != expected.length) {
+      return false;
+    }
+    for (int i = 0; i < expected.length; i++) {
+      if (body.get(start + i) != expected[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Matches the characters of the regular expression class {@code \s}.
+   */
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || (b >= '\t' && b <= '\r');
+  }
+}
@@ -18,16 +18,16 @@ package co.cask.cdap.guides.traffic;
 
 import co.cask.cdap.api.annotation.ProcessInput;
 import co.cask.cdap.api.flow.flowlet.AbstractFlowlet;
+import co.cask.cdap.api.flow.flowlet.FlowletContext;
 import co.cask.cdap.api.flow.flowlet.OutputEmitter;
 import co.cask.cdap.api.flow.flowlet.StreamEvent;
 import co.cask.cdap.api.metrics.Metrics;
-import com.google.common.base.Charsets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Parses stream events for traffic sensor events in the format:
@@ -38,8 +38,12 @@ import java.text.SimpleDateFormat;
  *   <li>{@code type} - the type of event (VEHICLE|ACCIDENT)</li>
  *   <li>{@code count} - the count of incidents to report for the event.</li>
  * </ul>
+ * Stream events may also hold one or more records in the binary format of {@link BinaryTrafficEventCodec}.  The
+ * format is detected for each stream event, so both formats can be sent to the same stream.
  */
 public class TrafficEventParser extends AbstractFlowlet {
+  private static final Logger LOG = LoggerFactory.getLogger(TrafficEventParser.class);
+
   /** Special timestamp string used to indicate that the current timestamp should be used */
   public static final String TIMESTAMP_NOW = "now";
   /** Expected date format for the timestamp strings */
@@ -47,53 +51,53 @@ public class TrafficEventParser extends AbstractFlowlet {
 
   /** Metrics key used to count bad records received from the stream */
   private static final String BAD_EVENT = "event.bad";
+  /** Metrics key for the histogram of the time to parse a stream event, see {@link Histogram} */
+  private static final String PARSE_TIME = "event.parse.us";
 
-  private static final Logger LOG = LoggerFactory.getLogger(TrafficEventParser.class);
-
-  private final DateFormat df = new SimpleDateFormat(DATE_FORMAT);
+  private final TrafficEventDecoder decoder = new TrafficEventDecoder();
+  private final List<TrafficEvent> binaryEvents = new ArrayList<TrafficEvent>();
 
   private Metrics metrics;
   private OutputEmitter<TrafficEvent> out;
+  private Histogram parseTime;
+
+  @Override
+  public void initialize(FlowletContext context) throws Exception {
+    super.initialize(context);
+    parseTime = Histogram.latency(PARSE_TIME, context.getRuntimeArguments());
+  }
 
   @ProcessInput
   public void process(StreamEvent event) {
-    String body = Charsets.UTF_8.decode(event.getBody()).toString();
-    String[] parts = body.split("\\s*,\\s*");
-    if (parts.length != 4) {
-      LOG.info("Received a malformed event message: {}", body);
-      metrics.count(BAD_EVENT, 1);
-      return;
-    }
-
-    long timestamp;
-    try {
-      if (TIMESTAMP_NOW.equalsIgnoreCase(parts[1])) {
-        timestamp = System.currentTimeMillis();
-      } else {
-        timestamp = df.parse(parts[1]).getTime();
+    ByteBuffer body = event.getBody();
+    long start = parseTime.start();
+    if (BinaryTrafficEventCodec.isBinary(body)) {
+      try {
+        BinaryTrafficEventCodec.decode(body, binaryEvents);
+        parseTime.stop(start, metrics);
+        for (TrafficEvent trafficEvent : binaryEvents) {
+          emit(trafficEvent);
+        }
+      } catch (IllegalArgumentException e) {
+        LOG.info("Received a malformed binary event message: {}", e.getMessage());
+        metrics.count(BAD_EVENT, 1);
+      } finally {
+        binaryEvents.clear();
       }
-    } catch (ParseException pe) {
-      LOG.info("Timestamp should be in 'yyyy-MM-dd HH:mm:ss' format, got: {}", parts[1]);
-      metrics.count(BAD_EVENT, 1);
-      return;
-    }
-    TrafficEvent.Type type;
-    try {
-      type = TrafficEvent.Type.valueOf(parts[2]);
-    } catch (IllegalArgumentException iae) {
-      LOG.info("Type should be 'VEHICLE' or 'ACCIDENT', got: {}", parts[2]);
-      metrics.count(BAD_EVENT, 1);
       return;
     }
-    int count;
-    try {
-      count = Integer.parseInt(parts[3]);
-    } catch (NumberFormatException nfe) {
-      LOG.info("Invalid integer for count, got: {}", parts[3]);
+
+    TrafficEvent trafficEvent = decoder.decode(body);
+    parseTime.stop(start, metrics);
+    if (trafficEvent == null) {
       metrics.count(BAD_EVENT, 1);
       return;
     }
+    emit(trafficEvent);
+  }
 
-    out.emit(new TrafficEvent(parts[0], timestamp, type, count));
+  private void emit(TrafficEvent trafficEvent) {
+    // route by segment, so that each sink instance owns a disjoint set of road segments
+    out.emit(trafficEvent, TrafficEventSink.PARTITION_KEY, trafficEvent.getRoadSegmentId());
   }
 }
@@ -16,30 +16,270 @@
 
 package co.cask.cdap.guides.traffic;
 
+import co.cask.cdap.api.annotation.Batch;
+import co.cask.cdap.api.annotation.HashPartition;
 import co.cask.cdap.api.annotation.ProcessInput;
 import co.cask.cdap.api.annotation.UseDataSet;
-import co.cask.cdap.api.common.Bytes;
 import co.cask.cdap.api.dataset.lib.CounterTimeseriesTable;
+import co.cask.cdap.api.dataset.lib.KeyValueTable;
+import co.cask.cdap.api.dataset.table.Table;
 import co.cask.cdap.api.flow.flowlet.AbstractFlowlet;
+import co.cask.cdap.api.flow.flowlet.Callback;
+import co.cask.cdap.api.flow.flowlet.FailurePolicy;
+import co.cask.cdap.api.flow.flowlet.FailureReason;
+import co.cask.cdap.api.flow.flowlet.FlowletContext;
+import co.cask.cdap.api.flow.flowlet.InputContext;
+import co.cask.cdap.api.metrics.Metrics;
+import com.google.common.collect.ImmutableMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
 /**
- * Increments timeseries counts for received {@link TrafficEvent}s per road segment ID and type.
+ * Increments timeseries counts for received {@link TrafficEvent}s per road segment ID and type.  Events are hash
+ * partitioned by road segment ID, so each instance owns a disjoint set of road segments.  Batches are written by the
+ * {@link SegmentWriter}, and the heaviest road segments are tracked in {@link TopSegments}.
  */
-public class TrafficEventSink extends AbstractFlowlet {
+public class TrafficEventSink extends AbstractFlowlet implements Callback {
   private static final Logger LOG = LoggerFactory.getLogger(TrafficEventSink.class);
 
+  /** Partition key used to route events to sink instances by road segment ID */
+  static final String PARTITION_KEY = "roadSegmentId";
+
+  /** Maximum number of events to process in a single transaction */
+  static final int BATCH_SIZE = 100;
+
+  /** Flowlet property for the time window of counters kept in each segment state */
+  private static final String STATE_WINDOW = "state.window";
+
+  /** Metrics keys, where histograms are reported as described in {@link Histogram} */
+  private static final String EVENT_PREFIX = "event.";
+  private static final String PROCESS_TIME = "sink.process.us";
+  private static final String COMMIT_TIME = "sink.commit.us";
+  private static final String INCREMENTS = "sink.increments";
+  static final String LAG = "sink.lag.ms";
+  private static final String MAX_LAG = "sink.lag.max.ms";
+
+  /** Runtime arguments for the capacity of each top segments summary, and the time between checkpoints */
+  static final String TOP_CAPACITY = "top.capacity";
+  static final String TOP_CHECKPOINT_INTERVAL = "top.checkpoint.interval.ms";
+  private static final int DEFAULT_TOP_CAPACITY = 1000;
+  private static final long DEFAULT_TOP_CHECKPOINT_INTERVAL = 10000;
+  /** Number of buckets the state window is split into for the top segments */
+  private static final int TOP_BUCKETS = 9;
+
+  private static final TrafficEvent.Type[] TYPES = TrafficEvent.Type.values();
+
   @UseDataSet(TrafficApp.TIMESERIES_TABLE_NAME)
   private CounterTimeseriesTable table;
 
+  @UseDataSet(TrafficApp.MINUTE_TABLE_NAME)
+  private CounterTimeseriesTable minuteTable;
+
+  @UseDataSet(TrafficApp.HOUR_TABLE_NAME)
+  private CounterTimeseriesTable hourTable;
+
+  @UseDataSet(TrafficApp.DAY_TABLE_NAME)
+  private CounterTimeseriesTable dayTable;
+
+  @UseDataSet(TrafficApp.SEGMENT_REGISTRY_NAME)
+  private KeyValueTable segments;
+
+  @UseDataSet(TrafficApp.SEGMENT_STATE_TABLE_NAME)
+  private KeyValueTable states;
+
+  @UseDataSet(TrafficApp.SEGMENT_DICTIONARY_NAME)
+  private Table dictionaryTable;
+
+  @UseDataSet(TrafficApp.TOP_SEGMENTS_NAME)
+  private KeyValueTable topCheckpoints;
+
+  private long stateWindow;
+  private int saltBuckets;
+  private String legacyRetentions;
+  private SegmentWriter writer;
+  private TopSegments topSegments;
+  private boolean topRestored;
+  private long topCheckpointInterval;
+  private long lastTopCheckpoint;
+  /** Time of the checkpoint written by the current batch, or 0 if it did not write one */
+  private long batchTopCheckpoint;
+  /** Counts of the current batch, only added to the top segments once it commits */
+  private final List<TrafficCountAggregator.Cell> batchCells = new ArrayList<TrafficCountAggregator.Cell>();
+
+  private Metrics metrics;
+  private Histogram processTime;
+  private Histogram commitTime;
+  private Histogram increments;
+  private Histogram lag;
+  /** Statistics of the current batch, only reported once it commits */
+  private final int[] typeCounts = new int[TYPES.length];
+  private int batchIncrements;
+  private long minTimestamp;
+  private long maxTimestamp;
+  private long commitStart;
+
+  public TrafficEventSink() {
+    this(ConditionRules.DEFAULT_LOOKBACK_PERIOD);
+  }
+
+  public TrafficEventSink(long stateWindow) {
+    this(stateWindow, 0, new LegacyCounters(new TrafficApp.TrafficConfig()));
+  }
+
+  /**
+   * @param saltBuckets the number of salt buckets of the counter keys, see {@link SegmentKeys}
+   * @param legacyCounters the retentions to look up legacy counters within, see {@link LegacyCounters}
+   */
+  TrafficEventSink(long stateWindow, int saltBuckets, LegacyCounters legacyCounters) {
+    this.stateWindow = stateWindow;
+    this.saltBuckets = saltBuckets;
+    this.legacyRetentions = legacyCounters.toProperty();
+  }
+
+  @Override
+  protected void configure() {
+    setProperties(ImmutableMap.of(STATE_WINDOW, Long.toString(stateWindow),
+                                  SegmentKeys.SALT_BUCKETS, Integer.toString(saltBuckets),
+                                  LegacyCounters.RETENTIONS, legacyRetentions));
+  }
+
+  @Override
+  public void initialize(FlowletContext context) throws Exception {
+    super.initialize(context);
+    stateWindow = Long.parseLong(context.getSpecification().getProperty(STATE_WINDOW));
+    SegmentKeys keys = SegmentKeys.fromProperty(context.getSpecification().getProperty(SegmentKeys.SALT_BUCKETS));
+    // conditions stored with the state are informational; set condition arguments as application preferences
+    // so that they match the ones used by TrafficConditionService
+    ConditionRuleSet ruleSet = ConditionRuleSet.fromArguments(context.getRuntimeArguments());
+    SegmentDictionary dictionary =
+      new SegmentDictionary(dictionaryTable, SegmentDictionary.createCache(SegmentDictionary.DEFAULT_CACHE_SIZE));
+    keys.verify(dictionary);
+    Map<Resolution, CounterTimeseriesTable> tables = new EnumMap<Resolution, CounterTimeseriesTable>(Resolution.class);
+    tables.put(Resolution.RAW, table);
+    tables.put(Resolution.MINUTE, minuteTable);
+    tables.put(Resolution.HOUR, hourTable);
+    tables.put(Resolution.DAY, dayTable);
+    LegacyCounters legacyCounters =
+      LegacyCounters.fromProperty(context.getSpecification().getProperty(LegacyCounters.RETENTIONS));
+    writer = new SegmentWriter(tables, segments, states, dictionary, keys, legacyCounters, ruleSet, stateWindow);
+    topSegments = new TopSegments(stateWindow, TOP_BUCKETS,
+                                  Arguments.getInt(context.getRuntimeArguments(), TOP_CAPACITY, DEFAULT_TOP_CAPACITY));
+    topCheckpointInterval = Arguments.getLong(context.getRuntimeArguments(), TOP_CHECKPOINT_INTERVAL,
+                                              DEFAULT_TOP_CHECKPOINT_INTERVAL);
+    processTime = Histogram.latency(PROCESS_TIME, context.getRuntimeArguments());
+    commitTime = Histogram.latency(COMMIT_TIME, context.getRuntimeArguments());
+    increments = new Histogram(INCREMENTS, Histogram.SIZE_BOUNDS, 1);
+    lag = new Histogram(LAG, Histogram.LAG_BOUNDS_MS, 1);
+  }
+
+  @Batch(BATCH_SIZE)
+  @HashPartition(PARTITION_KEY)
   @ProcessInput
-  public void process(TrafficEvent event) {
-    if (event.getCount() > 0) {
-      table.increment(Bytes.toBytes(event.getRoadSegmentId()), event.getCount(), event.getTimestamp(),
-                      Bytes.toBytes(event.getType().name()));
-    } else {
-      LOG.info("Skipping event with zero or negative count");
+  public void process(Iterator<TrafficEvent> events) {
+    long start = processTime.start();
+    Arrays.fill(typeCounts, 0);
+    batchIncrements = 0;
+    minTimestamp = Long.MAX_VALUE;
+    maxTimestamp = Long.MIN_VALUE;
+    batchCells.clear();
+    batchTopCheckpoint = 0;
+    try {
+      if (!topRestored) {
+        restoreTopSegments();
+      }
+      while (events.hasNext()) {
+        TrafficEvent event = events.next();
+        if (event.getCount() > 0) {
+          writer.add(event);
+          typeCounts[event.getType().ordinal()]++;
+          minTimestamp = Math.min(minTimestamp, event.getTimestamp());
+          maxTimestamp = Math.max(maxTimestamp, event.getTimestamp());
+        } else {
+          LOG.info("Skipping event with zero or negative count");
+        }
+      }
+      long now = System.currentTimeMillis();
+      batchIncrements = writer.write(now);
+      batchCells.addAll(writer.getCells());
+      if (now - lastTopCheckpoint >= topCheckpointInterval) {
+        checkpointTopSegments(now);
+      }
+    } finally {
+      // a failed batch is retried from the start, so never carry counts over
+      writer.clear();
+      processTime.stop(start, metrics);
+      commitStart = commitTime.start();
+    }
+  }
+
+  @Override
+  public void onSuccess(Object input, InputContext inputContext) {
+    writer.commit();
+    for (TrafficCountAggregator.Cell cell : batchCells) {
+      topSegments.add(cell.getRoadSegmentId(), cell.getType(), cell.getTimestamp(), cell.getCount());
+    }
+    batchCells.clear();
+    if (batchTopCheckpoint > 0) {
+      lastTopCheckpoint = batchTopCheckpoint;
+    }
+    // the time between the end of process() and this callback is spent committing the transaction
+    commitTime.stop(commitStart, metrics);
+    increments.record(batchIncrements, metrics);
+    for (TrafficEvent.Type type : TYPES) {
+      if (typeCounts[type.ordinal()] > 0) {
+        metrics.count(EVENT_PREFIX + type.name(), typeCounts[type.ordinal()]);
+      }
+    }
+    if (maxTimestamp >= minTimestamp) {
+      long now = System.currentTimeMillis();
+      lag.record(now - maxTimestamp, metrics);
+      metrics.gauge(MAX_LAG, now - minTimestamp);
+    }
+  }
+
+  @Override
+  public FailurePolicy onFailure(Object input, InputContext inputContext, FailureReason reason) {
+    writer.abort();
+    batchCells.clear();
+    return FailurePolicy.RETRY;
+  }
+
+  /**
+   * Replaces the top segments with the last checkpoint of this instance.  Road segments may have been owned by
+   * another instance when it was written, if the number of instances changed, and are then counted twice until
+   * their buckets fall out of the window.
+   */
+  private void restoreTopSegments() {
+    int instanceId = getContext().getInstanceId();
+    for (TrafficEvent.Type type : TYPES) {
+      byte[] checkpoint = topCheckpoints.read(TopSegments.getCheckpointKey(type, instanceId));
+      if (checkpoint != null) {
+        topSegments.restore(type, checkpoint);
+      }
+    }
+    topRestored = true;
+  }
+
+  /**
+   * Writes a checkpoint of the top segments, including the counts of the current batch, which are only added to the
+   * top segments once the batch commits.
+   */
+  private void checkpointTopSegments(long now) {
+    TopSegments checkpoint = topSegments.copy();
+    for (TrafficCountAggregator.Cell cell : batchCells) {
+      checkpoint.add(cell.getRoadSegmentId(), cell.getType(), cell.getTimestamp(), cell.getCount());
+    }
+    int instanceId = getContext().getInstanceId();
+    for (TrafficEvent.Type type : TYPES) {
+      topCheckpoints.write(TopSegments.getCheckpointKey(type, instanceId), checkpoint.encode(type));
     }
+    batchTopCheckpoint = now;
   }
 }
@@ -19,17 +19,39 @@ package co.cask.cdap.guides.traffic;
 import co.cask.cdap.api.flow.AbstractFlow;
 
 /**
- * Simple flow for processing and storing {@link TrafficEvent} records.
+ * Simple flow for processing and storing {@link TrafficEvent} records.  Parsed events are hash partitioned by
+ * road segment ID between the sink instances.
  */
 public class TrafficFlow extends AbstractFlow {
   static final String FLOW_NAME = "TrafficFlow";
 
+  private final TrafficApp.TrafficConfig config;
+  private final int saltBuckets;
+
+  public TrafficFlow() {
+    this(new TrafficApp.TrafficConfig());
+  }
+
+  public TrafficFlow(TrafficApp.TrafficConfig config) {
+    this(config, new SegmentKeys(config.getSaltBuckets()).getSaltBuckets());
+  }
+
+  /**
+   * @param saltBuckets the number of salt buckets of the counter keys, see {@link SegmentKeys}
+   */
+  TrafficFlow(TrafficApp.TrafficConfig config, int saltBuckets) {
+    this.config = config;
+    this.saltBuckets = saltBuckets;
+  }
+
   @Override
   public void configure() {
     setName(FLOW_NAME);
     setDescription("Reads traffic events from a stream and persists to a timeseries dataset");
-    addFlowlet("parser", new TrafficEventParser());
-    addFlowlet("sink", new TrafficEventSink());
+    addFlowlet("parser", new TrafficEventParser(), config.getParserInstances());
+    addFlowlet("sink", new TrafficEventSink(config.getStateWindow(), saltBuckets,
+                                            new LegacyCounters(config)),
+               config.getSinkInstances());
     connectStream(TrafficApp.STREAM_NAME, "parser");
     connect("parser", "sink");
   }
@@ -0,0 +1,66 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+/**
+ * Counts of one type for a road segment, summed into consecutive buckets of {@code step} milliseconds beginning
+ * at {@code start}.
+ */
+final class Volume {
+  private final String segment;
+  private final TrafficEvent.Type type;
+  private final Resolution resolution;
+  private final long start;
+  private final long step;
+  private final long[] counts;
+
+  Volume(String segment, TrafficEvent.Type type, Resolution resolution, long start, long step, long[] counts) {
+    this.segment = segment;
+    this.type = type;
+    this.resolution = resolution;
+    this.start = start;
+    this.step = step;
+    this.counts = counts;
+  }
+
+  String getSegment() {
+    return segment;
+  }
+
+  TrafficEvent.Type getType() {
+    return type;
+  }
+
+  /**
+   * Returns the resolution that the counts were read from.
+   */
+  Resolution getResolution() {
+    return resolution;
+  }
+
+  long getStart() {
+    return start;
+  }
+
+  long getStep() {
+    return step;
+  }
+
+  long[] getCounts() {
+    return counts;
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.guides.traffic.TrafficConditionService.Condition;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link Baseline} and its use by {@link ConditionRules}.
+ */
+public class BaselineTest {
+  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+  /** Monday, December 15 2014, midnight UTC */
+  private static final long MONDAY = 1418601600000L;
+  private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+  @Test
+  public void testSlots() {
+    Assert.assertEquals(0, Baseline.getSlot(MONDAY, UTC));
+    Assert.assertEquals(167, Baseline.getSlot(MONDAY - 1, UTC));
+    Assert.assertEquals(3 * 24 + 5, Baseline.getSlot(MONDAY + TimeUnit.DAYS.toMillis(3) + 5 * HOUR, UTC));
+    // the epoch was a Thursday
+    Assert.assertEquals(3 * 24, Baseline.getSlot(0L, UTC));
+    // 8am on Monday in Los Angeles is 4pm UTC
+    Assert.assertEquals(8, Baseline.getSlot(MONDAY + 16 * HOUR, TimeZone.getTimeZone("America/Los_Angeles")));
+  }
+
+  @Test
+  public void testQuantiles() {
+    Baseline.Builder builder = new Baseline.Builder(UTC);
+    // 25 Mondays with one count per bucket between 8am and 9am, from 1 to 100, and four with a count at 9am
+    long bucket = SegmentState.BUCKET_INTERVAL;
+    for (int week = 0; week < 25; week++) {
+      long start = MONDAY + TimeUnit.DAYS.toMillis(7 * week) + 8 * HOUR;
+      for (int i = 0; i < 4; i++) {
+        builder.add(start + i * bucket, week * 4 + i + 1);
+      }
+      if (week < 4) {
+        builder.add(start + HOUR, 1000);
+      }
+    }
+    Baseline baseline = Baseline.decode(builder.build(MONDAY).encode());
+    Assert.assertEquals(MONDAY, baseline.getComputed());
+    Assert.assertEquals(100, baseline.getSamples(8));
+    Assert.assertEquals(50.5f, baseline.getMean(8), 0.01f);
+
+    long eightAm = MONDAY + 8 * HOUR + 30 * 60 * 1000;
+    int p90 = Baseline.getQuantileIndex(90);
+    Assert.assertEquals(90, baseline.getQuantile(eightAm, p90, 10, -1), 90 * QuantileSketch.RELATIVE_ERROR);
+    // too few samples at 9am, none at 10am
+    Assert.assertEquals(-1, baseline.getQuantile(eightAm + HOUR, p90, 10, -1));
+    Assert.assertEquals(-1, baseline.getQuantile(eightAm + 2 * HOUR, p90, 10, -1));
+
+    // 95 vehicles is congested against the 90th percentile at 8am, but not against the fixed threshold
+    SegmentState state = new SegmentState(TimeUnit.HOURS.toMillis(1), 0L);
+    state.add(eightAm, TrafficEvent.Type.VEHICLE, 95);
+    state.add(eightAm + bucket, TrafficEvent.Type.VEHICLE, 95);
+    ConditionRules rules = new ConditionRules(100, 2, 0, TimeUnit.MINUTES.toMillis(45), 90);
+    Assert.assertEquals(Condition.RED, rules.evaluate(state, eightAm + bucket + 2000, baseline));
+    Assert.assertEquals(Condition.GREEN, rules.evaluate(state, eightAm + bucket + 2000, null));
+  }
+
+  @Test
+  public void testBucketedQuantiles() {
+    Baseline.Builder builder = new Baseline.Builder(UTC);
+    // four Mondays with three reports of 50 vehicles in each bucket between 8am and 9am
+    long bucket = SegmentState.BUCKET_INTERVAL;
+    for (int week = 0; week < 4; week++) {
+      long start = MONDAY + TimeUnit.DAYS.toMillis(7 * week) + 8 * HOUR;
+      for (long time = start; time < start + HOUR; time += bucket) {
+        for (int report = 0; report < 3; report++) {
+          builder.add(time + report * TimeUnit.MINUTES.toMillis(5), 50);
+        }
+      }
+    }
+    Baseline baseline = builder.build(MONDAY);
+    // the quantiles are of the bucket sums, not of the reports
+    Assert.assertEquals(16, baseline.getSamples(8));
+    Assert.assertEquals(150f, baseline.getMean(8), 0.01f);
+    long eightAm = MONDAY + 8 * HOUR + 30 * 60 * 1000;
+    Assert.assertEquals(150, baseline.getQuantile(eightAm, Baseline.getQuantileIndex(50), 10, -1),
+                        150 * QuantileSketch.RELATIVE_ERROR);
+
+    // the same traffic is usual against the baseline, but congested against the fixed threshold
+    SegmentState state = new SegmentState(TimeUnit.HOURS.toMillis(1), 0L);
+    for (int report = 0; report < 3; report++) {
+      state.add(eightAm + report * TimeUnit.MINUTES.toMillis(1), TrafficEvent.Type.VEHICLE, 40);
+      state.add(eightAm + bucket + report * TimeUnit.MINUTES.toMillis(1), TrafficEvent.Type.VEHICLE, 40);
+    }
+    ConditionRules rules = new ConditionRules(100, 2, 0, TimeUnit.MINUTES.toMillis(45), 90);
+    Assert.assertEquals(Condition.GREEN, rules.evaluate(state, eightAm + bucket + 2000, baseline));
+    Assert.assertEquals(Condition.RED, rules.evaluate(state, eightAm + bucket + 2000, null));
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link BinaryTrafficEventCodec}.
+ */
+public class BinaryTrafficEventCodecTest {
+
+  @Test
+  public void testRoundTrip() {
+    List<TrafficEvent> events = ImmutableList.of(
+      new TrafficEvent("66N_1", 1415614530000L, TrafficEvent.Type.VEHICLE, 10),
+      new TrafficEvent("66N_\u00e9", 0L, TrafficEvent.Type.ACCIDENT, 1),
+      new TrafficEvent("66N_2", -1L, TrafficEvent.Type.VEHICLE, -7),
+      new TrafficEvent("66N_3", Long.MAX_VALUE, TrafficEvent.Type.VEHICLE, Integer.MAX_VALUE),
+      new TrafficEvent("66N_4", Long.MIN_VALUE, TrafficEvent.Type.VEHICLE, Integer.MIN_VALUE));
+    byte[] bytes = BinaryTrafficEventCodec.encode(events);
+
+    // decoding does not depend on the buffer position, and does not change it
+    ByteBuffer body = ByteBuffer.allocate(bytes.length + 3);
+    body.position(3);
+    body.put(bytes).position(3);
+    Assert.assertTrue(BinaryTrafficEventCodec.isBinary(body));
+    List<TrafficEvent> decoded = new ArrayList<TrafficEvent>();
+    BinaryTrafficEventCodec.decode(body, decoded);
+    Assert.assertEquals(3, body.position());
+
+    Assert.assertEquals(events.size(), decoded.size());
+    for (int i = 0; i < events.size(); i++) {
+      Assert.assertEquals(events.get(i).getRoadSegmentId(), decoded.get(i).getRoadSegmentId());
+      Assert.assertEquals(events.get(i).getTimestamp(), decoded.get(i).getTimestamp());
+      Assert.assertEquals(events.get(i).getType(), decoded.get(i).getType());
+      Assert.assertEquals(events.get(i).getCount(), decoded.get(i).getCount());
+    }
+  }
+
+  @Test
+  public void testTextIsNotBinary() {
+    Assert.assertFalse(BinaryTrafficEventCodec.isBinary(
+      ByteBuffer.wrap("66N_1, 2014-11-10 10:15:30, VEHICLE, 10".getBytes(Charsets.UTF_8))));
+    Assert.assertFalse(BinaryTrafficEventCodec.isBinary(ByteBuffer.wrap(new byte[0])));
+  }
+
+  @Test
+  public void testMalformed() {
+    TrafficEvent first = new TrafficEvent("66N_1", 1415614530000L, TrafficEvent.Type.VEHICLE, 300);
+    TrafficEvent second = new TrafficEvent("66N_2", 1415614530000L, TrafficEvent.Type.ACCIDENT, 1);
+    byte[] valid = BinaryTrafficEventCodec.encode(ImmutableList.of(first, second));
+    int firstLength = BinaryTrafficEventCodec.encode(ImmutableList.of(first)).length;
+
+    // every truncation of a valid event within a record is rejected, without adding any of its records
+    for (int length = 0; length < valid.length; length++) {
+      if (length != firstLength) {
+        assertMalformed(Arrays.copyOf(valid, length));
+      }
+    }
+
+    byte[] badVersion = valid.clone();
+    badVersion[1] = 2;
+    assertMalformed(badVersion);
+
+    byte[] badType = valid.clone();
+    badType[2 + 8] = 2;
+    assertMalformed(badType);
+
+    // header followed by a record with an empty road segment ID
+    assertMalformed(new byte[] { BinaryTrafficEventCodec.MAGIC, BinaryTrafficEventCodec.VERSION,
+      0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 0 });
+  }
+
+  private void assertMalformed(byte[] bytes) {
+    List<TrafficEvent> decoded = new ArrayList<TrafficEvent>();
+    try {
+      BinaryTrafficEventCodec.decode(ByteBuffer.wrap(bytes), decoded);
+      Assert.fail("Expected malformed event to be rejected: " + Arrays.toString(bytes));
+    } catch (IllegalArgumentException e) {
+      Assert.assertTrue(decoded.isEmpty());
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.guides.traffic.TrafficConditionService.Condition;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link ConditionWatch} and the change times of {@link ConditionRules}.
+ */
+public class ConditionWatchTest {
+  private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+  @Test
+  public void testWatch() {
+    ConditionWatch watch = ConditionWatch.parse("1N_1=GREEN, 1N_2=RED\n1N_3");
+    Assert.assertEquals(ImmutableSet.of("1N_1", "1N_2", "1N_3"), watch.getSegmentIds());
+    // every road segment is evaluated on the first poll
+    Assert.assertTrue(watch.isStale("1N_1", 0L, 1000L));
+    watch.update("1N_1", 0L, Condition.GREEN, Long.MAX_VALUE);
+    watch.update("1N_2", 500L, Condition.RED, 2000L);
+    Assert.assertFalse(watch.hasChanges());
+
+    // only new events or the next change time make a road segment stale
+    Assert.assertFalse(watch.isStale("1N_1", 0L, 1500L));
+    Assert.assertFalse(watch.isStale("1N_2", 500L, 1500L));
+    Assert.assertTrue(watch.isStale("1N_1", 1200L, 1500L));
+    Assert.assertTrue(watch.isStale("1N_2", 500L, 2000L));
+
+    // a road segment without a condition is a change
+    watch.update("1N_3", 0L, Condition.GREEN, Long.MAX_VALUE);
+    watch.update("1N_2", 1500L, Condition.YELLOW, Long.MAX_VALUE);
+    Assert.assertEquals(ImmutableMap.of("1N_2", Condition.YELLOW, "1N_3", Condition.GREEN), watch.getChanges());
+    // and a condition back to the one seen is not
+    watch.update("1N_2", 1800L, Condition.RED, Long.MAX_VALUE);
+    Assert.assertEquals(ImmutableMap.of("1N_3", Condition.GREEN), watch.getChanges());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownCondition() {
+    ConditionWatch.parse("1N_1=BLUE");
+  }
+
+  @Test
+  public void testNextChange() {
+    long now = TimeUnit.DAYS.toMillis(1000);
+    ConditionRules rules = new ConditionRules(100, 2, 0, 45 * MINUTE);
+    SegmentState state = new SegmentState(45 * MINUTE, now - 60 * MINUTE);
+    Assert.assertEquals(Long.MAX_VALUE, rules.getNextChange(state, now));
+
+    // the bucket of the oldest cell within the lookback period leaves it first; the first cell is already out
+    state.add(now - 50 * MINUTE, TrafficEvent.Type.VEHICLE, 150);
+    state.add(now - 30 * MINUTE, TrafficEvent.Type.VEHICLE, 150);
+    state.add(now - 10 * MINUTE, TrafficEvent.Type.ACCIDENT, 1);
+    Assert.assertEquals(now + 30 * MINUTE, rules.getNextChange(state, now));
+
+    // with a baseline, the condition may also change at the next hour of the week
+    ConditionRules baselineRules = new ConditionRules(100, 2, 0, 45 * MINUTE, 90);
+    Assert.assertEquals(now + 15 * MINUTE, baselineRules.getNextChange(state, now + 2 * MINUTE));
+    Assert.assertEquals(now + 30 * MINUTE, baselineRules.getNextChange(state, now + 17 * MINUTE));
+
+    // or when a cell with a later bucket enters the lookback period
+    state.add(now + 20 * MINUTE, TrafficEvent.Type.VEHICLE, 150);
+    Assert.assertEquals(now + 15 * MINUTE, rules.getNextChange(state, now));
+  }
+}
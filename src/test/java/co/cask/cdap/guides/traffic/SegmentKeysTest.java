@@ -0,0 +1,70 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package co.cask.cdap.guides.traffic;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests for the counter key layouts of {@link SegmentKeys}.
+ */
+public class SegmentKeysTest {
+
+  @Test
+  public void testUnsaltedKeys() {
+    Assert.assertArrayEquals(new byte[] { SegmentKeys.MARKER, 0, 0, 1, 2 }, SegmentKeys.UNSALTED.toKey(258));
+    Assert.assertSame(SegmentKeys.UNSALTED, SegmentKeys.fromProperty(null));
+  }
+
+  @Test
+  public void testSaltedKeys() {
+    SegmentKeys keys = SegmentKeys.fromProperty("16");
+    Assert.assertEquals(16, keys.getSaltBuckets());
+    int[] buckets = new int[16];
+    for (int id = 0; id < 1600; id++) {
+      byte[] key = keys.toKey(id);
+      Assert.assertEquals(6, key.length);
+      Assert.assertEquals(SegmentKeys.MARKER, key[0]);
+      Assert.assertArrayEquals(Arrays.copyOfRange(SegmentKeys.UNSALTED.toKey(id), 1, 5),
+                               Arrays.copyOfRange(key, 2, 6));
+      // the salt only depends on the ID
+      Assert.assertArrayEquals(key, keys.toKey(id));
+      buckets[key[1]]++;
+    }
+    // consecutive IDs are spread over all buckets
+    for (int count : buckets) {
+      Assert.assertTrue("Uneven salt buckets: " + Arrays.toString(buckets), count > 50 && count < 150);
+    }
+    // the salts of the largest layout use every value of the salt byte
+    SegmentKeys maxKeys = new SegmentKeys(SegmentKeys.MAX_SALT_BUCKETS);
+    Set<Byte> salts = new HashSet<Byte>();
+    for (int id = 0; id < 10000; id++) {
+      salts.add(maxKeys.toKey(id)[1]);
+    }
+    Assert.assertEquals(SegmentKeys.MAX_SALT_BUCKETS, salts.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidSaltBuckets() {
+    new SegmentKeys(SegmentKeys.MAX_SALT_BUCKETS + 1);
+  }
+}
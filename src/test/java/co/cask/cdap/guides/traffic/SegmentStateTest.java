@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.dataset.lib.CounterTimeseriesTable;
+import co.cask.cdap.guides.traffic.TrafficConditionService.Condition;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link SegmentState} and its evaluation by {@link ConditionRules}.
+ */
+public class SegmentStateTest {
+  private static final long BUCKET = SegmentState.BUCKET_INTERVAL;
+  private static final long NOW = TimeUnit.DAYS.toMillis(1000);
+
+  @Test
+  public void testBuckets() {
+    SegmentState state = new SegmentState(3 * BUCKET, 0L);
+    // an event every second for two hours is summed into one cell per bucket and type
+    for (long timestamp = NOW - 2 * TimeUnit.HOURS.toMillis(1); timestamp < NOW; timestamp += 1000) {
+      state.add(timestamp, TrafficEvent.Type.VEHICLE, 1);
+    }
+    Assert.assertEquals(8, state.getCells().size());
+    state.update(NOW, Condition.GREEN);
+    Assert.assertEquals(3, state.getCells().size());
+    Assert.assertEquals(NOW - 3 * BUCKET, state.getCells().get(0).getTimestamp());
+    Assert.assertEquals(BUCKET / 1000, state.getCells().get(0).getValue());
+
+    SegmentState decoded = SegmentState.decode(state.encode());
+    Assert.assertEquals(3, decoded.getCells().size());
+    Assert.assertEquals(NOW - BUCKET, decoded.getCells().get(2).getTimestamp());
+  }
+
+  @Test
+  public void testInvalidate() {
+    SegmentState state = new SegmentState(3 * BUCKET, 0L);
+    Assert.assertTrue(state.covers(3 * BUCKET, NOW));
+    // counts backfilled two buckets ago are missing from the state until they leave the lookback period
+    Assert.assertTrue(state.invalidate(NOW - 2 * BUCKET + 1000));
+    Assert.assertFalse(state.covers(3 * BUCKET, NOW));
+    Assert.assertFalse(state.covers(2 * BUCKET, NOW));
+    Assert.assertTrue(state.covers(BUCKET, NOW));
+    Assert.assertEquals(NOW + 2 * BUCKET, state.getCoveredFrom(3 * BUCKET));
+    Assert.assertTrue(state.covers(3 * BUCKET, NOW + 2 * BUCKET));
+    Assert.assertFalse(state.covers(3 * BUCKET, NOW + 2 * BUCKET - 1));
+    Assert.assertEquals(Long.MAX_VALUE, state.getCoveredFrom(4 * BUCKET));
+    Assert.assertFalse(state.invalidate(NOW - 3 * BUCKET));
+    Assert.assertEquals(NOW - BUCKET, SegmentState.decode(state.encode()).getCreated());
+  }
+
+  @Test
+  public void testUnbucketedState() {
+    // version 1 states kept a cell per timestamp
+    ByteBuffer buffer = ByteBuffer.allocate(1 + 1 + 8 + 8 + 8 + 4 + 3 * (8 + 1 + 8));
+    buffer.put((byte) 1).put((byte) Condition.YELLOW.ordinal()).putLong(0L).putLong(NOW).putLong(3 * BUCKET).putInt(3);
+    buffer.putLong(NOW - BUCKET).put((byte) TrafficEvent.Type.VEHICLE.ordinal()).putLong(60);
+    buffer.putLong(NOW - BUCKET + 1000).put((byte) TrafficEvent.Type.VEHICLE.ordinal()).putLong(50);
+    buffer.putLong(NOW - BUCKET + 2000).put((byte) TrafficEvent.Type.ACCIDENT.ordinal()).putLong(1);
+    Assert.assertEquals(NOW, SegmentState.decodeLastUpdate(buffer.array()));
+
+    SegmentState state = SegmentState.decode(buffer.array());
+    Assert.assertEquals(Condition.YELLOW, state.getCondition());
+    Assert.assertEquals(2, state.getCells().size());
+    for (SegmentState.Cell cell : state.getCells()) {
+      Assert.assertEquals(NOW - BUCKET, cell.getTimestamp());
+      Assert.assertEquals(cell.getType() == TrafficEvent.Type.VEHICLE ? 110 : 1, cell.getValue());
+    }
+  }
+
+  @Test
+  public void testCountersMatchState() {
+    ConditionRules rules = new ConditionRules(100, 2, 0, 3 * BUCKET);
+    SegmentState state = new SegmentState(3 * BUCKET, 0L);
+    List<CounterTimeseriesTable.Counter> counters = new ArrayList<CounterTimeseriesTable.Counter>();
+    byte[] key = SegmentKeys.UNSALTED.toKey(1);
+    byte[] vehicle = SegmentKeys.typeTag(TrafficEvent.Type.VEHICLE);
+    // two buckets over the threshold once summed, none on its own
+    long[] timestamps = { NOW - 2 * BUCKET, NOW - 2 * BUCKET + 1000, NOW - BUCKET, NOW - BUCKET + 1000 };
+    for (long timestamp : timestamps) {
+      state.add(timestamp, TrafficEvent.Type.VEHICLE, 60);
+      counters.add(new CounterTimeseriesTable.Counter(key, 60, timestamp, vehicle));
+    }
+    Assert.assertEquals(Condition.RED, rules.evaluate(state, NOW));
+    Assert.assertEquals(Condition.RED, rules.evaluate(counters.iterator()));
+    Assert.assertEquals(Condition.YELLOW, rules.evaluate(state, NOW + 2 * BUCKET));
+    Assert.assertEquals(Condition.YELLOW, rules.evaluate(counters.subList(2, 4).iterator()));
+  }
+
+  @Test
+  public void testIntervalTotals() {
+    ConditionRules rules = ConditionRules.DEFAULT;
+    long end = SegmentState.getBucket(NOW) + BUCKET / 2;
+    // three reports under the threshold in one interval add up to a congested interval
+    SegmentState sameInterval = new SegmentState(3 * BUCKET, 0L);
+    SegmentState separateIntervals = new SegmentState(3 * BUCKET, 0L);
+    for (int i = 0; i < 3; i++) {
+      sameInterval.add(end - i * 1000, TrafficEvent.Type.VEHICLE, 60);
+      separateIntervals.add(end - i * BUCKET, TrafficEvent.Type.VEHICLE, 60);
+    }
+    Assert.assertEquals(Condition.YELLOW, rules.evaluate(sameInterval, end));
+    Assert.assertEquals(Condition.GREEN, rules.evaluate(separateIntervals, end));
+
+    // the whole of the interval that overlaps the start of the lookback period counts, up to an hour of reports
+    SegmentState firstInterval = new SegmentState(4 * BUCKET, 0L);
+    firstInterval.add(end - 3 * BUCKET - BUCKET / 4, TrafficEvent.Type.VEHICLE, 101);
+    firstInterval.add(end - BUCKET, TrafficEvent.Type.VEHICLE, 101);
+    Assert.assertEquals(end - 3 * BUCKET - BUCKET / 2, rules.getStartTime(end));
+    Assert.assertEquals(Condition.RED, rules.evaluate(firstInterval, end));
+    Assert.assertEquals(Condition.YELLOW, rules.evaluate(firstInterval, end + BUCKET / 2));
+  }
+}
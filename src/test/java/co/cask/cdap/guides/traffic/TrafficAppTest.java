@@ -16,29 +16,60 @@
 
 package co.cask.cdap.guides.traffic;
 
+import co.cask.cdap.api.dataset.lib.CounterTimeseriesTable;
+import co.cask.cdap.api.dataset.table.Table;
 import co.cask.cdap.api.metrics.RuntimeMetrics;
+import co.cask.cdap.proto.ProgramRunStatus;
 import co.cask.cdap.test.ApplicationManager;
+import co.cask.cdap.test.DataSetManager;
 import co.cask.cdap.test.FlowManager;
 import co.cask.cdap.test.ServiceManager;
 import co.cask.cdap.test.StreamManager;
 import co.cask.cdap.test.TestBase;
+import co.cask.cdap.test.WorkflowManager;
 import co.cask.common.http.HttpRequest;
 import co.cask.common.http.HttpRequests;
 import co.cask.common.http.HttpResponse;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
 import org.junit.Assert;
+import org.junit.ClassRule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Type;
 import java.net.URL;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Tests covering the {@link TrafficApp} application.
  */
 public class TrafficAppTest extends TestBase {
+  @ClassRule
+  public static final TemporaryFolder TEMP_FOLDER = new TemporaryFolder();
+
+  private static final Gson GSON = new Gson();
+  private static final Type CONDITIONS_TYPE =
+    new TypeToken<Map<String, TrafficConditionService.Condition>>() { }.getType();
+
   private DateFormat df = new SimpleDateFormat(TrafficEventParser.DATE_FORMAT);
 
   private int streamEventCount = 0;
@@ -50,12 +81,14 @@ public class TrafficAppTest extends TestBase {
 
     // Start the flow
     FlowManager flowManager = appManager.getFlowManager(TrafficFlow.FLOW_NAME);
-    flowManager.start();
+    // checkpoint the top segments with every batch, so that they include all events once processed
+    flowManager.start(ImmutableMap.of(TrafficEventSink.TOP_CHECKPOINT_INTERVAL, "0"));
     try {
       String segment1 = "66N_1";
       String segment2 = "66N_2";
       String segment3 = "66N_3";
       String segment4 = "66N_4";
+      String segment5 = "66N_5";
 
       // Load some data for querying
       StreamManager streamManager = getStreamManager(TrafficApp.STREAM_NAME);
@@ -81,6 +114,12 @@ public class TrafficAppTest extends TestBase {
       sendRecord(streamManager, segment4, now - TrafficApp.TIMESERIES_INTERVAL, TrafficEvent.Type.ACCIDENT, 1);
       sendRecord(streamManager, segment4, now, TrafficEvent.Type.VEHICLE, 10);
 
+      // Segment 5 has two intervals over the threshold, sent in a single binary stream event
+      sendBinaryRecords(
+        streamManager,
+        new TrafficEvent(segment5, now - TrafficApp.TIMESERIES_INTERVAL, TrafficEvent.Type.VEHICLE, 101),
+        new TrafficEvent(segment5, now, TrafficEvent.Type.VEHICLE, 101));
+
       // Wait until all stream events have been processed by the TrafficEventStore Flowlet
       RuntimeMetrics metrics = flowManager.getFlowletMetrics("sink");
       metrics.waitForProcessed(streamEventCount, 5, TimeUnit.SECONDS);
@@ -98,6 +137,68 @@ public class TrafficAppTest extends TestBase {
         assertSegmentStatus(url, segment3, TrafficConditionService.Condition.RED);
         // Segment 4 should be RED, since there is an accident in one interval
         assertSegmentStatus(url, segment4, TrafficConditionService.Condition.RED);
+        // Segment 5 should be RED, since 2 intervals exceed the threshold
+        assertSegmentStatus(url, segment5, TrafficConditionService.Condition.RED);
+
+        // Bulk lookups return the same conditions, by prefix or by a list of segments
+        Map<String, TrafficConditionService.Condition> expected =
+          ImmutableMap.of(segment1, TrafficConditionService.Condition.GREEN,
+                          segment2, TrafficConditionService.Condition.YELLOW,
+                          segment3, TrafficConditionService.Condition.RED,
+                          segment4, TrafficConditionService.Condition.RED,
+                          segment5, TrafficConditionService.Condition.RED);
+        assertBulkStatus(HttpRequest.get(new URL(url, "v1/roads/recent?prefix=66N_")).build(), expected);
+        assertBulkStatus(HttpRequest.post(new URL(url, "v1/roads/recent"))
+                           .withBody(segment2 + ", " + segment4 + "\n" + segment1).build(),
+                         ImmutableMap.of(segment1, TrafficConditionService.Condition.GREEN,
+                                         segment2, TrafficConditionService.Condition.YELLOW,
+                                         segment4, TrafficConditionService.Condition.RED));
+
+        // A watch returns the segments whose condition differs from the one last seen, or nothing on timeout
+        assertBulkStatus(HttpRequest.post(new URL(url, "v1/roads/watch?timeout=0"))
+                           .withBody(segment1 + "=GREEN," + segment3 + "=RED").build(),
+                         ImmutableMap.<String, TrafficConditionService.Condition>of());
+        assertBulkStatus(HttpRequest.post(new URL(url, "v1/roads/watch?timeout=1000"))
+                           .withBody(segment1 + "=GREEN," + segment2 + "=GREEN " + segment4).build(),
+                         ImmutableMap.of(segment2, TrafficConditionService.Condition.YELLOW,
+                                         segment4, TrafficConditionService.Condition.RED));
+
+        // A route lookup returns the same conditions, in corridor order, and the totals of the corridor
+        assertRoute(url, "66N_", TrafficConditionService.Condition.RED, 566, 1,
+                    segment1, segment2, segment3, segment4, segment5);
+
+        // The segments with the most vehicles are the two RED segments without accidents
+        assertTopSegments(url, TrafficEvent.Type.VEHICLE, 2, segment3, segment5);
+
+        // Rollups hold the same totals as the raw counters
+        assertVolume(url, segment3, now - TrafficApp.TIMESERIES_INTERVAL * 3, now + 1, 213);
+        // The raw series has one line per timestamp
+        assertSeries(url, segment3, now - TrafficApp.TIMESERIES_INTERVAL * 3, now + 1, 3, 213);
+
+        // A blocked watch returns as soon as a new event changes a condition, long before its timeout
+        final HttpRequest watchRequest = HttpRequest.post(new URL(url, "v1/roads/watch?timeout=50000"))
+          .withBody(segment1 + "=GREEN").build();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+          long watchStart = System.currentTimeMillis();
+          Future<HttpResponse> watch = executor.submit(new Callable<HttpResponse>() {
+            @Override
+            public HttpResponse call() throws IOException {
+              return HttpRequests.execute(watchRequest);
+            }
+          });
+          TimeUnit.SECONDS.sleep(2);
+          Assert.assertFalse(watch.isDone());
+          sendRecord(streamManager, segment1, now, TrafficEvent.Type.VEHICLE, 101);
+          metrics.waitForProcessed(streamEventCount, 5, TimeUnit.SECONDS);
+          HttpResponse response = watch.get(10, TimeUnit.SECONDS);
+          Assert.assertTrue(System.currentTimeMillis() - watchStart < 50000);
+          Assert.assertEquals(200, response.getResponseCode());
+          Assert.assertEquals(ImmutableMap.of(segment1, TrafficConditionService.Condition.YELLOW),
+                              GSON.fromJson(response.getResponseBodyAsString(), CONDITIONS_TYPE));
+        } finally {
+          executor.shutdownNow();
+        }
       } finally {
         serviceManager.stop();
         serviceManager.waitForStatus(false);
@@ -107,6 +208,69 @@ public class TrafficAppTest extends TestBase {
     }
   }
 
+  @Test
+  public void testBackfill() throws Exception {
+    ApplicationManager appManager = deployApplication(TrafficApp.class);
+    String segment = "77S_1";
+    long now = System.currentTimeMillis();
+
+    // two intervals over the threshold, plus a bad record that is skipped
+    File input = TEMP_FOLDER.newFile("archive.txt");
+    Files.write(String.format("%s, %s, VEHICLE, 101%n%s, %s, VEHICLE, 60%n%s, %s, VEHICLE, 41%nbad record%n",
+                              segment, df.format(new Date(now - TrafficApp.TIMESERIES_INTERVAL)),
+                              segment, df.format(new Date(now)), segment, df.format(new Date(now))),
+                input, Charsets.UTF_8);
+
+    WorkflowManager workflowManager = appManager.getWorkflowManager(TrafficBackfillWorkflow.NAME);
+    workflowManager.start(ImmutableMap.of(TrafficBackfillMapReduce.INPUT_PATH, input.toURI().toString()));
+    workflowManager.waitForRun(ProgramRunStatus.COMPLETED, 5, TimeUnit.MINUTES);
+
+    ServiceManager serviceManager = appManager.getServiceManager(TrafficConditionService.SERVICE_NAME);
+    serviceManager.start();
+    try {
+      serviceManager.waitForStatus(true);
+      URL url = serviceManager.getServiceURL();
+      assertSegmentStatus(url, segment, TrafficConditionService.Condition.RED);
+      assertVolume(url, segment, now - TrafficApp.TIMESERIES_INTERVAL * 3, now + 1, 202);
+      assertBulkStatus(HttpRequest.get(new URL(url, "v1/roads/recent?prefix=77S_")).build(),
+                       ImmutableMap.of(segment, TrafficConditionService.Condition.RED));
+    } finally {
+      serviceManager.stop();
+      serviceManager.waitForStatus(false);
+    }
+  }
+
+  @Test
+  public void testLegacyCounters() throws Exception {
+    ApplicationManager appManager = deployApplication(TrafficApp.class);
+    String legacySegment = "88E_1";
+    String newSegment = "88E_2";
+    long now = System.currentTimeMillis();
+
+    // a counter written under the legacy key before the dictionary existed, within the raw retention
+    DataSetManager<CounterTimeseriesTable> tableManager = getDataset(TrafficApp.TIMESERIES_TABLE_NAME);
+    tableManager.get().increment(SegmentKeys.toLegacyKey(legacySegment), 10, now - TimeUnit.DAYS.toMillis(2),
+                                 SegmentKeys.legacyTypeTag(TrafficEvent.Type.VEHICLE));
+    tableManager.flush();
+
+    FlowManager flowManager = appManager.getFlowManager(TrafficFlow.FLOW_NAME);
+    flowManager.start();
+    try {
+      StreamManager streamManager = getStreamManager(TrafficApp.STREAM_NAME);
+      sendRecord(streamManager, legacySegment, now, TrafficEvent.Type.VEHICLE, 1);
+      sendRecord(streamManager, newSegment, now, TrafficEvent.Type.VEHICLE, 1);
+      flowManager.getFlowletMetrics("sink").waitForProcessed(streamEventCount, 5, TimeUnit.SECONDS);
+    } finally {
+      flowManager.stop();
+    }
+
+    // only the segment with legacy counters keeps reading them until it is migrated
+    DataSetManager<Table> dictionaryManager = getDataset(TrafficApp.SEGMENT_DICTIONARY_NAME);
+    SegmentDictionary dictionary = new SegmentDictionary(dictionaryManager.get(), null);
+    Assert.assertFalse(dictionary.get(legacySegment).isMigrated());
+    Assert.assertTrue(dictionary.get(newSegment).isMigrated());
+  }
+
   /**
    * Sends a record for the given fields to the application's input stream.
    */
@@ -118,6 +282,15 @@ public class TrafficAppTest extends TestBase {
     streamEventCount++;
   }
 
+  /**
+   * Sends the given events to the application's input stream, as a single event in the binary format.
+   */
+  private void sendBinaryRecords(StreamManager streamManager, TrafficEvent... events) throws IOException {
+    streamManager.send(BinaryTrafficEventCodec.encode(Arrays.asList(events)));
+    // each record is processed by the sink as a separate event
+    streamEventCount += events.length;
+  }
+
   /**
    * Checks that the status returned for a given road segment matches the expected value.  This check will retry
    * a set number of tries (with a pause between attempts) in order to account for delays in the stream events being
@@ -131,4 +304,94 @@ public class TrafficAppTest extends TestBase {
     Assert.assertEquals(200, response.getResponseCode());
     Assert.assertEquals(expectedCondition.name(), response.getResponseBodyAsString());
   }
+
+  /**
+   * Checks that a bulk lookup request returns the expected condition for each road segment.
+   */
+  private void assertBulkStatus(HttpRequest request,
+                                Map<String, TrafficConditionService.Condition> expected) throws IOException {
+    HttpResponse response = HttpRequests.execute(request);
+    Assert.assertEquals(200, response.getResponseCode());
+    Map<String, TrafficConditionService.Condition> actual =
+      GSON.fromJson(response.getResponseBodyAsString(), CONDITIONS_TYPE);
+    Assert.assertEquals(expected, actual);
+  }
+
+  /**
+   * Checks the condition and volumes of a corridor, and that it is made of the expected road segments in order.
+   */
+  private void assertRoute(URL serviceUrl, String prefix, TrafficConditionService.Condition expectedCondition,
+                           long expectedVehicles, long expectedAccidents, String... expectedSegments)
+    throws IOException {
+    URL url = new URL(serviceUrl, String.format("v1/route/%s/recent", prefix));
+    HttpResponse response = HttpRequests.execute(HttpRequest.get(url).build());
+    Assert.assertEquals(200, response.getResponseCode());
+    Route route =
+      GSON.fromJson(response.getResponseBodyAsString(), Route.class);
+    Assert.assertEquals(expectedCondition, route.getCondition());
+    Assert.assertEquals(expectedVehicles, route.getVehicles());
+    Assert.assertEquals(expectedAccidents, route.getAccidents());
+    List<String> segments = new ArrayList<String>();
+    for (RouteSegment segment : route.getSegments()) {
+      segments.add(segment.getSegment());
+    }
+    Assert.assertEquals(Arrays.asList(expectedSegments), segments);
+  }
+
+  /**
+   * Checks that the top segments of a type are the expected road segments, in order.
+   */
+  private void assertTopSegments(URL serviceUrl, TrafficEvent.Type type, int k,
+                                 String... expectedSegments) throws IOException {
+    URL url = new URL(serviceUrl, String.format("v1/top?type=%s&k=%d", type.name(), k));
+    HttpResponse response = HttpRequests.execute(HttpRequest.get(url).build());
+    Assert.assertEquals(200, response.getResponseCode());
+    TopSegment[] top =
+      GSON.fromJson(response.getResponseBodyAsString(), TopSegment[].class);
+    List<String> segments = new ArrayList<String>();
+    for (TopSegment segment : top) {
+      segments.add(segment.getSegment());
+    }
+    Assert.assertEquals(Arrays.asList(expectedSegments), segments);
+  }
+
+  /**
+   * Checks that the vehicle volume of a road segment over a time range, summed from the rollups, matches the
+   * expected total.
+   */
+  private void assertVolume(URL serviceUrl, String segment, long start, long end,
+                            long expectedTotal) throws IOException {
+    URL url = new URL(serviceUrl, String.format("v1/road/%s/volume?start=%d&end=%d&step=%d",
+                                                segment, start, end, Resolution.MINUTE.getInterval()));
+    HttpResponse response = HttpRequests.execute(HttpRequest.get(url).build());
+    Assert.assertEquals(200, response.getResponseCode());
+    Volume volume =
+      GSON.fromJson(response.getResponseBodyAsString(), Volume.class);
+    Assert.assertEquals(Resolution.MINUTE, volume.getResolution());
+    long total = 0;
+    for (long count : volume.getCounts()) {
+      total += count;
+    }
+    Assert.assertEquals(expectedTotal, total);
+  }
+
+  /**
+   * Checks that the streamed vehicle series of a road segment over a time range has the expected number of lines
+   * and total count.
+   */
+  private void assertSeries(URL serviceUrl, String segment, long start, long end,
+                            int expectedLines, long expectedTotal) throws IOException {
+    URL url = new URL(serviceUrl, String.format("v1/road/%s/series?start=%d&end=%d&type=VEHICLE",
+                                                segment, start, end));
+    HttpResponse response = HttpRequests.execute(HttpRequest.get(url).build());
+    Assert.assertEquals(200, response.getResponseCode());
+    int lines = 0;
+    long total = 0;
+    for (String line : Splitter.on('\n').omitEmptyStrings().split(response.getResponseBodyAsString())) {
+      lines++;
+      total += new JsonParser().parse(line).getAsJsonObject().get("count").getAsLong();
+    }
+    Assert.assertEquals(expectedLines, lines);
+    Assert.assertEquals(expectedTotal, total);
+  }
 }
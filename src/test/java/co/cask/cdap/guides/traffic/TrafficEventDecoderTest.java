@@ -0,0 +1,135 @@
+/*
+ * Copyright © 2014-2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import com.google.common.base.Charsets;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+/**
+ * Tests that {@link TrafficEventDecoder} accepts and rejects the same records as the original string-splitting
+ * parser.
+ */
+public class TrafficEventDecoderTest {
+  private static final String[] RECORDS = {
+    "66N_1, 2014-11-10 10:15:30, VEHICLE, 10",
+    "66N_1,2014-11-10 10:15:30,ACCIDENT,1",
+    "66N_1 \t,\t 2014-11-10 10:15:30 ,  VEHICLE ,  -7",
+    "  66N_1, 2014-11-10 10:15:30, VEHICLE, 10",
+    "66N_1, 2014-11-10 10:15:30, VEHICLE, 10 ",
+    "66N_1, 2014-11-10 10:15:30, VEHICLE, 10,",
+    "66N_1, 2014-11-10 10:15:30, VEHICLE, 10, , ,",
+    "66N_1, 2014-11-10 10:15:30, VEHICLE, 10, x",
+    ", 2014-11-10 10:15:30, VEHICLE, 10",
+    "66N_1, , VEHICLE, 10",
+    "66N_1, 2014-11-10 10:15:30, VEHICLE",
+    "66N_1, 2014-11-10 10:15:30, vehicle, 10",
+    "66N_1, 2014-11-10 10:15:30, VEHICLES, 10",
+    "66N_1, 2014-11-10 10:15:30, VEHICLE, +10",
+    "66N_1, 2014-11-10 10:15:30, VEHICLE, -",
+    "66N_1, 2014-11-10 10:15:30, VEHICLE, 2147483647",
+    "66N_1, 2014-11-10 10:15:30, VEHICLE, 2147483648",
+    "66N_1, 2014-11-10 10:15:30, VEHICLE, -2147483648",
+    "66N_1, 2014-11-10 10:15:30, VEHICLE, -2147483649",
+    "66N_1, 2014-11-10 10:15:30, VEHICLE, 1x",
+    "66N_1, 2014-11-10 10:15:30, VEHICLE, \u0661\u0662",
+    "66N_1, 2014-11-10 10:15, VEHICLE, 10",
+    "66N_1, 2014-11-10 10:15:75, VEHICLE, 10",
+    "66N_1, 2014-13-45 25:61:61, VEHICLE, 10",
+    "66N_1, 2014-11-10 10:15:30.500, VEHICLE, 10",
+    "66N_1, 2014/11/10 10:15:30, VEHICLE, 10",
+    "66N_1, 14-1-2 3:4:5, VEHICLE, 10",
+    "\u00e9t\u00e9_1, 2014-11-10 10:15:30, VEHICLE, 10",
+    "66N_1; 2014-11-10 10:15:30; VEHICLE; 10",
+    "",
+    ",,,",
+  };
+
+  private final DateFormat df = new SimpleDateFormat(TrafficEventParser.DATE_FORMAT);
+
+  @Test
+  public void testMatchesStringParser() throws Exception {
+    TrafficEventDecoder decoder = new TrafficEventDecoder();
+    for (String record : RECORDS) {
+      TrafficEvent expected = parseWithSplit(record);
+      TrafficEvent actual = decoder.decode(ByteBuffer.wrap(record.getBytes(Charsets.UTF_8)));
+      assertSameEvent(record, expected, actual);
+
+      // direct buffers take the copying path for strings
+      byte[] bytes = record.getBytes(Charsets.UTF_8);
+      ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+      direct.put(bytes).flip();
+      assertSameEvent(record, expected, decoder.decode(direct));
+    }
+  }
+
+  @Test
+  public void testNowTimestamp() {
+    TrafficEventDecoder decoder = new TrafficEventDecoder();
+    long before = System.currentTimeMillis();
+    TrafficEvent event = decoder.decode(ByteBuffer.wrap("66N_1, NoW, VEHICLE, 10".getBytes(Charsets.UTF_8)));
+    long after = System.currentTimeMillis();
+    Assert.assertNotNull(event);
+    Assert.assertTrue(event.getTimestamp() >= before && event.getTimestamp() <= after);
+  }
+
+  @Test
+  public void testBufferPositionUnchanged() {
+    byte[] bytes = "xx66N_1, 2014-11-10 10:15:30, VEHICLE, 10".getBytes(Charsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    buffer.position(2);
+    TrafficEvent event = new TrafficEventDecoder().decode(buffer);
+    Assert.assertNotNull(event);
+    Assert.assertEquals("66N_1", event.getRoadSegmentId());
+    Assert.assertEquals(2, buffer.position());
+  }
+
+  private void assertSameEvent(String record, TrafficEvent expected, TrafficEvent actual) {
+    if (expected == null) {
+      Assert.assertNull(record, actual);
+      return;
+    }
+    Assert.assertNotNull(record, actual);
+    Assert.assertEquals(record, expected.getRoadSegmentId(), actual.getRoadSegmentId());
+    Assert.assertEquals(record, expected.getTimestamp(), actual.getTimestamp());
+    Assert.assertEquals(record, expected.getType(), actual.getType());
+    Assert.assertEquals(record, expected.getCount(), actual.getCount());
+  }
+
+  /**
+   * The original parsing rules of {@link TrafficEventParser}, for comparison.
+   */
+  private TrafficEvent parseWithSplit(String body) {
+    String[] parts = body.split("\\s*,\\s*");
+    if (parts.length != 4) {
+      return null;
+    }
+    try {
+      return new TrafficEvent(parts[0], df.parse(parts[1]).getTime(), TrafficEvent.Type.valueOf(parts[2]),
+                              Integer.parseInt(parts[3]));
+    } catch (ParseException e) {
+      return null;
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Generates synthetic stream records for {@link TrafficLoadTest}: road segments are picked from a Zipf distribution,
+ * so a few segments are hot spots, a fraction of the records have timestamps from the recent past instead of the
+ * current time, and a fraction are malformed.  Instances are not thread-safe.
+ */
+final class TrafficLoadGenerator {
+  /** Fraction of the well-formed records that report an accident rather than a vehicle count */
+  private static final double ACCIDENT_RATE = 0.001;
+  private static final int MAX_VEHICLES = 150;
+
+  private final Random random;
+  private final int segmentCount;
+  /** Cumulative probabilities of the segments, by rank */
+  private final double[] cumulative;
+  private final double outOfOrderRate;
+  private final long maxDelay;
+  private final double malformedRate;
+  private final DateFormat df = new SimpleDateFormat(TrafficEventParser.DATE_FORMAT);
+
+  /**
+   * @param zipfExponent the exponent of the Zipf distribution of segments, where 0 picks all segments uniformly
+   * @param outOfOrderRate the fraction of records with a timestamp up to {@code maxDelay} milliseconds in the past
+   * @param malformedRate the fraction of records that cannot be parsed
+   */
+  TrafficLoadGenerator(long seed, int segmentCount, double zipfExponent, double outOfOrderRate, long maxDelay,
+                       double malformedRate) {
+    this.random = new Random(seed);
+    this.segmentCount = segmentCount;
+    this.cumulative = new double[segmentCount];
+    double total = 0;
+    for (int rank = 0; rank < segmentCount; rank++) {
+      total += 1 / Math.pow(rank + 1, zipfExponent);
+      cumulative[rank] = total;
+    }
+    for (int rank = 0; rank < segmentCount; rank++) {
+      cumulative[rank] /= total;
+    }
+    this.outOfOrderRate = outOfOrderRate;
+    this.maxDelay = maxDelay;
+    this.malformedRate = malformedRate;
+  }
+
+  /**
+   * Returns the ID of the road segment with the given rank, where rank 0 is the hottest.  IDs look like highway
+   * segments, with 100 segments per highway.
+   */
+  static String getSegmentId(int rank) {
+    return String.format("%dN_%d", rank / 100, rank % 100);
+  }
+
+  int getSegmentCount() {
+    return segmentCount;
+  }
+
+  /**
+   * Returns the ID of a road segment picked from the Zipf distribution.
+   */
+  String nextSegmentId() {
+    int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+    return getSegmentId(Math.min(segmentCount - 1, rank < 0 ? -rank - 1 : rank));
+  }
+
+  /**
+   * Returns whether the next record should be malformed.
+   */
+  boolean nextMalformed() {
+    return random.nextDouble() < malformedRate;
+  }
+
+  /**
+   * Returns a record that cannot be parsed, in one of a few ways.
+   */
+  String nextMalformedRecord() {
+    switch (random.nextInt(4)) {
+      case 0:
+        return nextSegmentId() + ", not a date, VEHICLE, 10";
+      case 1:
+        return nextSegmentId() + ", " + df.format(new Date()) + ", BICYCLE, 10";
+      case 2:
+        return nextSegmentId() + ", " + df.format(new Date()) + ", VEHICLE";
+      default:
+        return "garbage";
+    }
+  }
+
+  /**
+   * Returns a well-formed record, reported at the given time or somewhat before it.
+   */
+  String nextRecord(long now) {
+    long timestamp = now;
+    if (random.nextDouble() < outOfOrderRate) {
+      timestamp -= (long) (random.nextDouble() * maxDelay);
+    }
+    boolean accident = random.nextDouble() < ACCIDENT_RATE;
+    return String.format("%s, %s, %s, %d", nextSegmentId(), df.format(new Date(timestamp)),
+                         accident ? TrafficEvent.Type.ACCIDENT.name() : TrafficEvent.Type.VEHICLE.name(),
+                         accident ? 1 : 1 + random.nextInt(MAX_VEHICLES));
+  }
+}
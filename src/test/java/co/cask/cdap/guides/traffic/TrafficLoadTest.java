@@ -0,0 +1,346 @@
+/*
+ * Copyright © 2014 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.guides.traffic;
+
+import co.cask.cdap.api.metrics.RuntimeMetrics;
+import co.cask.cdap.common.conf.Constants;
+import co.cask.cdap.proto.id.NamespaceId;
+import co.cask.cdap.test.ApplicationManager;
+import co.cask.cdap.test.FlowManager;
+import co.cask.cdap.test.MetricsManager;
+import co.cask.cdap.test.ServiceManager;
+import co.cask.cdap.test.StreamManager;
+import co.cask.cdap.test.TestBase;
+import co.cask.common.http.HttpRequest;
+import co.cask.common.http.HttpRequests;
+import co.cask.common.http.HttpResponse;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test of {@link TrafficApp} in the in-memory runtime, to estimate the sustainable ingestion rate of
+ * {@link TrafficFlow} and the latency of condition lookups under concurrent ingestion.  Synthetic records from
+ * {@link TrafficLoadGenerator} are sent to the stream while query threads look up the conditions of road segments
+ * picked from the same distribution, and a JSON report of the ingestion throughput, processing backlog, event time
+ * lag and query latency percentiles is written at the end.  The event time lag is the time between the newest
+ * timestamp of each batch processed by the sink and the end of the batch, from the {@code sink.lag.ms} histogram of
+ * {@link TrafficEventSink}, so its percentiles are the bounds of the histogram buckets they fall in.
+ *
+ * <p>
+ * The test is excluded from the build unless the {@code traffic.load} system property is set, and skipped unless it
+ * is {@code true}, for example with {@code mvn test -Dtest=TrafficLoadTest -Dtraffic.load=true}.  It is configured
+ * with the system properties:
+ * <ul>
+ *   <li>{@code traffic.load.segments}: number of road segments;</li>
+ *   <li>{@code traffic.load.zipf}: exponent of the Zipf distribution of road segments, 0 for uniform;</li>
+ *   <li>{@code traffic.load.events}: number of records to send;</li>
+ *   <li>{@code traffic.load.rate}: records to send per second, 0 to send as fast as possible;</li>
+ *   <li>{@code traffic.load.out.of.order}: fraction of records with a timestamp in the past;</li>
+ *   <li>{@code traffic.load.max.delay.ms}: how far in the past those timestamps can be;</li>
+ *   <li>{@code traffic.load.malformed}: fraction of malformed records;</li>
+ *   <li>{@code traffic.load.query.threads}: number of concurrent query threads;</li>
+ *   <li>{@code traffic.load.drain.timeout.s}: how long to wait for all records to be processed; and</li>
+ *   <li>{@code traffic.load.report}: path of the report file.</li>
+ * </ul>
+ * </p>
+ */
+public class TrafficLoadTest extends TestBase {
+  private static final Logger LOG = LoggerFactory.getLogger(TrafficLoadTest.class);
+  private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+  private static final String PREFIX = "traffic.load";
+  private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+  /** Interval between samples of the number of processed records */
+  private static final long SAMPLE_INTERVAL = 1000;
+  /** How long to wait for the metrics of the sink to stop changing once all records are processed */
+  private static final long METRICS_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+  @Test
+  public void testLoad() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean(PREFIX));
+    int segments = Integer.getInteger(PREFIX + ".segments", 10000);
+    double zipf = getDouble(PREFIX + ".zipf", 1.1);
+    long events = Long.getLong(PREFIX + ".events", 200000L);
+    long rate = Long.getLong(PREFIX + ".rate", 0L);
+    double outOfOrder = getDouble(PREFIX + ".out.of.order", 0.1);
+    long maxDelay = Long.getLong(PREFIX + ".max.delay.ms", TimeUnit.MINUTES.toMillis(10));
+    double malformed = getDouble(PREFIX + ".malformed", 0.01);
+    int queryThreads = Integer.getInteger(PREFIX + ".query.threads", 4);
+    long drainTimeout = Long.getLong(PREFIX + ".drain.timeout.s", TimeUnit.MINUTES.toSeconds(10));
+    File reportFile = new File(System.getProperty(PREFIX + ".report", "target/traffic-load-report.json"));
+
+    ApplicationManager appManager = deployApplication(TrafficApp.class);
+    FlowManager flowManager = appManager.getFlowManager(TrafficFlow.FLOW_NAME);
+    flowManager.start();
+    ServiceManager serviceManager = appManager.getServiceManager(TrafficConditionService.SERVICE_NAME);
+    serviceManager.start();
+    ExecutorService executor = Executors.newFixedThreadPool(queryThreads + 1);
+    try {
+      serviceManager.waitForStatus(true);
+      final URL serviceUrl = serviceManager.getServiceURL();
+      final RuntimeMetrics sinkMetrics = flowManager.getFlowletMetrics("sink");
+      final AtomicBoolean stopped = new AtomicBoolean();
+      final AtomicLong sentValid = new AtomicLong();
+
+      // query threads pick segments from their own generators, with the same distribution as the records
+      List<Future<long[]>> queries = new ArrayList<Future<long[]>>();
+      for (int i = 0; i < queryThreads; i++) {
+        final TrafficLoadGenerator queryGenerator = new TrafficLoadGenerator(i + 1, segments, zipf, 0, 0, 0);
+        queries.add(executor.submit(new Callable<long[]>() {
+          @Override
+          public long[] call() throws Exception {
+            return runQueries(serviceUrl, queryGenerator, stopped);
+          }
+        }));
+      }
+      final AtomicLong maxBacklog = new AtomicLong();
+      Future<?> monitor = executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          while (!stopped.get()) {
+            maxBacklog.set(Math.max(maxBacklog.get(), sentValid.get() - sinkMetrics.getProcessed()));
+            try {
+              TimeUnit.MILLISECONDS.sleep(SAMPLE_INTERVAL);
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+        }
+      });
+
+      StreamManager streamManager = getStreamManager(TrafficApp.STREAM_NAME);
+      TrafficLoadGenerator generator = new TrafficLoadGenerator(0, segments, zipf, outOfOrder, maxDelay, malformed);
+      long malformedSent = 0;
+      long start = System.currentTimeMillis();
+      for (long i = 0; i < events; i++) {
+        if (rate > 0) {
+          long due = start + i * 1000 / rate;
+          long now = System.currentTimeMillis();
+          if (due > now) {
+            TimeUnit.MILLISECONDS.sleep(due - now);
+          }
+        }
+        if (generator.nextMalformed()) {
+          streamManager.send(generator.nextMalformedRecord());
+          malformedSent++;
+        } else {
+          streamManager.send(generator.nextRecord(System.currentTimeMillis()));
+          sentValid.incrementAndGet();
+        }
+      }
+      long sendEnd = System.currentTimeMillis();
+      boolean drained = true;
+      try {
+        sinkMetrics.waitForProcessed(sentValid.get(), drainTimeout, TimeUnit.SECONDS);
+      } catch (TimeoutException e) {
+        drained = false;
+      }
+      long processEnd = System.currentTimeMillis();
+      long processed = sinkMetrics.getProcessed();
+      stopped.set(true);
+      monitor.get();
+
+      long queryErrors = 0;
+      List<Long> latencies = new ArrayList<Long>();
+      for (Future<long[]> query : queries) {
+        long[] result = query.get();
+        queryErrors += result[0];
+        for (int i = 1; i < result.length; i++) {
+          latencies.add(result[i]);
+        }
+      }
+
+      Map<String, Object> config = new LinkedHashMap<String, Object>();
+      config.put("segments", segments);
+      config.put("zipfExponent", zipf);
+      config.put("events", events);
+      config.put("targetRate", rate);
+      config.put("outOfOrderRate", outOfOrder);
+      config.put("maxDelayMs", maxDelay);
+      config.put("malformedRate", malformed);
+      config.put("queryThreads", queryThreads);
+
+      Map<String, Object> ingestion = new LinkedHashMap<String, Object>();
+      ingestion.put("sent", events);
+      ingestion.put("malformed", malformedSent);
+      ingestion.put("durationMs", sendEnd - start);
+      ingestion.put("eventsPerSecond", perSecond(events, sendEnd - start));
+
+      Map<String, Object> processing = new LinkedHashMap<String, Object>();
+      processing.put("processed", processed);
+      processing.put("drained", drained);
+      processing.put("durationMs", processEnd - start);
+      processing.put("eventsPerSecond", perSecond(processed, processEnd - start));
+      processing.put("drainMs", processEnd - sendEnd);
+      processing.put("maxBacklog", maxBacklog.get());
+
+      Map<String, Object> recent = new LinkedHashMap<String, Object>();
+      recent.put("requests", latencies.size() + queryErrors);
+      recent.put("errors", queryErrors);
+      recent.put("requestsPerSecond", perSecond(latencies.size(), processEnd - start));
+      recent.putAll(getPercentiles(latencies));
+
+      Map<String, Object> report = new LinkedHashMap<String, Object>();
+      report.put("config", config);
+      report.put("ingestion", ingestion);
+      report.put("processing", processing);
+      report.put("eventTimeLagMs", getLagPercentiles());
+      report.put("recentLatencyMs", recent);
+      File parent = reportFile.getAbsoluteFile().getParentFile();
+      Assert.assertTrue(parent.isDirectory() || parent.mkdirs());
+      Files.write(GSON.toJson(report), reportFile, Charsets.UTF_8);
+      LOG.info("Wrote load test report to {}", reportFile.getAbsolutePath());
+
+      Assert.assertTrue("Not all records were processed within the drain timeout", drained);
+    } finally {
+      executor.shutdownNow();
+      serviceManager.stop();
+      serviceManager.waitForStatus(false);
+      flowManager.stop();
+    }
+  }
+
+  /**
+   * Looks up the conditions of road segments until stopped.
+   *
+   * @return the number of failed requests, followed by the latency in microseconds of each successful request
+   */
+  private static long[] runQueries(URL serviceUrl, TrafficLoadGenerator generator, AtomicBoolean stopped)
+    throws Exception {
+    long errors = 0;
+    long[] latencies = new long[1024];
+    int count = 0;
+    while (!stopped.get()) {
+      URL url = new URL(serviceUrl, String.format("v1/road/%s/recent", generator.nextSegmentId()));
+      long start = System.nanoTime();
+      HttpResponse response = HttpRequests.execute(HttpRequest.get(url).build());
+      long latency = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+      if (response.getResponseCode() != 200) {
+        errors++;
+        continue;
+      }
+      if (count == latencies.length) {
+        latencies = Arrays.copyOf(latencies, count * 2);
+      }
+      latencies[count++] = latency;
+    }
+    long[] result = new long[count + 1];
+    result[0] = errors;
+    System.arraycopy(latencies, 0, result, 1, count);
+    return result;
+  }
+
+  private static Map<String, Object> getPercentiles(List<Long> latencies) {
+    Map<String, Object> percentiles = new LinkedHashMap<String, Object>();
+    if (latencies.isEmpty()) {
+      return percentiles;
+    }
+    long[] sorted = new long[latencies.size()];
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] = latencies.get(i);
+    }
+    Arrays.sort(sorted);
+    for (double percentile : PERCENTILES) {
+      int rank = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+      percentiles.put(getPercentileName(percentile), sorted[Math.max(0, rank)] / 1000.0);
+    }
+    percentiles.put("max", sorted[sorted.length - 1] / 1000.0);
+    return percentiles;
+  }
+
+  /**
+   * Returns the number of batches, the mean and the percentiles of the event time lag recorded by the sink, where
+   * each percentile is the upper bound of the histogram bucket it falls in, or "inf" for the last bucket.
+   */
+  private static Map<String, Object> getLagPercentiles() throws Exception {
+    MetricsManager metricsManager = getMetricsManager();
+    Map<String, String> tags = ImmutableMap.of(Constants.Metrics.Tag.NAMESPACE, NamespaceId.DEFAULT.getNamespace(),
+                                               Constants.Metrics.Tag.APP, TrafficApp.APP_NAME,
+                                               Constants.Metrics.Tag.FLOW, TrafficFlow.FLOW_NAME,
+                                               Constants.Metrics.Tag.FLOWLET, "sink");
+    String name = "user." + TrafficEventSink.LAG;
+    // metrics are emitted asynchronously, so wait until the last batches are included
+    long count = metricsManager.getTotalMetric(tags, name + ".count");
+    long deadline = System.currentTimeMillis() + METRICS_TIMEOUT;
+    long previous;
+    do {
+      previous = count;
+      TimeUnit.MILLISECONDS.sleep(2 * SAMPLE_INTERVAL);
+      count = metricsManager.getTotalMetric(tags, name + ".count");
+    } while (count != previous && System.currentTimeMillis() < deadline);
+
+    Map<String, Object> lag = new LinkedHashMap<String, Object>();
+    lag.put("batches", count);
+    if (count == 0) {
+      return lag;
+    }
+    lag.put("mean", metricsManager.getTotalMetric(tags, name + ".sum") / (double) count);
+    long[] bucketCounts = new long[Histogram.LAG_BOUNDS_MS.length + 1];
+    for (int i = 0; i < bucketCounts.length; i++) {
+      String bound = i < Histogram.LAG_BOUNDS_MS.length ? String.valueOf(Histogram.LAG_BOUNDS_MS[i]) : "inf";
+      bucketCounts[i] = metricsManager.getTotalMetric(tags, name + ".le." + bound);
+    }
+    for (double percentile : PERCENTILES) {
+      long rank = (long) Math.ceil(percentile / 100 * count);
+      int bucket = 0;
+      long seen = bucketCounts[0];
+      while (seen < rank && bucket < Histogram.LAG_BOUNDS_MS.length) {
+        seen += bucketCounts[++bucket];
+      }
+      lag.put(getPercentileName(percentile),
+              bucket < Histogram.LAG_BOUNDS_MS.length ? Histogram.LAG_BOUNDS_MS[bucket] : "inf");
+    }
+    return lag;
+  }
+
+  private static String getPercentileName(double percentile) {
+    return "p" + (percentile == Math.rint(percentile) ? String.valueOf((long) percentile) : String.valueOf(percentile));
+  }
+
+  private static double perSecond(long count, long millis) {
+    return millis <= 0 ? 0 : count * 1000.0 / millis;
+  }
+
+  private static double getDouble(String key, double defaultValue) {
+    String value = System.getProperty(key);
+    return value == null || value.trim().isEmpty() ? defaultValue : Double.parseDouble(value.trim());
+  }
+}